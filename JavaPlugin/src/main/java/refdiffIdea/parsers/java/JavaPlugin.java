@@ -8,47 +8,50 @@ import org.jetbrains.annotations.NotNull;
 import refdiffIdea.core.cst.*;
 import refdiffIdea.core.io.FilePathFilter;
 import refdiffIdea.parsers.LanguagePlugin;
+import refdiffIdea.parsers.psi.LanguageFileVisitor;
 import refdiffIdea.parsers.psi.LanguageVisitor;
 import refdiffIdea.parsers.psi.PsiPlugin;
 
 import java.util.*;
 
 public class JavaPlugin implements LanguageVisitor {
-    private JavaCstModel model = null;
-    private JavaPsiVisitor visitor = null;
+    // Bump whenever the visitor may build a different CST from the same source code, as CSTs and diffs are stored
+    private static final String VERSION = "1";
 
     public static LanguagePlugin create(@NotNull Project project) {
         return new PsiPlugin(project, new JavaPlugin());
     }
 
-    @Override
-    public void preProcess(CstRoot root) {
-        model = new JavaCstModel(root);
-    }
-
-    @Override
-    public void postProcess() {
-        model.postProcess();
-    }
-
     @Override
     public FilePathFilter getAllowedFilesFilter() {
         return new FilePathFilter(Collections.singletonList(".java"));
     }
 
     @Override
-    public void setCurrentSourceFile(@NotNull String sourceFilePath) {
-        visitor = new JavaPsiVisitor(model, sourceFilePath);
+    public LanguageFileVisitor createFileVisitor(@NotNull CstFragment fragment) {
+        JavaPsiVisitor visitor = new JavaPsiVisitor(new JavaCstModel(fragment), fragment.getFile());
+        return new LanguageFileVisitor() {
+            @Override
+            public boolean process(@NotNull PsiElement element) {
+                element.accept(visitor);
+                return !(element instanceof PsiAnonymousClass);
+            }
+
+            @Override
+            public void postProcess(@NotNull PsiElement element) {
+                visitor.exit(element);
+            }
+        };
     }
 
     @Override
-    public boolean process(PsiElement element) {
-        element.accept(visitor);
-        return !(element instanceof PsiAnonymousClass);
+    public boolean resolvesAcrossFiles() {
+        // Calls and supertypes are resolved through the PSI, against the classes and libraries of the project
+        return true;
     }
 
     @Override
-    public void postProcess(PsiElement element) {
-        visitor.exit(element);
+    public String getVersion() {
+        return VERSION;
     }
 }
@@ -4,55 +4,59 @@ import com.intellij.openapi.project.Project;
 import com.intellij.psi.PsiElement;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.kotlin.psi.KtElement;
-import refdiffIdea.core.cst.CstRoot;
+import refdiffIdea.core.cst.CstFragment;
 import refdiffIdea.core.io.FilePathFilter;
 import refdiffIdea.parsers.LanguagePlugin;
+import refdiffIdea.parsers.psi.LanguageFileVisitor;
 import refdiffIdea.parsers.psi.LanguageVisitor;
 import refdiffIdea.parsers.psi.PsiPlugin;
 
 import java.util.Collections;
 
 public class KotlinPlugin implements LanguageVisitor {
-    private KotlinCstModel model = null;
-    private KotlinPsiVisitor visitor = null;
+    // Bump whenever the visitor may build a different CST from the same source code, as CSTs and diffs are stored
+    private static final String VERSION = "1";
 
     public static LanguagePlugin create(@NotNull Project project) {
         return new PsiPlugin(project, new KotlinPlugin());
     }
 
-    @Override
-    public void preProcess(@NotNull CstRoot root) {
-        model = new KotlinCstModel(root);
-    }
-
-    @Override
-    public void postProcess() {
-        if (visitor != null)
-            visitor.processContext();
-        model.postProcess();
-    }
-
     @Override
     public @NotNull FilePathFilter getAllowedFilesFilter() {
         return new FilePathFilter(Collections.singletonList(".kt"));
     }
 
     @Override
-    public void setCurrentSourceFile(@NotNull String sourceFile) {
-        if (visitor != null)
-            visitor.processContext();
-        visitor = new KotlinPsiVisitor(model, sourceFile);
+    public @NotNull LanguageFileVisitor createFileVisitor(@NotNull CstFragment fragment) {
+        KotlinPsiVisitor visitor = new KotlinPsiVisitor(new KotlinCstModel(fragment), fragment.getFile());
+        return new LanguageFileVisitor() {
+            @Override
+            public boolean process(@NotNull PsiElement element) {
+                if (element instanceof KtElement)
+                    ((KtElement) element).accept(visitor, null);
+                return true;
+            }
+
+            @Override
+            public void postProcess(@NotNull PsiElement element) {
+                visitor.exit(element);
+            }
+
+            @Override
+            public void postProcess() {
+                visitor.processContext();
+            }
+        };
     }
 
     @Override
-    public boolean process(@NotNull PsiElement element) {
-        if (element instanceof KtElement)
-            ((KtElement) element).accept(visitor, null);
-        return true;
+    public boolean resolvesAcrossFiles() {
+        // Calls are matched by name within the file and supertypes by name when fragments are merged, without resolving
+        return false;
     }
 
     @Override
-    public void postProcess(@NotNull PsiElement element) {
-        visitor.exit(element);
+    public @NotNull String getVersion() {
+        return VERSION;
     }
 }
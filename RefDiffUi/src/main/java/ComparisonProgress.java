@@ -0,0 +1,46 @@
+import com.intellij.openapi.progress.ProgressIndicator;
+import org.jetbrains.annotations.NotNull;
+import refdiffIdea.core.diff.ComparisonPhase;
+import refdiffIdea.core.diff.CstComparatorMonitor;
+
+/**
+ * Reports the progress of several comparisons running at the same time to a single indicator. The fraction is the
+ * share of phases entered by all comparisons, and the details show the phase of the last comparison that moved on.
+ */
+public class ComparisonProgress {
+    private final ProgressIndicator indicator;
+    private final int[] phases;
+
+    public ComparisonProgress(@NotNull ProgressIndicator indicator, int comparisons) {
+        this.indicator = indicator;
+        this.phases = new int[comparisons];
+    }
+
+    /**
+     * @return The monitor of the {@code index}-th comparison, which also cancels it along with the indicator.
+     */
+    @NotNull
+    public CstComparatorMonitor getMonitor(int index) {
+        return new CstComparatorMonitor() {
+            @Override
+            public void beforePhase(ComparisonPhase phase) {
+                enter(index, phase);
+            }
+
+            @Override
+            public void checkCanceled() {
+                indicator.checkCanceled();
+            }
+        };
+    }
+
+    private synchronized void enter(int index, ComparisonPhase phase) {
+        phases[index] = phase.ordinal();
+        int entered = 0;
+        for (int phaseOfComparison : phases) {
+            entered += phaseOfComparison;
+        }
+        indicator.setText2(phase.getDescription());
+        indicator.setFraction((double) entered / (phases.length * ComparisonPhase.values().length));
+    }
+}
@@ -22,22 +22,29 @@ public class DiffPanelMaker implements Disposable {
     final JPanel diffPanel;
 
     Consumer<String> changeTitleCallback = null;
-    final List<Relationship> relationships;
-    final List<CstDiff> cstDiffs;
+    // Refactorings in the order they are shown, and all relationships of the diff of each one
+    final List<Relationship> relationships = new ArrayList<>();
+    final Map<Relationship, Set<Relationship>> diffRelationships = new HashMap<>();
+    final List<Set<Relationship>> relationshipsOfDiffs = new ArrayList<>();
     int index = 0;
+    boolean disposed = false;
     Map<Relationship, RefactoringView> viewForRelationship = new HashMap<>();
 
     public DiffPanelMaker(@NotNull final Project project, @NotNull final List<CstDiff> diffs) {
+        this(project);
+        for (int i = 0; i < diffs.size(); i++) {
+            addRelationships(i, diffs.get(i).getRelationships());
+        }
+    }
+
+    /**
+     * Creates an empty panel, which shows the refactorings of several diffs as they are added.
+     */
+    public DiffPanelMaker(@NotNull final Project project) {
         myProject = project;
-        cstDiffs = diffs;
         content = new Wrapper();
-        relationships = new ArrayList<>();
-        for (CstDiff diff : diffs) {
-            relationships.addAll(diff.getRefactoringRelationships());
-        }
 
         JPanel mainPanel = new JPanel(new BorderLayout());
-        updateFiles();
 
         mainPanel.add(content, BorderLayout.CENTER);
 
@@ -52,7 +59,8 @@ public class DiffPanelMaker implements Disposable {
 
     public void setTitleChangeCallback(@NotNull final Consumer<String> changeTitleCallback) {
         this.changeTitleCallback = changeTitleCallback;
-        changeTitle();
+        if (!relationships.isEmpty())
+            changeTitle();
     }
 
     private DefaultActionGroup buildToolbar() {
@@ -61,15 +69,43 @@ public class DiffPanelMaker implements Disposable {
         return result;
     }
 
+    /**
+     * Adds relationships of the {@code diffIndex}-th diff, possibly while it is computed, so that the first
+     * refactorings are shown early. Relationships that were already added are ignored. Must be called on the event
+     * dispatch thread.
+     */
+    public void addRelationships(int diffIndex, @NotNull final Collection<Relationship> diffRelationshipsToAdd) {
+        if (disposed) {
+            return;
+        }
+        while (relationshipsOfDiffs.size() <= diffIndex) {
+            relationshipsOfDiffs.add(new HashSet<>());
+        }
+        Set<Relationship> relationshipsOfDiff = relationshipsOfDiffs.get(diffIndex);
+        boolean wasEmpty = relationships.isEmpty();
+        for (Relationship relationship : diffRelationshipsToAdd) {
+            if (relationshipsOfDiff.add(relationship) && relationship.isRefactoring()) {
+                relationships.add(relationship);
+                diffRelationships.put(relationship, relationshipsOfDiff);
+            }
+        }
+        if (wasEmpty && !relationships.isEmpty()) {
+            updateFiles();
+        }
+    }
+
+    public boolean hasRefactorings() {
+        return !relationships.isEmpty();
+    }
+
     private void updateFiles() {
-        Relationship r = relationships.get(index);
-        ListIterator<CstDiff> cstDiffIt = cstDiffs.listIterator();
-        for (int count = 0; count < index + 1; ) {
-            count += cstDiffIt.next().getRefactoringRelationships().size();
+        if (relationships.isEmpty()) {
+            return;
         }
+        Relationship r = relationships.get(index);
 
         RefactoringView view = viewForRelationship.computeIfAbsent(r,
-                relationship -> new RefactoringView(myProject,relationship, cstDiffIt.previous()));
+                relationship -> new RefactoringView(myProject, relationship, diffRelationships.get(relationship)));
         content.removeAll();
         content.add(view.getSplitter());
         content.repaint();
@@ -113,6 +149,7 @@ public class DiffPanelMaker implements Disposable {
 
     @Override
     public void dispose() {
+        disposed = true;
         viewForRelationship.values().forEach(Disposer::dispose);
     }
 
@@ -143,7 +180,7 @@ public class DiffPanelMaker implements Disposable {
         @Override
         public void update(@NotNull AnActionEvent e) {
             e.getPresentation().setEnabledAndVisible(true);
-            if (index + 1 == relationships.size()) {
+            if (index + 1 >= relationships.size()) {
                 e.getPresentation().setEnabled(false);
             }
         }
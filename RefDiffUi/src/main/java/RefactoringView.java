@@ -28,12 +28,12 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import refdiffIdea.core.cst.CstNode;
 import refdiffIdea.core.cst.Location;
-import refdiffIdea.core.diff.CstDiff;
 import refdiffIdea.core.diff.Relationship;
 
 import javax.swing.*;
 import java.awt.*;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 public class RefactoringView implements Disposable {
@@ -53,7 +53,7 @@ public class RefactoringView implements Disposable {
     int[] newTextLines = null;
 
     RefactoringView(@NotNull Project project, @NotNull Relationship relationship,
-                    @NotNull CstDiff diff) {
+                    @NotNull Collection<Relationship> diffRelationships) {
         myProject = project;
         this.relationship = relationship;
         leftWrapper = createEditor(relationship.getNodeBefore());
@@ -68,7 +68,7 @@ public class RefactoringView implements Disposable {
 
         CstNode correspondingNode = null;
         // Trying to find pair of nodes, one of which is
-        for (Relationship r : diff.getRelationships()) {
+        for (Relationship r : diffRelationships) {
             if (r.getType().isMatching() &&
                     r.getNodeBefore() == relationship.getNodeBefore() &&
                     r.getNodeAfter() != relationship.getNodeAfter()) {
@@ -1,23 +1,41 @@
 import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.Task;
 import com.intellij.openapi.project.DumbAwareAction;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.ui.Messages;
 import com.intellij.openapi.ui.WindowWrapper;
 import com.intellij.openapi.ui.WindowWrapperBuilder;
 import com.intellij.openapi.util.Disposer;
+import com.intellij.util.concurrency.AppExecutorUtil;
 import com.intellij.vcs.log.VcsFullCommitDetails;
 import com.intellij.vcs.log.VcsLog;
 import com.intellij.vcs.log.VcsLogDataKeys;
 import git4idea.GitCommit;
 import org.jetbrains.annotations.NotNull;
 import refdiffIdea.core.RefDiff;
+import refdiffIdea.core.diff.CstComparatorMonitor;
 import refdiffIdea.core.diff.CstDiff;
+import refdiffIdea.core.diff.CstDiffStore;
+import refdiffIdea.core.diff.Relationship;
+import refdiffIdea.core.io.FilePathFilter;
 import refdiffIdea.core.io.GitHelper;
+import refdiffIdea.core.io.SourceFileSet;
+import refdiffIdea.core.util.PairBeforeAfter;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Collectors;
 
 public class ShowRefactoringsForCommit extends DumbAwareAction {
+    // Parse results of the files of compared commits, kept across sessions by the plugins that can reuse them
+    private static final long FRAGMENT_DISK_CACHE_BYTES = 256L * 1024 * 1024;
+
     public ShowRefactoringsForCommit() {
         super("Show Refactorings Performed",
                 "Tries to form a list of refactorings performed for commit",
@@ -30,14 +48,92 @@ public class ShowRefactoringsForCommit extends DumbAwareAction {
         final VcsLog log = e.getRequiredData(VcsLogDataKeys.VCS_LOG);
         final VcsFullCommitDetails details = log.getSelectedDetails().get(0);
         GitCommit commit = (GitCommit) details;
-        List<CstDiff> diffs = new ArrayList<>();
+        // Refactorings are shown as soon as they are found, while the comparison goes on
+        RefactoringsWindow window = new RefactoringsWindow(project);
+        List<RefDiff> refDiffs = new ArrayList<>();
         for (LanguagePluginCreator creator : LanguagePluginCreator.Extensions.getExtensionList()) {
             RefDiff refDiff = new RefDiff(creator.create(project));
-            final CstDiff diff = refDiff.computeDiffForCommit(project, commit);
-            if (!diff.getRefactoringRelationships().isEmpty())
-                diffs.add(diff);
+            refDiff.setResultStore(CstDiffStore.getInstance());
+            refDiff.setDiskCacheSize(FRAGMENT_DISK_CACHE_BYTES);
+            RelationshipBatch batch = new RelationshipBatch(window, refDiffs.size());
+            refDiff.addRelationshipListener((diff, relationship) -> batch.add(relationship));
+            refDiffs.add(refDiff);
         }
-        showRefactorings(project, diffs);
+        new Task.Backgroundable(project, "Finding refactorings", true) {
+            private final List<CstDiff> diffs = new ArrayList<>();
+
+            @Override
+            public void run(@NotNull ProgressIndicator indicator) {
+                indicator.setIndeterminate(false);
+                indicator.setText("Fetching changes");
+                // The changes of the commit are fetched once, and each plugin compares its own files
+                FilePathFilter filter = FilePathFilter.union(refDiffs.stream().map(RefDiff::getFileFilter).collect(Collectors.toList()));
+                PairBeforeAfter<SourceFileSet> sources = GitHelper.getSourcesBeforeAndAfterCommit(
+                        GitHelper.openRepository(project), commit, filter);
+                indicator.checkCanceled();
+                indicator.setText("Comparing revisions");
+                diffs.addAll(computeDiffs(refDiffs, commit, sources, indicator));
+            }
+
+            @Override
+            public void onSuccess() {
+                // Diffs read from the store were not published while computed
+                for (int i = 0; i < diffs.size(); i++) {
+                    window.addRelationships(i, diffs.get(i).getRelationships());
+                }
+                if (!window.isShown()) {
+                    window.dispose();
+                    Messages.showInfoMessage("No refactorings found", "RefDiff");
+                }
+            }
+
+            @Override
+            public void onCancel() {
+                if (!window.isShown()) {
+                    window.dispose();
+                }
+            }
+
+            @Override
+            public void onFinished() {
+                refDiffs.forEach(RefDiff::close);
+            }
+        }.queue();
+    }
+
+    /**
+     * Runs every plugin but the last one on a pooled thread, and the last one on the calling thread, so that the
+     * comparison takes about as long as the slowest plugin. Every plugin reports its progress to {@code indicator}
+     * and stops as soon as it is canceled. Diffs are returned in the order of the plugins.
+     */
+    private List<CstDiff> computeDiffs(@NotNull final List<RefDiff> refDiffs, @NotNull final GitCommit commit,
+                                       @NotNull final PairBeforeAfter<SourceFileSet> sources,
+                                       @NotNull final ProgressIndicator indicator) {
+        ComparisonProgress progress = new ComparisonProgress(indicator, refDiffs.size());
+        List<CompletableFuture<CstDiff>> futureDiffs = new ArrayList<>();
+        for (int i = 0; i < refDiffs.size() - 1; i++) {
+            RefDiff refDiff = refDiffs.get(i);
+            CstComparatorMonitor monitor = progress.getMonitor(i);
+            futureDiffs.add(CompletableFuture.supplyAsync(() -> {
+                CstDiff[] diff = new CstDiff[1];
+                // The indicator is shared, not owned: only the task that started it stops it
+                ProgressManager.getInstance().executeProcessUnderProgress(
+                        () -> diff[0] = refDiff.computeDiffForCommit(commit, sources, monitor), indicator);
+                return diff[0];
+            }, AppExecutorUtil.getAppExecutorService()));
+        }
+        int last = refDiffs.size() - 1;
+        CstDiff lastDiff = refDiffs.get(last).computeDiffForCommit(commit, sources, progress.getMonitor(last));
+        List<CstDiff> diffs = new ArrayList<>();
+        for (CompletableFuture<CstDiff> futureDiff : futureDiffs) {
+            try {
+                diffs.add(futureDiff.join());
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
+        }
+        diffs.add(lastDiff);
+        return diffs;
     }
 
     @Override
@@ -68,21 +164,75 @@ public class ShowRefactoringsForCommit extends DumbAwareAction {
         }
     }
 
-    private void showRefactorings(@NotNull final Project project, @NotNull final List<CstDiff> diffs) {
-        if (diffs.isEmpty()) {
-            Messages.showInfoMessage("No refactorings found", "RefDiff");
-            return;
+    /**
+     * The window of the refactorings of a commit, opened when the first refactoring is added.
+     */
+    private static class RefactoringsWindow {
+        private final Project project;
+        private final DiffPanelMaker maker;
+        private boolean shown = false;
+
+        RefactoringsWindow(@NotNull final Project project) {
+            this.project = project;
+            this.maker = new DiffPanelMaker(project);
         }
 
-        DiffPanelMaker maker = new DiffPanelMaker(project, diffs);
+        void addRelationships(int diffIndex, @NotNull final Collection<Relationship> relationships) {
+            maker.addRelationships(diffIndex, relationships);
+            if (!shown && maker.hasRefactorings()) {
+                shown = true;
+                WindowWrapper wrapper = new WindowWrapperBuilder(WindowWrapper.Mode.FRAME, maker.getDiffPanel())
+                        .setProject(project)
+                        .setDimensionServiceKey("RefDiffDialog")
+                        .build();
+                Disposer.register(wrapper, maker);
 
-        WindowWrapper wrapper = new WindowWrapperBuilder(WindowWrapper.Mode.FRAME, maker.getDiffPanel())
-                .setProject(project)
-                .setDimensionServiceKey("RefDiffDialog")
-                .build();
-        Disposer.register(wrapper, maker);
+                wrapper.show();
+                maker.setTitleChangeCallback(wrapper::setTitle);
+            }
+        }
+
+        boolean isShown() {
+            return shown;
+        }
+
+        void dispose() {
+            Disposer.dispose(maker);
+        }
+    }
 
-        wrapper.show();
-        maker.setTitleChangeCallback(wrapper::setTitle);
+    /**
+     * Collects the relationships found by a comparison and passes them to the window in batches, so that the event
+     * dispatch thread runs one task for all the relationships found since the previous one, rather than one per
+     * relationship.
+     */
+    private static class RelationshipBatch {
+        private final RefactoringsWindow window;
+        private final int diffIndex;
+        private List<Relationship> pending = new ArrayList<>();
+        private boolean flushQueued = false;
+
+        RelationshipBatch(@NotNull final RefactoringsWindow window, int diffIndex) {
+            this.window = window;
+            this.diffIndex = diffIndex;
+        }
+
+        synchronized void add(@NotNull final Relationship relationship) {
+            pending.add(relationship);
+            if (!flushQueued) {
+                flushQueued = true;
+                ApplicationManager.getApplication().invokeLater(this::flush);
+            }
+        }
+
+        private void flush() {
+            List<Relationship> relationships;
+            synchronized (this) {
+                relationships = pending;
+                pending = new ArrayList<>();
+                flushQueued = false;
+            }
+            window.addRelationships(diffIndex, relationships);
+        }
     }
 }
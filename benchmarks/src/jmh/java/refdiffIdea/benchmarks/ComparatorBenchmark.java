@@ -0,0 +1,56 @@
+package refdiffIdea.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import refdiffIdea.core.diff.CstComparator;
+import refdiffIdea.core.diff.CstDiff;
+import refdiffIdea.core.diff.Relationship;
+
+/**
+ * Comparison of whole synthetic commits of growing size. The setup checks that the comparator finds every injected 
+ * refactoring, so that the run fails instead of measuring a comparator that no longer detects them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx8g"})
+public class ComparatorBenchmark {
+	
+	@Param({"1000", "10000", "100000"})
+	private int nodes;
+	
+	private SyntheticCommit commit;
+	private CstComparator comparator;
+	
+	@Setup
+	public void setUp() {
+		commit = SyntheticCommit.withNodes(nodes).build();
+		comparator = new CstComparator(commit.getLanguagePlugin());
+		CstDiff diff = comparator.compare(commit.getSourcesBefore(), commit.getSourcesAfter());
+		List<Relationship> missing = commit.findMissing(diff);
+		if (!missing.isEmpty()) {
+			throw new IllegalStateException(String.format("%d of %d refactorings not found, such as %s", missing.size(), commit.getExpected().size(), missing.get(0)));
+		}
+	}
+	
+	@Benchmark
+	public CstDiff compare() {
+		return comparator.compare(commit.getSourcesBefore(), commit.getSourcesAfter());
+	}
+	
+}
@@ -0,0 +1,61 @@
+package refdiffIdea.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import refdiffIdea.core.diff.CstComparator;
+import refdiffIdea.core.diff.CstDiff;
+import refdiffIdea.core.diff.Relationship;
+
+/**
+ * Times the comparison of synthetic commits of growing size, printing a line per size with the time per node, and
+ * checks that every injected refactoring is found. Fails if any of them is missing.
+ *
+ * <p>Run with: {@code ./gradlew :benchmarks:scalingCurve [-Pnodes=1000,10000,100000] [-Prepetitions=3]}
+ */
+public class ComparatorScaling {
+	
+	public static void main(String[] args) {
+		int[] sizes = {1000, 10000, 100000};
+		int repetitions = 3;
+		if (args.length > 0) {
+			String[] values = args[0].split(",");
+			sizes = new int[values.length];
+			for (int i = 0; i < values.length; i++) {
+				sizes[i] = Integer.parseInt(values[i].trim());
+			}
+		}
+		if (args.length > 1) {
+			repetitions = Integer.parseInt(args[1]);
+		}
+		
+		List<String> failures = new ArrayList<>();
+		System.out.println(String.format("%10s %12s %12s %12s %10s %10s %10s", "nodes", "best (ms)", "median (ms)", "us/node", "expected", "missing", "unexpected"));
+		for (int size : sizes) {
+			SyntheticCommit commit = SyntheticCommit.withNodes(size).build();
+			CstComparator comparator = new CstComparator(commit.getLanguagePlugin());
+			long[] times = new long[repetitions];
+			CstDiff diff = null;
+			for (int i = 0; i < repetitions; i++) {
+				long start = System.nanoTime();
+				diff = comparator.compare(commit.getSourcesBefore(), commit.getSourcesAfter());
+				times[i] = System.nanoTime() - start;
+			}
+			Arrays.sort(times);
+			List<Relationship> missing = commit.findMissing(diff);
+			List<Relationship> unexpected = commit.findUnexpected(diff);
+			System.out.println(String.format("%10d %12.1f %12.1f %12.2f %10d %10d %10d",
+				commit.getNodeCount(), times[0] / 1e6, times[repetitions / 2] / 1e6, times[0] / 1e3 / commit.getNodeCount(),
+				commit.getExpected().size(), missing.size(), unexpected.size()));
+			for (Relationship relationship : missing) {
+				failures.add(String.format("%d nodes, missing %s", commit.getNodeCount(), relationship));
+			}
+		}
+		if (!failures.isEmpty()) {
+			failures.forEach(System.err::println);
+			System.exit(1);
+		}
+	}
+	
+}
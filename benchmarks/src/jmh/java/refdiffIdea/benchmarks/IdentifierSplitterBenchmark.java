@@ -0,0 +1,62 @@
+package refdiffIdea.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import refdiffIdea.core.util.IdentifierSplitter;
+
+/**
+ * Splitting identifiers and qualified names into words, with the regular expression and with the hand written
+ * scanner.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IdentifierSplitterBenchmark {
+	
+	private String[] names;
+	
+	@Setup
+	public void setUp() {
+		TokenDistribution distribution = new TokenDistribution(42);
+		names = new String[1000];
+		for (int i = 0; i < names.length; i++) {
+			// Node names hold the namespace, as in "org.example.ClassName.methodName"
+			int parts = 1 + distribution.getRandom().nextInt(4);
+			StringBuilder sb = new StringBuilder(distribution.nextIdentifier());
+			for (int j = 1; j < parts; j++) {
+				sb.append('.').append(distribution.nextIdentifier());
+			}
+			names[i] = sb.toString();
+		}
+	}
+	
+	@Benchmark
+	public void split(Blackhole blackhole) {
+		for (String name : names) {
+			blackhole.consume(IdentifierSplitter.split(name));
+		}
+	}
+	
+	@Benchmark
+	public void split2(Blackhole blackhole) {
+		for (String name : names) {
+			blackhole.consume(IdentifierSplitter.split2(name));
+		}
+	}
+	
+}
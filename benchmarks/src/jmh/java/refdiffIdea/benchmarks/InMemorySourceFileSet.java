@@ -0,0 +1,41 @@
+package refdiffIdea.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Map;
+
+import refdiffIdea.core.io.SourceFile;
+import refdiffIdea.core.io.SourceFileSet;
+
+/**
+ * A set of source files whose contents are held in memory, keyed by their path. Files are listed in the iteration
+ * order of the map.
+ */
+public class InMemorySourceFileSet extends SourceFileSet {
+	
+	private final Map<String, String> contents;
+	
+	public InMemorySourceFileSet(Map<String, String> contents) {
+		super(new ArrayList<>());
+		this.contents = contents;
+		for (String path : contents.keySet()) {
+			getSourceFiles().add(new SourceFile(Paths.get(path)));
+		}
+	}
+	
+	@Override
+	public String readContent(SourceFile sourceFile) throws IOException {
+		String content = contents.get(sourceFile.getPath());
+		if (content == null) {
+			throw new IOException("No such file: " + sourceFile.getPath());
+		}
+		return content;
+	}
+	
+	@Override
+	public String describeLocation(SourceFile sourceFile) {
+		return "memory:" + sourceFile.getPath();
+	}
+	
+}
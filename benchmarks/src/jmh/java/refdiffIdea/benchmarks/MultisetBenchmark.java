@@ -0,0 +1,84 @@
+package refdiffIdea.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import refdiffIdea.core.diff.similarity.IntMultiset;
+import refdiffIdea.core.diff.similarity.Multiset;
+import refdiffIdea.core.diff.similarity.TokenDictionary;
+
+/**
+ * Union and difference of the token multisets of two versions of a node, with the generic multiset of strings and
+ * with the multiset of interned token ids used by the source representations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MultisetBenchmark {
+	
+	@Param({"16", "128", "1024"})
+	private int tokens;
+	
+	private Multiset<String> before;
+	private Multiset<String> after;
+	private IntMultiset intBefore;
+	private IntMultiset intAfter;
+	
+	@Setup
+	public void setUp() {
+		TokenDistribution distribution = new TokenDistribution(42);
+		List<String> tokensBefore = distribution.nextTokens(tokens);
+		List<String> tokensAfter = distribution.mutate(tokensBefore, 0.2);
+		before = new Multiset<>();
+		before.addAll(tokensBefore);
+		after = new Multiset<>();
+		after.addAll(tokensAfter);
+		TokenDictionary dictionary = new TokenDictionary();
+		intBefore = intern(dictionary, tokensBefore);
+		intAfter = intern(dictionary, tokensAfter);
+	}
+	
+	private static IntMultiset intern(TokenDictionary dictionary, List<String> tokens) {
+		IntMultiset.Builder builder = new IntMultiset.Builder();
+		for (String token : tokens) {
+			builder.add(dictionary.intern(token));
+		}
+		return builder.build();
+	}
+	
+	@Benchmark
+	public Multiset<String> plus() {
+		return before.plus(after);
+	}
+	
+	@Benchmark
+	public Multiset<String> minus() {
+		return before.minus(after);
+	}
+	
+	@Benchmark
+	public IntMultiset intPlus() {
+		return intBefore.plus(intAfter);
+	}
+	
+	@Benchmark
+	public IntMultiset intMinus() {
+		return intBefore.minus(intAfter);
+	}
+	
+}
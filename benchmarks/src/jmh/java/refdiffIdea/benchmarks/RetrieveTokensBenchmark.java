@@ -0,0 +1,91 @@
+package refdiffIdea.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import refdiffIdea.core.cst.CstNode;
+import refdiffIdea.core.cst.CstRoot;
+import refdiffIdea.core.cst.Location;
+import refdiffIdea.core.cst.TokenizedSource;
+import refdiffIdea.core.diff.CstRootHelper;
+
+/**
+ * Extraction of the tokens of the nodes of a generated source file, which happens once for every node and its body
+ * when source representations are built.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RetrieveTokensBenchmark {
+	
+	private static final String FILE = "src/main/java/Generated.java";
+	
+	@Param({"50", "400"})
+	private int tokensPerNode;
+	
+	private CstRoot root;
+	private String sourceCode;
+	private List<CstNode> nodes;
+	
+	@Setup
+	public void setUp() {
+		TokenDistribution distribution = new TokenDistribution(42);
+		StringBuilder source = new StringBuilder();
+		TokenizedSource.Builder tokens = new TokenizedSource.Builder(FILE);
+		root = new CstRoot();
+		nodes = new ArrayList<>();
+		for (int id = 1; id <= 200; id++) {
+			int begin = source.length();
+			int bodyBegin = begin;
+			for (int i = 0; i < tokensPerNode; i++) {
+				String token = i == 4 ? "{" : distribution.nextToken();
+				if (i == 4) {
+					bodyBegin = source.length();
+				}
+				tokens.add(source.length(), source.length() + token.length());
+				source.append(token).append(i % 12 == 11 ? '\n' : ' ');
+			}
+			CstNode node = new CstNode(id);
+			node.setType("Method");
+			node.setSimpleName("method" + id);
+			node.setLocalName("method" + id + "()");
+			node.setLocation(new Location(FILE, begin, source.length() - 1, id, bodyBegin, source.length() - 1));
+			root.addNode(node);
+			nodes.add(node);
+		}
+		sourceCode = source.toString();
+		root.addTokenizedFile(tokens.build());
+	}
+	
+	@Benchmark
+	public void retrieveTokens(Blackhole blackhole) {
+		for (CstNode node : nodes) {
+			blackhole.consume(CstRootHelper.retrieveTokens(root, sourceCode, node, false));
+		}
+	}
+	
+	@Benchmark
+	public void retrieveBodyTokens(Blackhole blackhole) {
+		for (CstNode node : nodes) {
+			blackhole.consume(CstRootHelper.retrieveTokens(root, sourceCode, node, true));
+		}
+	}
+	
+}
@@ -0,0 +1,105 @@
+package refdiffIdea.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import refdiffIdea.core.diff.similarity.IntMultiset;
+import refdiffIdea.core.diff.similarity.TfIdfSourceRepresentation;
+import refdiffIdea.core.diff.similarity.TokenDictionary;
+import refdiffIdea.core.diff.similarity.Vocabulary;
+
+/**
+ * Weighted Jaccard similarity of pairs of node representations, a fifth of whose tokens changed, and IDF lookups 
+ * of the tokens of a vocabulary before and after it is frozen.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SimilarityBenchmark {
+	
+	private static final int PAIRS = 64;
+	
+	@Param({"32", "256", "2048"})
+	private int tokens;
+	
+	@Param({"true", "false"})
+	private boolean frozen;
+	
+	private TfIdfSourceRepresentation[] before;
+	private TfIdfSourceRepresentation[] after;
+	private Vocabulary vocabulary;
+	private int[] ids;
+	
+	@Setup
+	public void setUp() {
+		TokenDistribution distribution = new TokenDistribution(42);
+		TokenDictionary dictionary = new TokenDictionary();
+		vocabulary = new Vocabulary(dictionary);
+		before = new TfIdfSourceRepresentation[PAIRS];
+		after = new TfIdfSourceRepresentation[PAIRS];
+		for (int i = 0; i < PAIRS; i++) {
+			List<String> tokensBefore = distribution.nextTokens(tokens);
+			IntMultiset multisetBefore = intern(dictionary, tokensBefore);
+			IntMultiset multisetAfter = intern(dictionary, distribution.mutate(tokensBefore, 0.2));
+			vocabulary.count(true, multisetBefore);
+			vocabulary.count(false, multisetAfter);
+			before[i] = new TfIdfSourceRepresentation(multisetBefore, vocabulary);
+			after[i] = new TfIdfSourceRepresentation(multisetAfter, vocabulary);
+		}
+		ids = new int[1024];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = dictionary.intern(distribution.nextToken());
+		}
+		if (frozen) {
+			vocabulary.freeze();
+		}
+	}
+	
+	private static IntMultiset intern(TokenDictionary dictionary, List<String> tokens) {
+		IntMultiset.Builder builder = new IntMultiset.Builder();
+		for (String token : tokens) {
+			builder.add(dictionary.intern(token));
+		}
+		return builder.build();
+	}
+	
+	@Benchmark
+	public void jaccardSimilarityDecomposed(Blackhole blackhole) {
+		for (int i = 0; i < PAIRS; i++) {
+			blackhole.consume(before[i].jaccardSimilarityDecomposed(after[i], false));
+		}
+	}
+	
+	@Benchmark
+	public void partialSimilarityDecomposed(Blackhole blackhole) {
+		for (int i = 0; i < PAIRS; i++) {
+			blackhole.consume(before[i].jaccardSimilarityDecomposed(after[i], true));
+		}
+	}
+	
+	@Benchmark
+	public double getIdf() {
+		double sum = 0.0;
+		for (int id : ids) {
+			sum += vocabulary.getIdf(id);
+		}
+		return sum;
+	}
+	
+}
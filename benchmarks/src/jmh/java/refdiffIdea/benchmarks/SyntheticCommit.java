@@ -0,0 +1,545 @@
+package refdiffIdea.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import refdiffIdea.core.cst.CstNode;
+import refdiffIdea.core.cst.CstNodeRelationship;
+import refdiffIdea.core.cst.CstNodeRelationshipType;
+import refdiffIdea.core.cst.CstRoot;
+import refdiffIdea.core.cst.Location;
+import refdiffIdea.core.cst.Parameter;
+import refdiffIdea.core.cst.Stereotype;
+import refdiffIdea.core.cst.TokenizedSource;
+import refdiffIdea.core.diff.CstDiff;
+import refdiffIdea.core.diff.Relationship;
+import refdiffIdea.core.diff.RelationshipType;
+import refdiffIdea.core.io.FilePathFilter;
+import refdiffIdea.core.io.SourceFileSet;
+import refdiffIdea.parsers.LanguagePlugin;
+
+/**
+ * A generated commit of Java-like classes, with the CSTs a language plugin would build for it, so that the comparator
+ * can be run without parsing. Some methods of the commit are renamed, moved, extracted, inlined or pulled up, and
+ * the refactorings a correct comparison must find are known.
+ *
+ * <p>Every class is in its own file. Class {@code i} extends class {@code i - 1} whenever {@code i % 4 == 1}. Method
+ * bodies are generated by a {@link TokenDistribution}, and a body starts with the calls of the method, which are
+ * also {@link CstNodeRelationshipType#USE} relationships of the CST.
+ */
+public class SyntheticCommit {
+	
+	private static final String[] PARAMETER_TYPES = {"int", "String", "boolean", "long", "Object"};
+	private static final String METHOD_TYPE = "PsiMethodImpl";
+	private static final String CLASS_TYPE = "ClassDeclaration";
+	
+	private final InMemorySourceFileSet sourcesBefore;
+	private final InMemorySourceFileSet sourcesAfter;
+	private final CstRoot rootBefore;
+	private final CstRoot rootAfter;
+	private final Set<Relationship> expected = new LinkedHashSet<>();
+	private final int nodeCount;
+	
+	private SyntheticCommit(Builder builder) {
+		TokenDistribution distribution = new TokenDistribution(builder.seed, Math.max(5000, builder.classes * builder.methodsPerClass / 4), 1.1, 0.55);
+		Random random = distribution.getRandom();
+		List<ClassModel> base = generate(builder, distribution);
+		List<ClassModel> before = copy(base);
+		List<ClassModel> after = copy(base);
+		
+		// Each method takes part in one refactoring at most. Short bodies are mostly keywords, so that a new name would
+		// outweigh them and the refactoring would legitimately be missed.
+		List<MethodModel> candidates = new ArrayList<>();
+		for (ClassModel classModel : base) {
+			for (MethodModel method : classModel.methods) {
+				if (method.body.size() >= builder.tokensPerMethod) {
+					candidates.add(method);
+				}
+			}
+		}
+		int refactorings = builder.renames + builder.moves + builder.extracts + builder.inlines + builder.pullUps;
+		if (refactorings > candidates.size()) {
+			throw new IllegalArgumentException(String.format("%d refactorings for %d methods", refactorings, candidates.size()));
+		}
+		Collections.shuffle(candidates, random);
+		List<Expectation> expectations = new ArrayList<>();
+		int extracted = 0;
+		for (int i = 0; i < builder.extracts; i++) {
+			MethodModel method = candidates.remove(0);
+			MethodModel extractedMethod = extract(after, method.key, "extracted" + extracted++, distribution);
+			expectations.add(new Expectation(RelationshipType.EXTRACT, method.key, extractedMethod.key));
+		}
+		for (int i = 0; i < builder.inlines; i++) {
+			MethodModel method = candidates.remove(0);
+			MethodModel inlinedMethod = extract(before, method.key, "extracted" + extracted++, distribution);
+			expectations.add(new Expectation(RelationshipType.INLINE, inlinedMethod.key, method.key));
+		}
+		for (int i = 0; i < builder.renames; i++) {
+			MethodModel method = find(after, candidates.remove(0).key);
+			method.name = distribution.nextIdentifier() + "Renamed" + i;
+			expectations.add(new Expectation(RelationshipType.RENAME, method.key, method.key));
+		}
+		for (int i = 0; i < builder.moves; i++) {
+			MethodModel method = candidates.remove(0);
+			int source = indexOfClass(after, method.key);
+			int target = source;
+			// Classes of the same hierarchy are never neighbours of unrelated classes, so that moves are not pull ups
+			while (Math.abs(target - source) <= 1) {
+				target = random.nextInt(after.size());
+			}
+			move(after, method.key, target);
+			expectations.add(new Expectation(RelationshipType.MOVE, method.key, method.key));
+		}
+		for (int i = 0, pulledUp = 0; pulledUp < builder.pullUps && i < candidates.size(); i++) {
+			MethodModel method = candidates.get(i);
+			int source = indexOfClass(after, method.key);
+			if (after.get(source).superclass >= 0) {
+				move(after, method.key, after.get(source).superclass);
+				expectations.add(new Expectation(RelationshipType.PULL_UP, method.key, method.key));
+				candidates.remove(i--);
+				pulledUp++;
+			}
+		}
+		
+		Map<String, String> contentsBefore = new LinkedHashMap<>();
+		Map<String, CstNode> nodesBefore = new HashMap<>();
+		this.rootBefore = render(before, contentsBefore, nodesBefore);
+		Map<String, String> contentsAfter = new LinkedHashMap<>();
+		Map<String, CstNode> nodesAfter = new HashMap<>();
+		this.rootAfter = render(after, contentsAfter, nodesAfter);
+		this.sourcesBefore = new InMemorySourceFileSet(contentsBefore);
+		this.sourcesAfter = new InMemorySourceFileSet(contentsAfter);
+		for (Expectation expectation : expectations) {
+			expected.add(new Relationship(expectation.type, nodesBefore.get(expectation.keyBefore), nodesAfter.get(expectation.keyAfter)));
+		}
+		this.nodeCount = nodesBefore.size() + before.size();
+	}
+	
+	public static Builder builder() {
+		return new Builder();
+	}
+	
+	/**
+	 * @return A builder of a commit of about {@code nodes} nodes in the before version, with a number of each kind of
+	 * refactoring proportional to the size of the commit.
+	 */
+	public static Builder withNodes(int nodes) {
+		Builder builder = new Builder();
+		int refactorings = Math.max(2, nodes / 500);
+		return builder
+			.classes(Math.max(4, nodes / (builder.methodsPerClass + 1)))
+			.renames(refactorings)
+			.moves(refactorings)
+			.extracts(refactorings)
+			.inlines(refactorings)
+			.pullUps(refactorings);
+	}
+	
+	public SourceFileSet getSourcesBefore() {
+		return sourcesBefore;
+	}
+	
+	public SourceFileSet getSourcesAfter() {
+		return sourcesAfter;
+	}
+	
+	public CstRoot getRootBefore() {
+		return rootBefore;
+	}
+	
+	public CstRoot getRootAfter() {
+		return rootAfter;
+	}
+	
+	/**
+	 * @return The number of nodes of the before version.
+	 */
+	public int getNodeCount() {
+		return nodeCount;
+	}
+	
+	/**
+	 * @return The refactorings that were applied to the commit.
+	 */
+	public Set<Relationship> getExpected() {
+		return expected;
+	}
+	
+	/**
+	 * @return The expected refactorings that {@code diff} does not report.
+	 */
+	public List<Relationship> findMissing(CstDiff diff) {
+		List<Relationship> missing = new ArrayList<>();
+		for (Relationship relationship : expected) {
+			if (!diff.getRelationships().contains(relationship)) {
+				missing.add(relationship);
+			}
+		}
+		return missing;
+	}
+	
+	/**
+	 * @return The refactorings reported by {@code diff} that were not applied to the commit.
+	 */
+	public List<Relationship> findUnexpected(CstDiff diff) {
+		List<Relationship> unexpected = new ArrayList<>();
+		for (Relationship relationship : diff.getRefactoringRelationships()) {
+			if (!expected.contains(relationship)) {
+				unexpected.add(relationship);
+			}
+		}
+		return unexpected;
+	}
+	
+	/**
+	 * @return A language plugin that builds the CSTs of this commit from its source file sets, without parsing them.
+	 */
+	public LanguagePlugin getLanguagePlugin() {
+		return new LanguagePlugin() {
+			@Override
+			public CstRoot parse(SourceFileSet sources) {
+				if (sources == sourcesBefore) {
+					return rootBefore;
+				} else if (sources == sourcesAfter) {
+					return rootAfter;
+				}
+				throw new IllegalArgumentException("Sources of another commit");
+			}
+			
+			@Override
+			public FilePathFilter getAllowedFilesFilter() {
+				return new FilePathFilter(Arrays.asList(".java"));
+			}
+		};
+	}
+	
+	private static List<ClassModel> generate(Builder builder, TokenDistribution distribution) {
+		Random random = distribution.getRandom();
+		List<ClassModel> classes = new ArrayList<>();
+		for (int i = 0; i < builder.classes; i++) {
+			String name = capitalize(distribution.nextIdentifier().replace("_", "")) + i;
+			ClassModel classModel = new ClassModel("p" + i / 20, name, i % 4 == 1 ? i - 1 : -1);
+			for (int j = 0; j < builder.methodsPerClass; j++) {
+				MethodModel method = new MethodModel(i + "." + j);
+				method.name = distribution.nextIdentifier().replace("_", "") + i + "x" + j;
+				int parameters = random.nextInt(3);
+				for (int k = 0; k < parameters; k++) {
+					method.parameterTypes.add(PARAMETER_TYPES[random.nextInt(PARAMETER_TYPES.length)]);
+					method.parameterNames.add(distribution.nextIdentifier() + k);
+				}
+				int length = builder.tokensPerMethod / 2 + random.nextInt(builder.tokensPerMethod + 1);
+				method.body.addAll(distribution.nextTokens(length));
+				classModel.methods.add(method);
+			}
+			classes.add(classModel);
+		}
+		int methods = builder.classes * builder.methodsPerClass;
+		for (ClassModel classModel : classes) {
+			for (MethodModel method : classModel.methods) {
+				int calls = random.nextInt(3);
+				for (int k = 0; k < calls; k++) {
+					int callee = random.nextInt(methods);
+					method.calls.add(callee / builder.methodsPerClass + "." + callee % builder.methodsPerClass);
+				}
+			}
+		}
+		return classes;
+	}
+	
+	/**
+	 * Moves the second half of the body of a method into a new method of the same class, called by the first one.
+	 */
+	private static MethodModel extract(List<ClassModel> classes, String key, String newKey, TokenDistribution distribution) {
+		ClassModel classModel = classes.get(indexOfClass(classes, key));
+		MethodModel method = find(classes, key);
+		MethodModel extracted = new MethodModel(newKey);
+		extracted.name = distribution.nextIdentifier().replace("_", "") + "Extracted" + newKey.substring("extracted".length());
+		List<String> tail = method.body.subList(method.body.size() / 2, method.body.size());
+		extracted.body.addAll(tail);
+		tail.clear();
+		method.calls.add(newKey);
+		classModel.methods.add(classModel.methods.indexOf(method) + 1, extracted);
+		return extracted;
+	}
+	
+	private static void move(List<ClassModel> classes, String key, int target) {
+		MethodModel method = find(classes, key);
+		classes.get(indexOfClass(classes, key)).methods.remove(method);
+		classes.get(target).methods.add(method);
+	}
+	
+	private static MethodModel find(List<ClassModel> classes, String key) {
+		return classes.get(indexOfClass(classes, key)).methods.stream()
+			.filter(method -> method.key.equals(key))
+			.findFirst().get();
+	}
+	
+	private static int indexOfClass(List<ClassModel> classes, String key) {
+		for (int i = 0; i < classes.size(); i++) {
+			for (MethodModel method : classes.get(i).methods) {
+				if (method.key.equals(key)) {
+					return i;
+				}
+			}
+		}
+		throw new IllegalArgumentException(key);
+	}
+	
+	private static List<ClassModel> copy(List<ClassModel> classes) {
+		List<ClassModel> copy = new ArrayList<>();
+		for (ClassModel classModel : classes) {
+			ClassModel classCopy = new ClassModel(classModel.pkg, classModel.name, classModel.superclass);
+			for (MethodModel method : classModel.methods) {
+				classCopy.methods.add(method.copy());
+			}
+			copy.add(classCopy);
+		}
+		return copy;
+	}
+	
+	/**
+	 * Writes the source code of the classes and builds their CST, as the Java plugin would.
+	 *
+	 * @param contents Receives the source code of each file.
+	 * @param nodes Receives the node of each method, by key.
+	 */
+	private static CstRoot render(List<ClassModel> classes, Map<String, String> contents, Map<String, CstNode> nodes) {
+		CstRoot root = new CstRoot();
+		Map<String, MethodModel> methods = new HashMap<>();
+		for (ClassModel classModel : classes) {
+			for (MethodModel method : classModel.methods) {
+				methods.put(method.key, method);
+			}
+		}
+		int id = 1;
+		List<CstNode> classNodes = new ArrayList<>();
+		for (ClassModel classModel : classes) {
+			String file = "src/" + classModel.pkg + "/" + classModel.name + ".java";
+			Writer writer = new Writer(file);
+			writer.token("package").token(classModel.pkg).token(";").newLine();
+			int classBegin = writer.offset();
+			int classLine = writer.line;
+			writer.token("class").token(classModel.name);
+			if (classModel.superclass >= 0) {
+				writer.token("extends").token(classes.get(classModel.superclass).name);
+			}
+			writer.token("{").newLine();
+			CstNode classNode = new CstNode(id++);
+			classNode.setType(CLASS_TYPE);
+			classNode.setSimpleName(classModel.name);
+			classNode.setLocalName(classModel.name);
+			classNode.setNamespace(classModel.pkg + ".");
+			for (MethodModel method : classModel.methods) {
+				int begin = writer.offset();
+				int line = writer.line;
+				writer.token("void").token(method.name).token("(");
+				for (int k = 0; k < method.parameterTypes.size(); k++) {
+					if (k > 0) {
+						writer.token(",");
+					}
+					writer.token(method.parameterTypes.get(k)).token(method.parameterNames.get(k));
+				}
+				writer.token(")").token("{");
+				int bodyBegin = writer.offset();
+				for (String callee : method.calls) {
+					writer.token(methods.get(callee).name).token("(").token(")").token(";");
+				}
+				for (String token : method.body) {
+					writer.token(token);
+				}
+				int bodyEnd = writer.offset();
+				writer.token("}").newLine();
+				CstNode node = new CstNode(id++);
+				node.setType(METHOD_TYPE);
+				node.addStereotypes(Stereotype.TYPE_MEMBER);
+				node.addStereotypes(Stereotype.HAS_BODY);
+				node.setSimpleName(method.name);
+				node.setLocalName(method.name + "(" + String.join(", ", method.parameterTypes) + ")");
+				for (String parameterName : method.parameterNames) {
+					node.getParameters().add(new Parameter(parameterName));
+				}
+				node.setLocation(new Location(file, begin, writer.offset() - 1, line, bodyBegin, bodyEnd - 1));
+				classNode.addNode(node);
+				nodes.put(method.key, node);
+			}
+			writer.token("}").newLine();
+			classNode.setLocation(new Location(file, classBegin, writer.offset() - 1, classLine, classBegin, writer.offset() - 1));
+			root.addNode(classNode);
+			classNodes.add(classNode);
+			root.addTokenizedFile(writer.tokens.build());
+			contents.put(file, writer.source.toString());
+		}
+		for (int i = 0; i < classes.size(); i++) {
+			ClassModel classModel = classes.get(i);
+			if (classModel.superclass >= 0) {
+				root.getRelationships().add(new CstNodeRelationship(CstNodeRelationshipType.SUBTYPE, classNodes.get(i).getId(), classNodes.get(classModel.superclass).getId()));
+			}
+			for (MethodModel method : classModel.methods) {
+				for (String callee : method.calls) {
+					root.getRelationships().add(new CstNodeRelationship(CstNodeRelationshipType.USE, nodes.get(method.key).getId(), nodes.get(callee).getId()));
+				}
+			}
+		}
+		return root;
+	}
+	
+	private static String capitalize(String identifier) {
+		return Character.toUpperCase(identifier.charAt(0)) + identifier.substring(1);
+	}
+	
+	public static class Builder {
+		private long seed = 42;
+		private int classes = 50;
+		private int methodsPerClass = 19;
+		private int tokensPerMethod = 40;
+		private int renames = 0;
+		private int moves = 0;
+		private int extracts = 0;
+		private int inlines = 0;
+		private int pullUps = 0;
+		
+		public Builder seed(long seed) {
+			this.seed = seed;
+			return this;
+		}
+		
+		public Builder classes(int classes) {
+			this.classes = classes;
+			return this;
+		}
+		
+		public Builder methodsPerClass(int methodsPerClass) {
+			this.methodsPerClass = methodsPerClass;
+			return this;
+		}
+		
+		/**
+		 * @param tokensPerMethod The average number of tokens of a method body, excluding calls.
+		 */
+		public Builder tokensPerMethod(int tokensPerMethod) {
+			this.tokensPerMethod = tokensPerMethod;
+			return this;
+		}
+		
+		public Builder renames(int renames) {
+			this.renames = renames;
+			return this;
+		}
+		
+		public Builder moves(int moves) {
+			this.moves = moves;
+			return this;
+		}
+		
+		public Builder extracts(int extracts) {
+			this.extracts = extracts;
+			return this;
+		}
+		
+		public Builder inlines(int inlines) {
+			this.inlines = inlines;
+			return this;
+		}
+		
+		/**
+		 * @param pullUps The number of methods pulled up, which are at most the methods of a quarter of the classes.
+		 */
+		public Builder pullUps(int pullUps) {
+			this.pullUps = pullUps;
+			return this;
+		}
+		
+		/**
+		 * @throws IllegalArgumentException If there are more refactorings than methods with a long enough body, which 
+		 * are about half of them.
+		 */
+		public SyntheticCommit build() {
+			return new SyntheticCommit(this);
+		}
+	}
+	
+	private static class ClassModel {
+		final String pkg;
+		final String name;
+		final int superclass;
+		final List<MethodModel> methods = new ArrayList<>();
+		
+		ClassModel(String pkg, String name, int superclass) {
+			this.pkg = pkg;
+			this.name = name;
+			this.superclass = superclass;
+		}
+	}
+	
+	private static class MethodModel {
+		final String key;
+		String name;
+		final List<String> parameterTypes = new ArrayList<>();
+		final List<String> parameterNames = new ArrayList<>();
+		final List<String> calls = new ArrayList<>();
+		final List<String> body = new ArrayList<>();
+		
+		MethodModel(String key) {
+			this.key = key;
+		}
+		
+		MethodModel copy() {
+			MethodModel copy = new MethodModel(key);
+			copy.name = name;
+			copy.parameterTypes.addAll(parameterTypes);
+			copy.parameterNames.addAll(parameterNames);
+			copy.calls.addAll(calls);
+			copy.body.addAll(body);
+			return copy;
+		}
+	}
+	
+	private static class Expectation {
+		final RelationshipType type;
+		final String keyBefore;
+		final String keyAfter;
+		
+		Expectation(RelationshipType type, String keyBefore, String keyAfter) {
+			this.type = type;
+			this.keyBefore = keyBefore;
+			this.keyAfter = keyAfter;
+		}
+	}
+	
+	/**
+	 * Appends tokens separated by spaces to a source file, recording their positions.
+	 */
+	private static class Writer {
+		final StringBuilder source = new StringBuilder();
+		final TokenizedSource.Builder tokens;
+		int line = 1;
+		
+		Writer(String file) {
+			this.tokens = new TokenizedSource.Builder(file);
+		}
+		
+		Writer token(String token) {
+			tokens.add(source.length(), source.length() + token.length());
+			source.append(token).append(' ');
+			return this;
+		}
+		
+		void newLine() {
+			source.append('\n');
+			line++;
+		}
+		
+		int offset() {
+			return source.length();
+		}
+	}
+	
+}
@@ -0,0 +1,116 @@
+package refdiffIdea.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates tokens with a distribution close to the one of Java source code: a few keywords and punctuation marks
+ * are very frequent, and camel case identifiers follow a Zipf distribution over a vocabulary of the given size. The
+ * sequence is fully determined by the seed, so runs of a benchmark compare the same inputs.
+ */
+public class TokenDistribution {
+	
+	private static final String[] FREQUENT = {
+		"(", ")", "{", "}", ";", ".", ",", "=", "return", "if", "new", "this", "null", "int", "String", "final",
+		"private", "public", "static", "void", "else", "for", "+", "<", ">", "==", "!=", "!", "boolean", "throw"
+	};
+	
+	private static final String[] WORDS = {
+		"get", "set", "is", "add", "remove", "find", "create", "build", "compute", "update", "parse", "read", "write",
+		"node", "tree", "file", "source", "name", "value", "type", "list", "map", "index", "count", "size", "key",
+		"item", "entry", "buffer", "result", "context", "manager", "factory", "handler", "listener", "provider",
+		"request", "response", "config", "helper", "util", "path", "token", "parent", "child", "local", "global",
+		"HTTP", "URL", "ID", "IO", "XML"
+	};
+	
+	private final Random random;
+	private final String[] identifiers;
+	private final double[] cumulative;
+	private final double frequentRatio;
+	
+	/**
+	 * @param seed The seed of the generator.
+	 * @param vocabularySize The number of distinct identifiers.
+	 * @param exponent The exponent of the Zipf distribution of identifiers, usually a little over 1.
+	 * @param frequentRatio The fraction of tokens that are keywords or punctuation.
+	 */
+	public TokenDistribution(long seed, int vocabularySize, double exponent, double frequentRatio) {
+		this.random = new Random(seed);
+		this.identifiers = new String[vocabularySize];
+		for (int i = 0; i < vocabularySize; i++) {
+			identifiers[i] = newIdentifier(1 + random.nextInt(4));
+		}
+		this.cumulative = new double[vocabularySize];
+		double sum = 0.0;
+		for (int rank = 0; rank < vocabularySize; rank++) {
+			sum += 1.0 / Math.pow(rank + 1, exponent);
+			cumulative[rank] = sum;
+		}
+		for (int rank = 0; rank < vocabularySize; rank++) {
+			cumulative[rank] /= sum;
+		}
+		this.frequentRatio = frequentRatio;
+	}
+	
+	public TokenDistribution(long seed) {
+		this(seed, 5000, 1.1, 0.55);
+	}
+	
+	public String nextToken() {
+		if (random.nextDouble() < frequentRatio) {
+			// Frequent tokens also follow a skewed distribution, with parentheses and semicolons first
+			int i = (int) (FREQUENT.length * Math.pow(random.nextDouble(), 2.0));
+			return FREQUENT[i];
+		}
+		return nextIdentifier();
+	}
+	
+	public String nextIdentifier() {
+		int rank = Arrays.binarySearch(cumulative, random.nextDouble());
+		return identifiers[rank < 0 ? Math.min(-rank - 1, identifiers.length - 1) : rank];
+	}
+	
+	public List<String> nextTokens(int count) {
+		List<String> tokens = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			tokens.add(nextToken());
+		}
+		return tokens;
+	}
+	
+	/**
+	 * @return A copy of {@code tokens} where each token is replaced by a new one with probability {@code changeRatio},
+	 * as in the body of a method before and after an edit.
+	 */
+	public List<String> mutate(List<String> tokens, double changeRatio) {
+		List<String> result = new ArrayList<>(tokens.size());
+		for (String token : tokens) {
+			result.add(random.nextDouble() < changeRatio ? nextToken() : token);
+		}
+		return result;
+	}
+	
+	public Random getRandom() {
+		return random;
+	}
+	
+	private String newIdentifier(int words) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < words; i++) {
+			String word = WORDS[random.nextInt(WORDS.length)];
+			if (i > 0 && Character.isLowerCase(word.charAt(0))) {
+				sb.append(Character.toUpperCase(word.charAt(0))).append(word, 1, word.length());
+			} else {
+				sb.append(word);
+			}
+		}
+		if (random.nextInt(20) == 0) {
+			// Constants and fields with a prefix are split at underscores
+			return "_" + sb.toString().toUpperCase() + "_" + random.nextInt(10);
+		}
+		return sb.toString();
+	}
+	
+}
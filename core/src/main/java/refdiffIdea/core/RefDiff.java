@@ -2,25 +2,54 @@ package refdiffIdea.core;
 
 import com.intellij.openapi.project.Project;
 
+import com.intellij.openapi.progress.ProcessCanceledException;
 import com.intellij.openapi.vcs.VcsException;
+import com.intellij.psi.PsiFile;
+import com.intellij.util.Consumer;
 import git4idea.GitCommit;
+import git4idea.history.GitHistoryUtils;
 import git4idea.repo.GitRepository;
 
 import refdiffIdea.core.diff.CstComparator;
+import refdiffIdea.core.diff.CstComparatorMonitor;
 import refdiffIdea.core.diff.CstDiff;
+import refdiffIdea.core.diff.CstDiffStore;
+import refdiffIdea.core.diff.RelationshipListener;
 import refdiffIdea.core.io.FilePathFilter;
 import refdiffIdea.core.io.GitHelper;
+import refdiffIdea.core.io.SourceFile;
 import refdiffIdea.core.io.SourceFileSet;
 import refdiffIdea.core.util.PairBeforeAfter;
 import refdiffIdea.parsers.LanguagePlugin;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
 /**
  * High level API of RefDiff, providing methods to compute CST diffs between revisions (commits) of a git repository.
  */
-public class RefDiff {
+public class RefDiff implements AutoCloseable {
 	
+	private static final int CONSECUTIVE_COMMITS_PER_WORKER = 8;
+	private static final int QUEUED_RUNS_PER_WORKER = 2;
+	private static final int FRAGMENT_CACHE_FILES_PER_WORKER = 500;
+	private static final long QUEUE_POLL_MILLIS = 100;
+
+	private final LanguagePlugin parser;
 	private final CstComparator comparator;
 	private final FilePathFilter fileFilter;
+	private volatile CstDiffStore resultStore = null;
+	private volatile int fragmentCacheSize = 0;
 	
 	/**
 	 * Build a RefDiff instance with the specified language plugin. E.g.: {@code new RefDiff(new JsParser())}.
@@ -28,10 +57,74 @@ public class RefDiff {
 	 * @param parser A language parser
 	 */
 	public RefDiff(LanguagePlugin parser) {
+		this.parser = parser;
 		this.comparator = new CstComparator(parser);
 		this.fileFilter = parser.getAllowedFilesFilter();
 	}
 
+	/**
+	 * Releases the threads of the comparator. This instance should be closed once it is no longer used.
+	 */
+	@Override
+	public void close() {
+		comparator.close();
+	}
+
+	/**
+	 * Enables the history-walk mode, in which the parse results of recently compared files are kept. The after side
+	 * of a commit is usually the before side of the next one, so walking a linear history parses most files once.
+	 *
+	 * @param maxFiles the number of files whose parse results are kept, or 0 to parse every file of every commit
+	 */
+	public void setFragmentCacheSize(int maxFiles) {
+		parser.setFragmentCacheSize(maxFiles);
+		fragmentCacheSize = maxFiles;
+	}
+
+	/**
+	 * Keeps the parse results of files on disk, so that files unchanged since an earlier comparison, possibly of
+	 * another session, are not parsed again.
+	 *
+	 * @param maxBytes the size of the cache, or 0 to parse every file
+	 * @see LanguagePlugin#setDiskCacheSize(long)
+	 */
+	public void setDiskCacheSize(long maxBytes) {
+		parser.setDiskCacheSize(maxBytes);
+	}
+
+	/**
+	 * Keeps the diffs computed for commits in a persistent store, so that a commit compared again is only read from 
+	 * the store. Diffs are stored by commit hash, id and version of the language plugin, and comparison settings.
+	 * The nodes of a diff read from the store parse their files again on first use.
+	 *
+	 * @param resultStore the store of computed diffs, e.g. {@link CstDiffStore#getInstance()}, or null to compare 
+	 *                    every commit
+	 */
+	public void setResultStore(CstDiffStore resultStore) {
+		this.resultStore = resultStore;
+	}
+
+	/**
+	 * Publishes the relationships of the diffs computed by this instance as soon as they are found. Diffs read from 
+	 * the result store are returned at once, without notifying the listener.
+	 *
+	 * @param listener receives each relationship, on the comparing thread
+	 * @see CstComparator#addRelationshipListener(RelationshipListener)
+	 */
+	public void addRelationshipListener(RelationshipListener listener) {
+		comparator.addRelationshipListener(listener);
+	}
+
+	/**
+	 * Emits the statistics of each comparison step as Java Flight Recorder events. They are always reported to the 
+	 * monitor passed to {@code computeDiffForCommit}.
+	 *
+	 * @see CstComparator#setJfrEventsEnabled(boolean)
+	 */
+	public void setJfrEventsEnabled(boolean jfrEvents) {
+		comparator.setJfrEventsEnabled(jfrEvents);
+	}
+
 	/**
 	 * Compute CST diff for commit
 	 *
@@ -42,14 +135,13 @@ public class RefDiff {
 	 */
 	public CstDiff computeDiffForCommit(final Project project, String commitSha1) throws VcsException {
 		GitRepository repo = GitHelper.openRepository(project);
-		PairBeforeAfter<SourceFileSet> beforeAndAfter = GitHelper.getSourcesBeforeAndAfterCommit(repo, commitSha1, fileFilter);
-		return comparator.compare(beforeAndAfter);
+		return computeDiffForCommit(repo, commitSha1);
 	}
 
 	public CstDiff computeDiffForCommit(final Project project, GitCommit commit) {
 		GitRepository repo = GitHelper.openRepository(project);
 		PairBeforeAfter<SourceFileSet> beforeAndAfter = GitHelper.getSourcesBeforeAndAfterCommit(repo, commit, fileFilter);
-		return comparator.compare(beforeAndAfter);
+		return compare(commit.getId().asString(), beforeAndAfter, new CstComparatorMonitor() {});
 	}
 
 
@@ -62,8 +154,9 @@ public class RefDiff {
 	 * @throws VcsException if there is a problem with running git
 	 */
 	public CstDiff computeDiffForCommit(final GitRepository repo, String commitSha1) throws VcsException {
-		PairBeforeAfter<SourceFileSet> beforeAfter = GitHelper.getSourcesBeforeAndAfterCommit(repo, commitSha1,fileFilter);
-		return comparator.compare(beforeAfter);
+		// Resolved first, so that diffs are stored by full hash whatever revision is given
+		GitCommit commit = GitHistoryUtils.history(repo.getProject(), repo.getRoot(), commitSha1, "-1").get(0);
+		return computeDiffForCommit(repo, commit);
 	}
 
 	/**
@@ -76,7 +169,257 @@ public class RefDiff {
 	public CstDiff computeDiffForCommit(final GitRepository repo, GitCommit commit)
 	{
 		PairBeforeAfter<SourceFileSet> beforeAfter = GitHelper.getSourcesBeforeAndAfterCommit(repo, commit, fileFilter);
-		return comparator.compare(beforeAfter);
+		return compare(commit.getId().asString(), beforeAfter, new CstComparatorMonitor() {});
+	}
+
+	/**
+	 * Compute CST diff for commit, from sources that were already fetched, for instance once for several language
+	 * plugins. Only the files allowed by the language plugin are compared.
+	 *
+	 * @param commit  commit to analyze
+	 * @param sources files of the commit, e.g. from {@link GitHelper#getSourcesBeforeAndAfterCommit}
+	 * @return computed CST Diff
+	 */
+	public CstDiff computeDiffForCommit(GitCommit commit, PairBeforeAfter<SourceFileSet> sources) {
+		return computeDiffForCommit(commit, sources, new CstComparatorMonitor() {});
+	}
+
+	/**
+	 * Compute CST diff for commit, from sources that were already fetched, reporting the progress of the comparison.
+	 * The diff is read from the result store without notifying the monitor, if it was stored.
+	 *
+	 * @param commit  commit to analyze
+	 * @param sources files of the commit, e.g. from {@link GitHelper#getSourcesBeforeAndAfterCommit}
+	 * @param monitor receives the phases of the comparison and may cancel it
+	 * @return computed CST Diff
+	 */
+	public CstDiff computeDiffForCommit(GitCommit commit, PairBeforeAfter<SourceFileSet> sources, CstComparatorMonitor monitor) {
+		PairBeforeAfter<SourceFileSet> beforeAfter = new PairBeforeAfter<>(sources.getBefore().filter(fileFilter),
+				sources.getAfter().filter(fileFilter));
+		return compare(commit.getId().asString(), beforeAfter, monitor);
+	}
+
+	/**
+	 * @return the filter of the files compared by the language plugin
+	 */
+	public FilePathFilter getFileFilter() {
+		return fileFilter;
+	}
+
+	private CstDiff compare(String commitSha1, PairBeforeAfter<SourceFileSet> beforeAfter, CstComparatorMonitor monitor) {
+		CstDiffStore store = resultStore;
+		if (store == null) {
+			return comparator.compare(beforeAfter.getBefore(), beforeAfter.getAfter(), monitor);
+		}
+		String key = String.join("/", commitSha1, parser.getId(), parser.getVersion(), comparator.getSettingsKey());
+		Optional<CstDiff> storedDiff = store.get(key, filesOf(beforeAfter.getBefore()), filesOf(beforeAfter.getAfter()));
+		if (storedDiff.isPresent()) {
+			return storedDiff.get();
+		}
+		CstDiff diff = comparator.compare(beforeAfter.getBefore(), beforeAfter.getAfter(), monitor);
+		store.put(key, diff);
+		return diff;
+	}
+
+	private Function<String, Supplier<PsiFile>> filesOf(SourceFileSet sources) {
+		Map<String, SourceFile> sourceFiles = new HashMap<>();
+		for (SourceFile sourceFile : sources.getSourceFiles()) {
+			sourceFiles.put(sourceFile.getPath(), sourceFile);
+		}
+		return path -> {
+			SourceFile sourceFile = sourceFiles.get(path);
+			return sourceFile != null ? parser.getFileSupplier(sources, sourceFile) : () -> null;
+		};
+	}
+
+	/**
+	 * Compute CST diffs for every commit of a range, with one worker per available processor
+	 *
+	 * @see #computeDiffsForRange(GitRepository, String, String, int, BiConsumer)
+	 */
+	public void computeDiffsForRange(final GitRepository repo, String from, String to, BiConsumer<GitCommit, CstDiff> consumer) throws VcsException {
+		computeDiffsForRange(repo, from, to, Runtime.getRuntime().availableProcessors(), consumer);
+	}
+
+	/**
+	 * Compute CST diffs for every non-merge commit reachable from {@code to} but not from {@code from}. History is
+	 * streamed from a single git process to parallel workers through a bounded queue, so memory does not depend on
+	 * the length of the range. Each diff is passed to {@code consumer} as soon as it is computed, from a worker
+	 * thread. Calls to the consumer do not overlap, but they follow the completion of the comparisons rather than the
+	 * history order.
+	 *
+	 * <p>Each worker takes runs of up to {@value #CONSECUTIVE_COMMITS_PER_WORKER} consecutive commits, so that files
+	 * changed by both a commit and its parent are parsed once, through the fragment cache. Unless a cache size was
+	 * set, the history-walk mode is enabled for the duration of the walk.
+	 *
+	 * <p>If a comparison or the consumer fails, no more commits are read, the pending ones are skipped and the 
+	 * exception or error is rethrown once all workers have stopped.
+	 *
+	 * @param repo     git repository for current analysis
+	 * @param from     the excluded end of the range, or null to walk the whole history of {@code to}
+	 * @param to       the included end of the range, e.g. a commit hash or a branch
+	 * @param workers  the number of commits compared in parallel
+	 * @param consumer receives each commit and its CST diff
+	 * @throws VcsException if there is a problem with running git
+	 */
+	public void computeDiffsForRange(final GitRepository repo, String from, String to, int workers, BiConsumer<GitCommit, CstDiff> consumer) throws VcsException {
+		if (workers < 1) {
+			throw new IllegalArgumentException("workers should be positive");
+		}
+		BlockingQueue<Optional<List<GitCommit>>> queue = new ArrayBlockingQueue<>(QUEUED_RUNS_PER_WORKER * workers);
+		boolean walkCache = fragmentCacheSize == 0;
+		if (walkCache) {
+			parser.setFragmentCacheSize(FRAGMENT_CACHE_FILES_PER_WORKER * workers);
+		}
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		List<Thread> threads = new ArrayList<>(workers);
+		for (int i = 0; i < workers; i++) {
+			Thread thread = new Thread(() -> compareQueuedCommits(repo, queue, failure, consumer), "RefDiff worker " + (i + 1));
+			thread.setDaemon(true);
+			thread.start();
+			threads.add(thread);
+		}
+
+		String range = from == null ? to : from + ".." + to;
+		boolean interrupted = false;
+		try {
+			// History is streamed from a single git process, whose output is only read while the queue has room
+			CommitRuns runs = new CommitRuns(queue, threads, failure);
+			try {
+				GitHistoryUtils.loadDetails(repo.getProject(), repo.getRoot(), runs, range, "--no-merges");
+				runs.flush();
+			} catch (ProcessCanceledException e) {
+				if (!runs.stopped) {
+					throw e;
+				}
+			}
+			interrupted = runs.interrupted;
+		} finally {
+			if (interrupted) {
+				failure.compareAndSet(null, new IllegalStateException("Interrupted while reading history"));
+				threads.forEach(Thread::interrupt);
+			} else {
+				// Each worker stops at the first end marker it takes. The queue may be full, so markers are waited for 
+				// as long as some worker is alive to take them
+				try {
+					boolean queued = true;
+					for (int i = 0; i < workers && queued; i++) {
+						queued = offerWhileWorkersAlive(queue, Optional.empty(), threads);
+					}
+				} catch (InterruptedException e) {
+					interrupted = true;
+					failure.compareAndSet(null, new IllegalStateException("Interrupted while stopping workers"));
+					threads.forEach(Thread::interrupt);
+				}
+			}
+			for (Thread thread : threads) {
+				try {
+					thread.join();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			if (walkCache) {
+				parser.setFragmentCacheSize(0);
+			}
+		}
+		Throwable t = failure.get();
+		if (t instanceof RuntimeException) {
+			throw (RuntimeException) t;
+		} else if (t instanceof Error) {
+			throw (Error) t;
+		} else if (t != null) {
+			throw new IllegalStateException(t);
+		}
+	}
+
+	/**
+	 * Waits for room in the queue as long as some worker is alive to take from it.
+	 * 
+	 * @return False if every worker has stopped before {@code item} could be queued
+	 */
+	private static <E> boolean offerWhileWorkersAlive(BlockingQueue<E> queue, E item, List<Thread> threads) throws InterruptedException {
+		while (!queue.offer(item, QUEUE_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+			if (threads.stream().noneMatch(Thread::isAlive)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Groups the commits read from git into runs of consecutive commits, and queues each run once complete. Reading 
+	 * is stopped by throwing {@link ProcessCanceledException} once the range has failed, every worker has stopped or 
+	 * the reading thread was interrupted.
+	 */
+	private static class CommitRuns implements Consumer<GitCommit> {
+		private final BlockingQueue<Optional<List<GitCommit>>> queue;
+		private final List<Thread> threads;
+		private final AtomicReference<Throwable> failure;
+		private List<GitCommit> run = new ArrayList<>(CONSECUTIVE_COMMITS_PER_WORKER);
+		boolean stopped = false;
+		boolean interrupted = false;
+
+		CommitRuns(BlockingQueue<Optional<List<GitCommit>>> queue, List<Thread> threads, AtomicReference<Throwable> failure) {
+			this.queue = queue;
+			this.threads = threads;
+			this.failure = failure;
+		}
+
+		@Override
+		public void consume(GitCommit commit) {
+			run.add(commit);
+			if (run.size() == CONSECUTIVE_COMMITS_PER_WORKER) {
+				flush();
+			}
+		}
+
+		/**
+		 * Queues the commits read since the last run, if any.
+		 */
+		void flush() {
+			if (run.isEmpty()) {
+				return;
+			}
+			try {
+				stopped = failure.get() != null || !offerWhileWorkersAlive(queue, Optional.of(run), threads);
+			} catch (InterruptedException e) {
+				stopped = true;
+				interrupted = true;
+			}
+			run = new ArrayList<>(CONSECUTIVE_COMMITS_PER_WORKER);
+			if (stopped) {
+				throw new ProcessCanceledException();
+			}
+		}
+	}
+
+	private void compareQueuedCommits(GitRepository repo, BlockingQueue<Optional<List<GitCommit>>> queue,
+									  AtomicReference<Throwable> failure, BiConsumer<GitCommit, CstDiff> consumer) {
+		try {
+			for (Optional<List<GitCommit>> next = queue.take(); next.isPresent(); next = queue.take()) {
+				// In history order, the before side of a commit is mostly the after side of the next one
+				for (GitCommit commit : next.get()) {
+					if (failure.get() != null) {
+						break;
+					}
+					try {
+						CstDiff diff = computeDiffForCommit(repo, commit);
+						synchronized (consumer) {
+							consumer.accept(commit, diff);
+						}
+					} catch (Throwable e) {
+						// Errors are recorded too, so that the range fails instead of waiting for a dead worker
+						failure.compareAndSet(null, e);
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			// The range is abandoned
+		}
 	}
 
 }
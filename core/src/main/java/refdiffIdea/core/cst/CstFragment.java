@@ -0,0 +1,336 @@
+package refdiffIdea.core.cst;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import com.intellij.psi.PsiFile;
+
+/**
+ * The part of a CST built from a single source file. Fragments are built independently of each other, so that files
+ * can be parsed concurrently, and are then merged into a {@link CstRoot}.
+ * 
+ * <p>Nodes are numbered from 1 within a fragment and renumbered when merged, so that node ids follow the order of 
+ * the fragments. As ids are not final until then, relationships are recorded between nodes, or between a node and
+ * the unique names of other nodes, possibly declared in other files.
+ */
+public class CstFragment implements HasChildrenNodes {
+	
+	/**
+	 * The version of the binary form written by {@link #write}, which changes whenever that form does.
+	 */
+	public static final int FORMAT_VERSION = 0x52440002;
+	
+	private final String file;
+	private final List<CstNode> nodes = new ArrayList<>();
+	private final List<CstNode> createdNodes = new ArrayList<>();
+	private final Map<String, CstNode> nodesByUniqueName = new HashMap<>();
+	private final List<PendingRelationship> relationships = new ArrayList<>();
+	private TokenizedSource tokenizedSource;
+	
+	public CstFragment(String file) {
+		this.file = file;
+	}
+	
+	public String getFile() {
+		return file;
+	}
+	
+	/**
+	 * @return A new node, with an id local to this fragment.
+	 */
+	public CstNode createNode() {
+		CstNode node = new CstNode(createdNodes.size() + 1);
+		createdNodes.add(node);
+		return node;
+	}
+	
+	/**
+	 * The top-level nodes declared in the file.
+	 */
+	@Override
+	public List<CstNode> getNodes() {
+		return nodes;
+	}
+	
+	@Override
+	public void addNode(CstNode node) {
+		nodes.add(node);
+	}
+	
+	public TokenizedSource getTokenizedSource() {
+		return tokenizedSource;
+	}
+	
+	public void setTokenizedSource(TokenizedSource tokenizedSource) {
+		this.tokenizedSource = tokenizedSource;
+	}
+	
+	/**
+	 * Declares the unique name of a node, which relationships of any fragment may refer to. If several nodes have 
+	 * the same unique name, the last one declared in the last fragment wins.
+	 */
+	public void linkNodeToName(String uniqueName, CstNode node) {
+		nodesByUniqueName.put(uniqueName, node);
+	}
+	
+	public void addRelationship(CstNodeRelationshipType type, CstNode n1, CstNode n2) {
+		relationships.add(new PendingRelationship(type, n1, n2, null));
+	}
+	
+	/**
+	 * Adds a relationship from {@code node} to each node whose unique name is in {@code uniqueNames}. Names of nodes
+	 * that are not in the merged CST are ignored.
+	 */
+	public void addRelationships(CstNodeRelationshipType type, CstNode node, List<String> uniqueNames) {
+		for (String uniqueName : uniqueNames) {
+			relationships.add(new PendingRelationship(type, node, null, uniqueName));
+		}
+	}
+	
+	/**
+	 * Copies the nodes, names and relationships of this fragment, so that the copy can be merged into another CST. 
+	 * Locations, parameters and token positions are shared, as they are not modified once parsed. This fragment 
+	 * must not have been merged yet, so that its nodes still have local ids.
+	 */
+	public CstFragment copy() {
+		CstFragment copy = new CstFragment(file);
+		Map<CstNode, CstNode> copies = new HashMap<>();
+		for (CstNode node : createdNodes) {
+			CstNode nodeCopy = copy.createNode();
+			nodeCopy.setFileSupplier(node.getFileSupplier());
+			nodeCopy.setType(node.getType());
+			nodeCopy.setLocation(node.getLocation());
+			nodeCopy.setSimpleName(node.getSimpleName());
+			nodeCopy.setLocalName(node.getLocalName());
+			nodeCopy.setNamespace(node.getNamespace());
+			nodeCopy.setStereotypes(new HashSet<>(node.getStereotypes()));
+			nodeCopy.setParameters(new ArrayList<>(node.getParameters()));
+			copies.put(node, nodeCopy);
+		}
+		for (CstNode node : createdNodes) {
+			for (CstNode child : node.getNodes()) {
+				copies.get(node).addNode(copies.get(child));
+			}
+		}
+		for (CstNode node : nodes) {
+			copy.addNode(copies.get(node));
+		}
+		for (Map.Entry<String, CstNode> entry : nodesByUniqueName.entrySet()) {
+			copy.linkNodeToName(entry.getKey(), copies.get(entry.getValue()));
+		}
+		for (PendingRelationship relationship : relationships) {
+			CstNode n2 = relationship.n2 != null ? copies.get(relationship.n2) : null;
+			copy.relationships.add(new PendingRelationship(relationship.type, copies.get(relationship.n1), n2, relationship.uniqueName));
+		}
+		copy.tokenizedSource = tokenizedSource;
+		return copy;
+	}
+	
+	/**
+	 * Writes this fragment in a compact binary form, without the path of its file, so that it can be read back for 
+	 * any file with the same content. This fragment must not have been merged yet. Stereotypes and relationship types
+	 * are written by name, so that reordering their constants does not change the meaning of stored fragments.
+	 */
+	public void write(DataOutput out) throws IOException {
+		out.writeInt(FORMAT_VERSION);
+		out.writeInt(tokenizedSource.size());
+		for (int i = 0; i < tokenizedSource.size(); i++) {
+			out.writeInt(tokenizedSource.getStart(i));
+			out.writeInt(tokenizedSource.getEnd(i));
+		}
+		out.writeInt(createdNodes.size());
+		for (CstNode node : createdNodes) {
+			writeString(out, node.getType());
+			writeString(out, node.getSimpleName());
+			writeString(out, node.getLocalName());
+			writeString(out, node.getNamespace());
+			Location location = node.getLocation();
+			out.writeInt(location.getBegin());
+			out.writeInt(location.getEnd());
+			out.writeInt(location.getLine());
+			out.writeInt(location.getBodyBegin());
+			out.writeInt(location.getBodyEnd());
+			out.writeInt(node.getStereotypes().size());
+			for (Stereotype stereotype : node.getStereotypes()) {
+				writeString(out, stereotype.name());
+			}
+			out.writeInt(node.getParameters().size());
+			for (Parameter parameter : node.getParameters()) {
+				writeString(out, parameter.getName());
+			}
+			writeIds(out, node.getNodes());
+		}
+		writeIds(out, nodes);
+		out.writeInt(nodesByUniqueName.size());
+		for (Map.Entry<String, CstNode> entry : nodesByUniqueName.entrySet()) {
+			writeString(out, entry.getKey());
+			out.writeInt(entry.getValue().getId());
+		}
+		out.writeInt(relationships.size());
+		for (PendingRelationship relationship : relationships) {
+			writeString(out, relationship.type.name());
+			out.writeInt(relationship.n1.getId());
+			out.writeInt(relationship.n2 != null ? relationship.n2.getId() : 0);
+			writeString(out, relationship.uniqueName);
+		}
+	}
+	
+	/**
+	 * Reads a fragment written by {@link #write}.
+	 * 
+	 * @param in   The serialized fragment, read from its current position.
+	 * @param file The path of the file of the fragment.
+	 * @param psiFile Supplies the parsed file of every node, if needed.
+	 * @throws IOException If the data was not written by this version of {@link #write}.
+	 */
+	public static CstFragment read(ByteBuffer in, String file, Supplier<PsiFile> psiFile) throws IOException {
+		try {
+			if (in.getInt() != FORMAT_VERSION) {
+				throw new IOException("Unknown fragment format");
+			}
+			CstFragment fragment = new CstFragment(file);
+			int tokenCount = in.getInt();
+			TokenizedSource.Builder tokens = new TokenizedSource.Builder(file);
+			for (int i = 0; i < tokenCount; i++) {
+				tokens.add(in.getInt(), in.getInt());
+			}
+			fragment.tokenizedSource = tokens.build();
+			int nodeCount = in.getInt();
+			for (int i = 0; i < nodeCount; i++) {
+				fragment.createNode();
+			}
+			int[][] children = new int[nodeCount][];
+			for (CstNode node : fragment.createdNodes) {
+				node.setFileSupplier(psiFile);
+				node.setType(readString(in));
+				node.setSimpleName(readString(in));
+				node.setLocalName(readString(in));
+				node.setNamespace(readString(in));
+				int begin = in.getInt();
+				int end = in.getInt();
+				int line = in.getInt();
+				node.setLocation(new Location(file, begin, end, line, in.getInt(), in.getInt()));
+				for (int count = in.getInt(); count > 0; count--) {
+					node.addStereotypes(Stereotype.valueOf(readString(in)));
+				}
+				for (int count = in.getInt(); count > 0; count--) {
+					node.getParameters().add(new Parameter(readString(in)));
+				}
+				children[node.getId() - 1] = readIds(in);
+			}
+			for (CstNode node : fragment.createdNodes) {
+				for (int id : children[node.getId() - 1]) {
+					node.addNode(fragment.createdNodes.get(id - 1));
+				}
+			}
+			for (int id : readIds(in)) {
+				fragment.addNode(fragment.createdNodes.get(id - 1));
+			}
+			for (int count = in.getInt(); count > 0; count--) {
+				String uniqueName = readString(in);
+				fragment.linkNodeToName(uniqueName, fragment.createdNodes.get(in.getInt() - 1));
+			}
+			for (int count = in.getInt(); count > 0; count--) {
+				CstNodeRelationshipType type = CstNodeRelationshipType.valueOf(readString(in));
+				CstNode n1 = fragment.createdNodes.get(in.getInt() - 1);
+				int n2 = in.getInt();
+				String uniqueName = readString(in);
+				fragment.relationships.add(new PendingRelationship(type, n1, n2 != 0 ? fragment.createdNodes.get(n2 - 1) : null, uniqueName));
+			}
+			return fragment;
+		} catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException | NullPointerException e) {
+			throw new IOException("Truncated or corrupted fragment", e);
+		}
+	}
+	
+	private static void writeIds(DataOutput out, List<CstNode> nodes) throws IOException {
+		out.writeInt(nodes.size());
+		for (CstNode node : nodes) {
+			out.writeInt(node.getId());
+		}
+	}
+	
+	private static int[] readIds(ByteBuffer in) {
+		int[] ids = new int[in.getInt()];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = in.getInt();
+		}
+		return ids;
+	}
+	
+	private static void writeString(DataOutput out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+		} else {
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+	
+	private static String readString(ByteBuffer in) {
+		int length = in.getInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Merges fragments into a CST, in the given order. The nodes of each fragment are numbered after the nodes of 
+	 * the previous ones, and relationships by unique name are resolved against the nodes of all fragments.
+	 */
+	public static CstRoot merge(List<CstFragment> fragments) {
+		CstRoot root = new CstRoot();
+		Map<String, CstNode> nodesByUniqueName = new HashMap<>();
+		int offset = 0;
+		for (CstFragment fragment : fragments) {
+			for (CstNode node : fragment.createdNodes) {
+				node.setId(offset + node.getId());
+			}
+			offset += fragment.createdNodes.size();
+			for (CstNode node : fragment.nodes) {
+				root.addNode(node);
+			}
+			if (fragment.tokenizedSource != null) {
+				root.addTokenizedFile(fragment.tokenizedSource);
+			}
+			nodesByUniqueName.putAll(fragment.nodesByUniqueName);
+		}
+		for (CstFragment fragment : fragments) {
+			for (PendingRelationship relationship : fragment.relationships) {
+				CstNode n2 = relationship.n2 != null ? relationship.n2 : nodesByUniqueName.get(relationship.uniqueName);
+				if (n2 != null) {
+					root.getRelationships().add(new CstNodeRelationship(relationship.type, relationship.n1.getId(), n2.getId()));
+				}
+			}
+		}
+		return root;
+	}
+	
+	private static class PendingRelationship {
+		private final CstNodeRelationshipType type;
+		private final CstNode n1;
+		private final CstNode n2;
+		private final String uniqueName;
+		
+		PendingRelationship(CstNodeRelationshipType type, CstNode n1, CstNode n2, String uniqueName) {
+			this.type = type;
+			this.n1 = n1;
+			this.n2 = n2;
+			this.uniqueName = uniqueName;
+		}
+	}
+	
+}
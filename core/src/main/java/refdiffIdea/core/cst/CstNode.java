@@ -5,6 +5,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
 import java.util.Set;
+import java.util.function.Supplier;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonInclude;
@@ -17,8 +18,8 @@ import com.intellij.psi.PsiFile;
  * in Java we represent classes, interfaces, enums, and methods as CST nodes.
  */
 public class CstNode implements HasChildrenNodes {
-	private final int id;
-	private PsiFile file;
+	private int id;
+	private Supplier<PsiFile> file = () -> null;
 	private String type;
 	private Location location;
 	private String simpleName;
@@ -45,6 +46,13 @@ public class CstNode implements HasChildrenNodes {
 		return id;
 	}
 	
+	/**
+	 * Renumbers a node of a {@link CstFragment} when it is merged into a CST.
+	 */
+	void setId(int id) {
+		this.id = id;
+	}
+	
 	/**
 	 * @return The type of the code element in the target programming language.
 	 */
@@ -204,10 +212,22 @@ public class CstNode implements HasChildrenNodes {
 	}
 
 	public PsiFile getFile() {
-		return file;
+		return file.get();
 	}
 
 	public void setFile(PsiFile file) {
+		this.file = () -> file;
+	}
+	
+	/**
+	 * Sets a supplier of the file of this node, for nodes that are not built from a parsed file. The supplier is 
+	 * called by every call to {@link #getFile()}, so it should create the file only once.
+	 */
+	public void setFileSupplier(Supplier<PsiFile> file) {
 		this.file = file;
 	}
+	
+	Supplier<PsiFile> getFileSupplier() {
+		return file;
+	}
 }
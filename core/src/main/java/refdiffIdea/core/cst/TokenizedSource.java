@@ -1,30 +1,126 @@
 package refdiffIdea.core.cst;
 
+import java.util.Arrays;
 import java.util.List;
 
+/**
+ * The positions of the tokens of a source file, in the order they appear in the file. Positions are stored in a 
+ * single array, holding the start and the end offsets of each token in turn, and are read by token index.
+ */
 public class TokenizedSource {
 	
 	public static final int START = 0;
 	public static final int END = 1;
+	private static final int FIELDS = 2;
 	private final String file;
-	private final int[][] tokens;
+	private final int[] positions;
+	private final int size;
 	
 	public TokenizedSource(String file, List<TokenPosition> tokens) {
 		this.file = file;
-		this.tokens = new int[tokens.size()][2];
-		for (int i = 0; i < tokens.size(); i++) {
+		this.size = tokens.size();
+		this.positions = new int[size * FIELDS];
+		for (int i = 0; i < size; i++) {
 			TokenPosition token = tokens.get(i);
-			this.tokens[i][START] = token.getStart();
-			this.tokens[i][END] = token.getEnd();
+			this.positions[i * FIELDS + START] = token.getStart();
+			this.positions[i * FIELDS + END] = token.getEnd();
 		}
 	}
 	
+	private TokenizedSource(String file, int[] positions, int size) {
+		this.file = file;
+		this.positions = positions;
+		this.size = size;
+	}
+	
 	public String getFile() {
 		return file;
 	}
 	
+	/**
+	 * @return The number of tokens.
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * @return The offset of the first character of the i-th token.
+	 */
+	public int getStart(int i) {
+		return positions[i * FIELDS + START];
+	}
+	
+	/**
+	 * @return The offset after the last character of the i-th token.
+	 */
+	public int getEnd(int i) {
+		return positions[i * FIELDS + END];
+	}
+	
+	/**
+	 * @return The positions of the tokens, as a new array holding the {@link #START} and {@link #END} offsets of each
+	 * token.
+	 * @deprecated Allocates an array per token. Use {@link #size()}, {@link #getStart(int)} and {@link #getEnd(int)}.
+	 */
+	@Deprecated
 	public int[][] getTokens() {
+		int[][] tokens = new int[size][FIELDS];
+		for (int i = 0; i < size; i++) {
+			tokens[i][START] = getStart(i);
+			tokens[i][END] = getEnd(i);
+		}
 		return tokens;
 	}
 	
+	/**
+	 * Finds the first token starting at or after {@code offset} by binary search, as tokens are stored in the order
+	 * they appear in the file.
+	 * 
+	 * @return The index of that token, or the number of tokens if there is none.
+	 */
+	public int indexOfFirstTokenFrom(int offset) {
+		int low = 0;
+		int high = size;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (getStart(mid) < offset) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+	
+	/**
+	 * Accumulates token positions in a growable array, without an object per token.
+	 */
+	public static class Builder {
+		private final String file;
+		private int[] positions = new int[256];
+		private int size = 0;
+		
+		public Builder(String file) {
+			this.file = file;
+		}
+		
+		/**
+		 * Appends a token, which must not start before the previously added one.
+		 */
+		public Builder add(int start, int end) {
+			if (size * FIELDS == positions.length) {
+				positions = Arrays.copyOf(positions, positions.length * 2);
+			}
+			positions[size * FIELDS + START] = start;
+			positions[size * FIELDS + END] = end;
+			size++;
+			return this;
+		}
+		
+		public TokenizedSource build() {
+			return new TokenizedSource(file, Arrays.copyOf(positions, size * FIELDS), size);
+		}
+	}
+	
 }
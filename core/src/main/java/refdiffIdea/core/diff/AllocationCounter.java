@@ -0,0 +1,31 @@
+package refdiffIdea.core.diff;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Reads the number of bytes allocated by the current thread, on JVMs that measure it.
+ */
+class AllocationCounter {
+	
+	private static final com.sun.management.ThreadMXBean THREADS = findThreadBean();
+	
+	/**
+	 * @return The number of bytes allocated by the current thread since it started, or -1 if it is not measured.
+	 */
+	static long currentThread() {
+		return THREADS != null ? THREADS.getThreadAllocatedBytes(Thread.currentThread().getId()) : -1;
+	}
+	
+	private static com.sun.management.ThreadMXBean findThreadBean() {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			com.sun.management.ThreadMXBean allocationThreads = (com.sun.management.ThreadMXBean) threads;
+			if (allocationThreads.isThreadAllocatedMemorySupported() && allocationThreads.isThreadAllocatedMemoryEnabled()) {
+				return allocationThreads;
+			}
+		}
+		return null;
+	}
+	
+}
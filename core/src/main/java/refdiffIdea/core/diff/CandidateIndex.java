@@ -0,0 +1,19 @@
+package refdiffIdea.core.diff;
+
+import java.util.Set;
+
+import refdiffIdea.core.cst.CstNode;
+
+/**
+ * Proposes the nodes of one side of a diff that are worth comparing with a node of the other side, so that 
+ * similarity is not computed for every pair of removed and added nodes.
+ */
+public interface CandidateIndex<T> {
+	
+	/**
+	 * @param sourceRep The source representation of a node from the other side of the diff.
+	 * @return The indexed nodes that should be compared with that node.
+	 */
+	Set<CstNode> findCandidates(T sourceRep);
+	
+}
@@ -0,0 +1,37 @@
+package refdiffIdea.core.diff;
+
+/**
+ * The phases of a comparison, in the order they are entered.
+ * 
+ * @see CstComparatorMonitor#beforePhase(ComparisonPhase)
+ */
+public enum ComparisonPhase {
+	
+	/**
+	 * Building the CSTs of both revisions.
+	 */
+	PARSE("Parsing source files"),
+	/**
+	 * Computing the source representations of removed and added nodes.
+	 */
+	REPRESENT("Computing source representations"),
+	/**
+	 * Matching removed nodes with added nodes, by id, by name, by similarity and by children.
+	 */
+	MATCH("Matching nodes"),
+	/**
+	 * Inferring the relationships of matched nodes, and finding extracted and inlined nodes.
+	 */
+	INFER("Inferring refactorings");
+	
+	private final String description;
+	
+	private ComparisonPhase(String description) {
+		this.description = description;
+	}
+	
+	public String getDescription() {
+		return description;
+	}
+	
+}
@@ -0,0 +1,44 @@
+package refdiffIdea.core.diff;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * The statistics of every step of a comparison, in the order the steps were run.
+ * 
+ * @see CstComparatorMonitor#reportComparison(ComparisonReport)
+ */
+public class ComparisonReport {
+	
+	private final List<StepStatistics> steps;
+	
+	public ComparisonReport(List<StepStatistics> steps) {
+		this.steps = Collections.unmodifiableList(steps);
+	}
+	
+	public List<StepStatistics> getSteps() {
+		return steps;
+	}
+	
+	public Optional<StepStatistics> getStep(ComparisonStep step) {
+		return steps.stream().filter(statistics -> statistics.getStep() == step).findFirst();
+	}
+	
+	/**
+	 * @return The elapsed time of all steps, in nanoseconds.
+	 */
+	public long getWallTime() {
+		return steps.stream().mapToLong(StepStatistics::getWallTime).sum();
+	}
+	
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (StepStatistics statistics : steps) {
+			sb.append(statistics).append('\n');
+		}
+		return sb.toString();
+	}
+	
+}
@@ -0,0 +1,58 @@
+package refdiffIdea.core.diff;
+
+/**
+ * The steps of the comparison of two CSTs, in the order they are run, as reported by {@link ComparisonReport}.
+ */
+public enum ComparisonStep {
+	
+	/**
+	 * Counting the document frequencies of the tokens of removed and added nodes. Their source representations are
+	 * built later, when first used.
+	 */
+	BUILD_REPRESENTATIONS,
+	/**
+	 * Matching nodes with the same namespace and signature.
+	 */
+	MATCH_BY_ID,
+	/**
+	 * Matching nodes whose bodies have the same tokens, when no other node has the same body.
+	 */
+	MATCH_BY_BODY_HASH,
+	/**
+	 * Matching nodes with a unique local name on both sides.
+	 */
+	MATCH_BY_UNIQUE_NAME,
+	/**
+	 * Matching nodes by similarity, when they have the same name or location.
+	 */
+	MATCH_BY_SIMILARITY_SAFE,
+	/**
+	 * Matching any remaining nodes by similarity.
+	 */
+	MATCH_BY_SIMILARITY,
+	/**
+	 * Matching nodes sharing matched children.
+	 */
+	MATCH_BY_CHILDREN,
+	/**
+	 * Creating the relationships of matched nodes.
+	 */
+	RELATE_MATCHES,
+	/**
+	 * Finding members pulled up or pushed down.
+	 */
+	PULL_UP_PUSH_DOWN,
+	/**
+	 * Finding extracted supertypes.
+	 */
+	EXTRACT_SUPER,
+	/**
+	 * Finding extracted nodes.
+	 */
+	EXTRACT,
+	/**
+	 * Finding inlined nodes.
+	 */
+	INLINE;
+	
+}
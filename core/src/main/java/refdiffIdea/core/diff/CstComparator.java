@@ -3,6 +3,7 @@ package refdiffIdea.core.diff;
 import static refdiffIdea.core.diff.CstRootHelper.*;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
@@ -12,12 +13,26 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
+import com.intellij.concurrency.SensitiveProgressWrapper;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.util.concurrency.AppExecutorUtil;
+
 import refdiffIdea.core.diff.similarity.SourceRepresentationBuilder;
 import refdiffIdea.core.diff.similarity.TfIdfSourceRepresentationBuilder;
-import refdiffIdea.core.io.SourceFile;
 import refdiffIdea.core.io.SourceFileSet;
 import refdiffIdea.core.cst.HasChildrenNodes;
 import refdiffIdea.core.cst.CstNode;
@@ -27,14 +42,126 @@ import refdiffIdea.core.cst.Stereotype;
 import refdiffIdea.core.util.PairBeforeAfter;
 import refdiffIdea.parsers.LanguagePlugin;
 
-public class CstComparator {
+public class CstComparator implements AutoCloseable {
 	
 	private final LanguagePlugin languagePlugin;
+	private double candidateIndexMargin = 0.0;
+	private int minHashBands = 0;
+	private int minHashRows = 0;
+	private final ThresholdsProvider thresholds = new ThresholdsProvider();
+	private final List<RelationshipListener> relationshipListeners = new CopyOnWriteArrayList<>();
+	private volatile boolean jfrEvents = false;
+	private ForkJoinPool scoringPool = null;
+	
+	/**
+	 * The version of the comparison, which keys stored diffs. Bump it whenever the relationships found in the same
+	 * CSTs with the same settings may change.
+	 */
+	public static final int VERSION = 1;
+	
+	private static final int SCORING_BATCH_SIZE = 16;
+	// Smaller bodies, such as accessors, are too likely to be the same by chance to be matched by their tokens alone
+	static final int MIN_BODY_HASH_TOKENS = 20;
 	
 	public CstComparator(LanguagePlugin parser) {
 		this.languagePlugin = parser;
 	}
 	
+	/**
+	 * Sets the number of threads used to score candidate pairs when matching nodes by unique name, by similarity and 
+	 * by children. Pairs are partitioned by removed node and the candidates are sorted after scoring, so the result 
+	 * does not depend on the parallelism. 
+	 * 
+	 * @param parallelism The number of scoring threads, or 1 to score all pairs in the calling thread.
+	 */
+	public void setParallelism(int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("parallelism should be positive");
+		}
+		if (scoringPool != null) {
+			scoringPool.shutdown();
+		}
+		this.scoringPool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+	}
+	
+	/**
+	 * Shuts down the scoring threads started by {@link #setParallelism(int)}. It should not be called while a 
+	 * comparison is in progress. Later comparisons score all pairs in the calling thread.
+	 */
+	@Override
+	public void close() {
+		if (scoringPool != null) {
+			scoringPool.shutdown();
+			scoringPool = null;
+		}
+	}
+	
+	/**
+	 * Sets how aggressively pairs of nodes are pruned by their shared tokens before their similarity is computed.
+	 * With the default margin of 0.0 only pairs that cannot reach the matching thresholds are pruned, so the result
+	 * is identical to comparing every removed node with every added node. A positive margin also prunes pairs that
+	 * are unlikely to exceed the thresholds by that much, trading recall for speed. A negative margin disables the
+	 * index and compares all pairs.
+	 * 
+	 * @param candidateIndexMargin The similarity added to the matching thresholds when building the candidate index.
+	 */
+	public void setCandidateIndexMargin(double candidateIndexMargin) {
+		this.candidateIndexMargin = candidateIndexMargin;
+	}
+	
+	/**
+	 * Replaces the exact candidate index by an approximate one, meant for commits that add and remove so many nodes 
+	 * that even the exact index proposes too many pairs. Each source representation is summarized by a MinHash 
+	 * sketch of {@code bands * rowsPerBand} values, and only pairs sharing a band of {@code rowsPerBand} values are
+	 * scored. A pair with similarity {@code s} is scored with probability {@code 1 - (1 - s^rowsPerBand)^bands}, 
+	 * so more bands increase recall and more rows per band reduce the number of scored pairs. For instance, 32 bands
+	 * of 4 rows find about 99% of the pairs with similarity 0.6 and 23% of those with similarity 0.3. Pairs of nodes 
+	 * with the same signature are always scored.
+	 * 
+	 * @param bands The number of bands, or 0 to use the exact candidate index.
+	 * @param rowsPerBand The number of sketch values in each band.
+	 */
+	public void setMinHashBands(int bands, int rowsPerBand) {
+		if (bands > 0 && rowsPerBand < 1) {
+			throw new IllegalArgumentException("rowsPerBand should be positive");
+		}
+		this.minHashBands = Math.max(0, bands);
+		this.minHashRows = rowsPerBand;
+	}
+	
+	/**
+	 * Publishes the relationships of every diff computed by this comparator as soon as they are found, for instance
+	 * to show the first refactorings of a large commit before the comparison ends.
+	 */
+	public void addRelationshipListener(RelationshipListener listener) {
+		relationshipListeners.add(listener);
+	}
+	
+	public void removeRelationshipListener(RelationshipListener listener) {
+		relationshipListeners.remove(listener);
+	}
+	
+	/**
+	 * Emits the statistics of each step of a comparison as a {@code refdiff.ComparisonStep} event of Java Flight 
+	 * Recorder, in addition to reporting them to the monitor. Runtimes without Flight Recorder ignore it.
+	 */
+	public void setJfrEventsEnabled(boolean jfrEvents) {
+		this.jfrEvents = jfrEvents && JfrStepEvents.isAvailable();
+	}
+	
+	public ThresholdsProvider getThresholds() {
+		return thresholds;
+	}
+	
+	/**
+	 * @return A description of the version of the comparison and of every setting that may change the relationships
+	 * found by this comparator, including the exact values of its thresholds. Diffs with different keys may differ.
+	 */
+	public String getSettingsKey() {
+		return String.format("v%d:%s:%s:%s:%dx%d", VERSION, Double.toString(thresholds.getMinimum()), Double.toString(thresholds.getIdeal()),
+			Double.toString(candidateIndexMargin), minHashBands, minHashRows);
+	}
+	
 	public CstDiff compare(PairBeforeAfter<SourceFileSet> beforeAndAfter) {
 		return compare(beforeAndAfter.getBefore(), beforeAndAfter.getAfter(), new CstComparatorMonitor() {});
 	}
@@ -51,6 +178,8 @@ public class CstComparator {
 			long end = System.currentTimeMillis();
 			monitor.afterCompare(end - start, diffBuilder);
 			return diff;
+		} catch (ProcessCanceledException e) {
+			throw e;
 		} catch (Exception e) {
 			throw new RuntimeException(e);
 		}
@@ -64,31 +193,75 @@ public class CstComparator {
 		private Set<CstNode> removed;
 		private Set<CstNode> added;
 		//private ArrayList<Double> similaritySame = new ArrayList<>();
-		private ThresholdsProvider threshold = new ThresholdsProvider();
+		private ThresholdsProvider threshold = thresholds;
 		private CstComparatorMonitor monitor;
+		private CandidateIndex<T> candidateIndex;
 		
 		private final Map<CstNode, CstNode> mapBeforeToAfter = new HashMap<>();
 		private final Map<CstNode, CstNode> mapAfterToBefore = new HashMap<>();
 		
+		// Counters of the running step, updated by the scoring threads too
+		private final LongAdder pairCount = new LongAdder();
+		private final LongAdder evaluationCount = new LongAdder();
+		private final LongAdder keptCount = new LongAdder();
+		private final LongAdder scoringAllocations = new LongAdder();
+		private Thread comparingThread;
+		private final List<StepStatistics> steps = new ArrayList<>();
+		
 		DiffBuilder(SourceRepresentationBuilder<T> srb, SourceFileSet sourcesBefore, SourceFileSet sourcesAfter, CstComparatorMonitor monitor) throws Exception {
 			this.srb = srb;
-			CstRoot cstRootBefore = languagePlugin.parse(sourcesBefore);
-			CstRoot cstRootAfter = languagePlugin.parse(sourcesAfter);
+			this.monitor = monitor;
+			monitor.beforePhase(ComparisonPhase.PARSE);
+			// Both sides are parsed concurrently, the before side on a pooled thread of the application rather than on
+			// the common pool, as it blocks while waiting for the files it parses
+			// Without an application, as in benchmarks, there is no progress to follow
+			ProgressIndicator indicator = ApplicationManager.getApplication() != null ? ProgressManager.getInstance().getProgressIndicator() : null;
+			// Canceled along with the calling thread, or on its own if the after side fails
+			ProgressIndicator indicatorBefore = indicator != null ? new SensitiveProgressWrapper(indicator) : null;
+			CompletableFuture<CstRoot> futureRootBefore = CompletableFuture.supplyAsync(() -> {
+				CstRoot[] root = new CstRoot[1];
+				Runnable parse = () -> {
+					try {
+						root[0] = languagePlugin.parse(sourcesBefore);
+					} catch (Exception e) {
+						throw new CompletionException(e);
+					}
+				};
+				// The indicator is only shared: it is started and stopped by its owner, not by this thread
+				if (indicatorBefore != null) {
+					ProgressManager.getInstance().executeProcessUnderProgress(parse, indicatorBefore);
+				} else {
+					parse.run();
+				}
+				return root[0];
+			}, AppExecutorUtil.getAppExecutorService());
+			CstRoot cstRootAfter = null;
+			try {
+				cstRootAfter = languagePlugin.parse(sourcesAfter);
+			} finally {
+				if (cstRootAfter == null) {
+					// The before side is stopped and awaited, so that it does not keep parsing after a failure
+					if (indicatorBefore != null) {
+						indicatorBefore.cancel();
+					}
+					try {
+						futureRootBefore.join();
+					} catch (CompletionException | CancellationException e) {
+						// The failure of the after side is reported instead
+					}
+				}
+			}
+			CstRoot cstRootBefore;
+			try {
+				cstRootBefore = futureRootBefore.join();
+			} catch (CompletionException e) {
+				throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+			}
 			this.diff = new CstDiff(cstRootBefore, cstRootAfter);
 			this.before = new CstRootHelper<>(this.diff.getBefore(), sourcesBefore, srb, true);
 			this.after = new CstRootHelper<>(this.diff.getAfter(), sourcesAfter, srb, false);
 			this.removed = new HashSet<>();
-			this.monitor = monitor;
-			
-			Map<String, String> fileMapBefore = new HashMap<>();
-			Map<String, String> fileMapAfter = new HashMap<>();
 			
-			for (SourceFile fileBefore : sourcesBefore.getSourceFiles()) {
-				fileMapBefore.put(fileBefore.getPath(), sourcesBefore.readContent(fileBefore));
-			}
-			for (SourceFile fileAfter : sourcesAfter.getSourceFiles()) {
-				fileMapAfter.put(fileAfter.getPath(), sourcesAfter.readContent(fileAfter));
-			}
 			this.diff.getBefore().forEachNode((node, depth) -> {
 				this.removed.add(node);
 			});
@@ -124,30 +297,57 @@ public class CstComparator {
 		}
 		
 		CstDiff computeDiff() {
-			computeSourceRepresentationForRemovedAndAdded();
-			findMatchesById();
+			monitor.checkCanceled();
+			monitor.beforePhase(ComparisonPhase.REPRESENT);
+			runStep(ComparisonStep.BUILD_REPRESENTATIONS, this::computeSourceRepresentationForRemovedAndAdded);
+			monitor.beforePhase(ComparisonPhase.MATCH);
+			runStep(ComparisonStep.MATCH_BY_ID, this::findMatchesById);
+			runStep(ComparisonStep.MATCH_BY_BODY_HASH, this::findMatchesByBodyHash);
 			//findMatchesByName();
-			findMatchesByUniqueName(0.75);
-			findMatchesBySimilarity(true);
-			findMatchesBySimilarity(false);
+			runStep(ComparisonStep.MATCH_BY_UNIQUE_NAME, () -> findMatchesByUniqueName(0.75));
+			runStep(ComparisonStep.MATCH_BY_SIMILARITY_SAFE, () -> findMatchesBySimilarity(true));
+			runStep(ComparisonStep.MATCH_BY_SIMILARITY, () -> findMatchesBySimilarity(false));
+			if (candidateIndex instanceof MinHashCandidateIndex) {
+				monitor.reportMinHashStatistics(((MinHashCandidateIndex<T>) candidateIndex).getStatistics());
+			}
 			//findMatchesByUniqueName(0.25);
-			findMatchesByChildren();
-			createRelationshipsForMatchings();
-			findPullPushDownAbstract();
-			findAdditionalPullUpAndPushDown();
-			inferExtractSuper();
-			matchExtract();
-			matchInline();
+			runStep(ComparisonStep.MATCH_BY_CHILDREN, this::findMatchesByChildren);
+			monitor.beforePhase(ComparisonPhase.INFER);
+			runStep(ComparisonStep.RELATE_MATCHES, this::createRelationshipsForMatchings);
+			runStep(ComparisonStep.PULL_UP_PUSH_DOWN, () -> {
+				findPullPushDownAbstract();
+				findAdditionalPullUpAndPushDown();
+			});
+			runStep(ComparisonStep.EXTRACT_SUPER, this::inferExtractSuper);
+			runStep(ComparisonStep.EXTRACT, this::matchExtract);
+			runStep(ComparisonStep.INLINE, this::matchInline);
+			ComparisonReport report = new ComparisonReport(new ArrayList<>(steps));
+			monitor.reportComparison(report);
+			if (jfrEvents) {
+				JfrStepEvents.commit(report);
+			}
 			return diff;
 		}
 		
+		private void runStep(ComparisonStep step, Runnable action) {
+			pairCount.reset();
+			evaluationCount.reset();
+			keptCount.reset();
+			scoringAllocations.reset();
+			comparingThread = Thread.currentThread();
+			long allocatedBefore = AllocationCounter.currentThread();
+			long start = System.nanoTime();
+			action.run();
+			long wallTime = System.nanoTime() - start;
+			long allocated = allocatedBefore < 0 ? -1 : AllocationCounter.currentThread() - allocatedBefore + scoringAllocations.sum();
+			steps.add(new StepStatistics(step, wallTime, pairCount.sum(), evaluationCount.sum(), keptCount.sum(), allocated));
+		}
+		
 		private void computeSourceRepresentationForRemovedAndAdded() {
-			for (CstNode node : removed) {
-				before.computeSourceRepresentation(node);
-			}
-			for (CstNode node : added) {
-				after.computeSourceRepresentation(node);
-			}
+			// Every node is removed or added at this point. Only the document frequencies are counted here, the
+			// source representations are built when first used
+			before.countTokens(monitor::checkCanceled);
+			after.countTokens(monitor::checkCanceled);
 		}
 		
 //		@SuppressWarnings("unused")
@@ -205,38 +405,68 @@ public class CstComparator {
 //			}
 //		}
 		
-		private void findMatchesByUniqueName(double threshold) {
+		/**
+		 * Matches the nodes whose bodies have the same tokens, if no other removed or added node has a body with the
+		 * same hash. Nodes moved or renamed without changing their body are matched without computing any similarity.
+		 */
+		private void findMatchesByBodyHash() {
 			List<PotentialMatch> candidates = new ArrayList<>();
-			for (CstNode n1 : removed) {
+			for (PairBeforeAfter<CstNode> pair : pairByBodyHash(before, removed, after, added, monitor::checkCanceled)) {
+				pairCount.increment();
+				CstNode n1 = pair.getBefore();
+				CstNode n2 = pair.getAfter();
+				if (sameType(n1, n2) && !anonymous(n1) && !anonymous(n2) && findRelationshipForCandidate(n1, n2).isPresent()) {
+					candidates.add(new PotentialMatch(n1, n2, Math.max(before.depth(n1), after.depth(n2)), 1.0));
+				}
+			}
+			// Parents first, their children with the same signatures are then matched by id
+			Collections.sort(candidates);
+			for (PotentialMatch candidate : candidates) {
+				if (removed(candidate.getNodeBefore()) && added(candidate.getNodeAfter())) {
+					addMatch(candidate.getNodeBefore(), candidate.getNodeAfter());
+				}
+			}
+		}
+		
+		private void findMatchesByUniqueName(double threshold) {
+			List<PotentialMatch> candidates = collectCandidates((n1, buffer) -> {
 				String name = n1.getLocalName();
 				if (before.findByLocalName(name).size() == 1) {
 					List<CstNode> n2WithSameName = after.findByLocalName(name);
 					if (n2WithSameName.size() == 1) {
 						CstNode n2 = n2WithSameName.get(0);
+						pairCount.increment();
 						if (added(n2) && sameType(n1, n2)) {
 							Optional<RelationshipType> optRelationshipType = findRelationshipForCandidate(n1, n2);
 							if (optRelationshipType.isPresent()) {								
-								double score = computeHardSimilarityScore(n1, n2);
 								boolean emptyBody = isAbstract(n1, n2);
-								if (!emptyBody && score > threshold) {
-									PotentialMatch candidate = new PotentialMatch(n1, n2, Math.max(before.depth(n1), after.depth(n2)), score);
-									candidates.add(candidate);
+								if (!emptyBody) {
+									double score = computeHardSimilarityScore(n1, n2, threshold);
+									if (score > threshold) {
+										PotentialMatch candidate = new PotentialMatch(n1, n2, Math.max(before.depth(n1), after.depth(n2)), score);
+										buffer.add(candidate);
+									}
 								}
 							}
 						}
 					}
 				}
-			}
-			Collections.sort(candidates);
+			});
 			for (PotentialMatch candidate : candidates) {
 				addMatch(candidate.getNodeBefore(), candidate.getNodeAfter());
 			}
 		}
 		
 		private void findMatchesBySimilarity(boolean onlySafe) {
-			List<PotentialMatch> candidates = new ArrayList<>();
-			for (CstNode n1 : removed) {
-				for (CstNode n2 : added) {
+			if (minHashBands > 0 && candidateIndex == null) {
+				candidateIndex = new MinHashCandidateIndex<>(srb, after, added, minHashBands, minHashRows);
+			} else if (candidateIndexMargin >= 0.0 && candidateIndex == null) {
+				double indexThreshold = Math.min(threshold.getMinimum(), threshold.getIdeal()) + candidateIndexMargin;
+				candidateIndex = new PrefixCandidateIndex<>(srb, after, added, indexThreshold);
+			}
+			List<PotentialMatch> candidates = collectCandidates((n1, buffer) -> {
+				for (CstNode n2 : findSimilarityCandidates(n1)) {
+					pairCount.increment();
 					if (sameType(n1, n2) && !anonymous(n1) && !anonymous(n2)) {
 						boolean safePair = sameName(n1, n2) || sameLocation(n1, n2);
 						double thresholdValue = safePair ? threshold.getMinimum() : threshold.getIdeal();
@@ -244,33 +474,45 @@ public class CstComparator {
 							Optional<RelationshipType> optRelationshipType = findRelationshipForCandidate(n1, n2);
 							if (optRelationshipType.isPresent()) {
 								RelationshipType type = optRelationshipType.get();
-								double score = computeHardSimilarityScore(n1, n2);
+								// By id relationships are kept regardless of the score, so only the others may stop early
+								double score = type.isById() ? computeHardSimilarityScore(n1, n2) : computeHardSimilarityScore(n1, n2, thresholdValue);
 								//double scoreLight = computeLightSimilarityScore(n1, n2);
-								double rankScore = srb.rawSimilarity(before.sourceRep(n1), after.sourceRep(n2)) * score;
 								
 								//boolean emptyBody = isAbstract(n1, n2);
 								
 								if (type.isById() || score > thresholdValue) {
+									evaluationCount.increment();
+									double rankScore = srb.rawSimilarity(before.sourceRep(n1), after.sourceRep(n2)) * score;
 									PotentialMatch candidate = new PotentialMatch(n1, n2, Math.max(before.depth(n1), after.depth(n2)), rankScore);
-									candidates.add(candidate);
+									buffer.add(candidate);
 								} else {
-									monitor.reportDiscardedMatch(n1, n2, score);
+									buffer.discard(n1, n2, score);
 								}
 							}
 						}
 					}
 				}
-			}
-			Collections.sort(candidates);
+			});
 			for (PotentialMatch candidate : candidates) {
 				addMatch(candidate.getNodeBefore(), candidate.getNodeAfter());
 			}
 		}
 		
+		private Collection<CstNode> findSimilarityCandidates(CstNode n1) {
+			if (candidateIndex == null) {
+				return added;
+			}
+			Set<CstNode> candidates = candidateIndex.findCandidates(before.sourceRep(n1));
+			// Relationships found by id are accepted regardless of the similarity, and they require the same signature
+			candidates.addAll(after.findByLocalName(signature(n1)));
+			candidates.removeIf(n2 -> !added(n2));
+			return candidates;
+		}
+		
 		private void findMatchesByChildren() {
-			List<PotentialMatch> candidates = new ArrayList<>();
-			for (CstNode n1 : removed) {
+			List<PotentialMatch> candidates = collectCandidates((n1, buffer) -> {
 				for (CstNode n2 : added) {
+					pairCount.increment();
 					int matchingChild = countMatchingChild(n1, n2);
 					if (sameType(n1, n2) && !anonymous(n1) && !anonymous(n2) && matchingChild > 1) {
 						double nameScore = computeNameSimilarity(n1, n2);
@@ -285,24 +527,94 @@ public class CstComparator {
 								double score = computeLightSimilarityScore(n1, n2);
 								//if (score > threshold.getIdeal()) {
 								PotentialMatch candidate = new PotentialMatch(n1, n2, Math.max(before.depth(n1), after.depth(n2)), score);
-								candidates.add(candidate);
+								buffer.add(candidate);
 								//}
 							}
 						}
 					}
 				}
-			}
-			Collections.sort(candidates);
+			});
 			for (PotentialMatch candidate : candidates) {
 				addMatch(candidate.getNodeBefore(), candidate.getNodeAfter());
 			}
 		}
 		
+		/**
+		 * Scores the candidate pairs of every removed node, in parallel when a scoring pool is configured. 
+		 * The scorer must only read the state of the diff builder, as matches are added afterwards.
+		 * 
+		 * @return The candidates kept by the scorer, sorted in the order they should be matched.
+		 */
+		private List<PotentialMatch> collectCandidates(BiConsumer<CstNode, CandidateBuffer> scorer) {
+			List<CstNode> nodes = new ArrayList<>(removed);
+			CandidateBuffer buffer;
+			if (scoringPool == null) {
+				buffer = new CandidateBuffer();
+				for (CstNode n1 : nodes) {
+					monitor.checkCanceled();
+					scorer.accept(n1, buffer);
+				}
+			} else {
+				buffer = scoringPool.invoke(new ScoringTask(nodes, 0, nodes.size(), scorer));
+			}
+			for (PotentialMatch discarded : buffer.discarded) {
+				monitor.reportDiscardedMatch(discarded.getNodeBefore(), discarded.getNodeAfter(), discarded.getScore());
+			}
+			Collections.sort(buffer.candidates);
+			return buffer.candidates;
+		}
+		
+		private class ScoringTask extends RecursiveTask<CandidateBuffer> {
+			private final List<CstNode> nodes;
+			private final int from;
+			private final int to;
+			private final BiConsumer<CstNode, CandidateBuffer> scorer;
+			
+			ScoringTask(List<CstNode> nodes, int from, int to, BiConsumer<CstNode, CandidateBuffer> scorer) {
+				this.nodes = nodes;
+				this.from = from;
+				this.to = to;
+				this.scorer = scorer;
+			}
+			
+			@Override
+			protected CandidateBuffer compute() {
+				if (to - from <= SCORING_BATCH_SIZE) {
+					// The comparing thread may run tasks too, and its allocations are already measured
+					boolean scoringThread = Thread.currentThread() != comparingThread;
+					long allocatedBefore = scoringThread ? AllocationCounter.currentThread() : -1;
+					CandidateBuffer buffer = new CandidateBuffer();
+					for (int i = from; i < to; i++) {
+						monitor.checkCanceled();
+						scorer.accept(nodes.get(i), buffer);
+					}
+					if (allocatedBefore >= 0) {
+						scoringAllocations.add(AllocationCounter.currentThread() - allocatedBefore);
+					}
+					return buffer;
+				}
+				int middle = (from + to) >>> 1;
+				ScoringTask left = new ScoringTask(nodes, from, middle, scorer);
+				ScoringTask right = new ScoringTask(nodes, middle, to, scorer);
+				right.fork();
+				CandidateBuffer buffer = left.compute();
+				buffer.addAll(right.join());
+				return buffer;
+			}
+		}
+		
 		private double computeHardSimilarityScore(CstNode n1, CstNode n2) {
+			evaluationCount.increment();
 			return srb.similarity(before.sourceRep(n1), after.sourceRep(n2));
 		}
 		
+		private double computeHardSimilarityScore(CstNode n1, CstNode n2, double threshold) {
+			evaluationCount.increment();
+			return srb.similarity(before.sourceRep(n1), after.sourceRep(n2), threshold);
+		}
+		
 		private double computeNameSimilarity(CstNode n1, CstNode n2) {
+			evaluationCount.add(2);
 			double s1 = Math.max(
 				srb.partialSimilarity(before.nameSourceRep(n1), after.nameSourceRep(n2)), 
 				srb.partialSimilarity(after.nameSourceRep(n2), before.nameSourceRep(n1)));
@@ -315,6 +627,7 @@ public class CstComparator {
 //		}
 		
 		private double computeLightSimilarityScore(CstNode n1, CstNode n2) {
+			evaluationCount.add(2);
 			double score1 = srb.partialSimilarity(before.sourceRep(n1), after.sourceRep(n2));
 			double score2 = srb.partialSimilarity(after.sourceRep(n2), before.sourceRep(n1));
 			return Math.max(score1, score2);
@@ -354,10 +667,13 @@ public class CstComparator {
 		private void matchExtract() {
 			Set<Relationship> relationships = new HashSet<>();
 			for (CstNode n2 : added) {
+				monitor.checkCanceled();
 //				if (n2.getLocalName().equals("getNodes()") && n2.getLocation().getFile().equals("core/src/main/java/com/graphhopper/storage/LevelGraphImpl.java") && n2.getLocation().getLine() == 144) {
 //					n2.getLocalName();
 //				}
-				for (CstNode n1After : after.findReverseRelationships(CstNodeRelationshipType.USE, n2)) {
+				for (int i = 0, callers = after.countReverseRelationships(CstNodeRelationshipType.USE, n2); i < callers; i++) {
+					CstNode n1After = after.getReverseRelationship(CstNodeRelationshipType.USE, n2, i);
+					pairCount.increment();
 					Optional<CstNode> optMatchingNode = matchingNodeBefore(n1After);
 					if (optMatchingNode.isPresent()) {
 						CstNode n1 = optMatchingNode.get();
@@ -369,7 +685,8 @@ public class CstComparator {
 //							double score1 = srb.partialSimilarity(bodySourceN2, removedSource);
 //							double score2 = srb.partialSimilarity(removedSource, bodySourceN2);
 //							double scoreMax = Math.max(score1, score2);
-							double score = srb.partialSimilarity(bodySourceN2, removedSource);
+							evaluationCount.increment();
+							double score = srb.partialSimilarity(bodySourceN2, removedSource, threshold.getIdeal());
 //							double rawScore = srb.rawSimilarity(bodySourceN2, removedSource);
 							//double finalScore = rawScore * score;
 							
@@ -397,7 +714,10 @@ public class CstComparator {
 		private void matchInline() {
 			Set<Relationship> relationships = new HashSet<>();
 			for (CstNode n1 : removed) {
-				for (CstNode n1Caller : before.findReverseRelationships(CstNodeRelationshipType.USE, n1)) {
+				monitor.checkCanceled();
+				for (int i = 0, callers = before.countReverseRelationships(CstNodeRelationshipType.USE, n1); i < callers; i++) {
+					CstNode n1Caller = before.getReverseRelationship(CstNodeRelationshipType.USE, n1, i);
+					pairCount.increment();
 					Optional<CstNode> optMatchingNode = matchingNodeAfter(n1Caller);
 					if (optMatchingNode.isPresent()) {
 						CstNode n2 = optMatchingNode.get();
@@ -411,7 +731,8 @@ public class CstComparator {
 //							double score1 = srb.partialSimilarity(sourceN1, addedCode);
 //							double score2 = srb.partialSimilarity(addedCode, sourceN1);
 //							double score = Math.max(score1, score2);
-							double score = srb.partialSimilarity(sourceN1, addedCode);
+							evaluationCount.increment();
+							double score = srb.partialSimilarity(sourceN1, addedCode, threshold.getIdeal());
 							if (score > threshold.getIdeal()) {
 								relationships.add(new Relationship(RelationshipType.INLINE, n1, n2, score));
 							} else {
@@ -431,6 +752,7 @@ public class CstComparator {
 		private void findMatchesById(HasChildrenNodes parentBefore, HasChildrenNodes parentAfter) {
 			for (CstNode n1 : children(parentBefore, this::removed)) {
 				for (CstNode n2 : children(parentAfter, this::added)) {
+					pairCount.increment();
 					if (sameNamespace(n1, n2) && sameSignature(n1, n2)) {
 						addMatch(n1, n2);
 					}
@@ -475,7 +797,7 @@ public class CstComparator {
 				});
 			
 			for (Relationship relationship : relationships) {
-				diff.addRelationships(relationship);
+				publish(relationship);
 			}
 		}
 
@@ -612,6 +934,7 @@ public class CstComparator {
 			} else {
 				mapBeforeToAfter.put(nBefore, nAfter);
 				mapAfterToBefore.put(nAfter, nBefore);
+				keptCount.increment();
 				removed.remove(nBefore);
 				added.remove(nAfter);
 				findMatchesById(nBefore, nAfter);
@@ -624,7 +947,7 @@ public class CstComparator {
 				CstNode n2 = entry.getValue();
 				Optional<RelationshipType> type = findRelationshipForCandidate(n1, n2);
 				if (type.isPresent()) {
-					diff.addRelationships(new Relationship(type.get(), n1, n2));
+					publish(new Relationship(type.get(), n1, n2));
 				}
 			}
 		}
@@ -645,7 +968,20 @@ public class CstComparator {
 			if (type.isUnmarkRemoved() && !removed(nBefore) || type.isUnmarkAdded() && !added(nAfter)) {
 				monitor.reportDiscardedConflictingMatch(nBefore, nAfter);
 			} else {
+				publish(relationship);
+			}
+		}
+		
+		/**
+		 * Adds a relationship to the diff, notifying the relationship listeners if it is new.
+		 */
+		private void publish(Relationship relationship) {
+			if (!diff.getRelationships().contains(relationship)) {
 				diff.addRelationships(relationship);
+				keptCount.increment();
+				for (RelationshipListener listener : relationshipListeners) {
+					listener.relationshipAdded(diff, relationship);
+				}
 			}
 		}
 		
@@ -675,10 +1011,10 @@ public class CstComparator {
 		}
 		
 		public boolean sameRootNode(CstNode n1, CstNode n2) {
-			Optional<CstNode> n1Root = n1.getRootParent();
-			Optional<CstNode> n2Root = n2.getRootParent();
-			if (n1Root.isPresent() && n2Root.isPresent()) {
-				return matchingNodeAfter(n1Root.get()).equals(n2Root);
+			CstNode n1Root = before.rootParent(n1);
+			CstNode n2Root = after.rootParent(n2);
+			if (n1Root != null && n2Root != null) {
+				return mapBeforeToAfter.get(n1Root) == n2Root;
 			} else {
 				return false;
 			}
@@ -775,5 +1111,65 @@ public class CstComparator {
 	public LanguagePlugin getLanguagePlugin() {
 		return languagePlugin;
 	}
+	
+	/**
+	 * Pairs the removed and added nodes whose bodies have the same tokens, at least {@value #MIN_BODY_HASH_TOKENS} of
+	 * them. Bodies are looked up by hash, and only the nodes whose hash is unique on their side are paired, so that a 
+	 * body found in several places is left to the other steps.
+	 * 
+	 * @param checkCanceled Called before each pair of nodes with the same hash
+	 */
+	static <T> List<PairBeforeAfter<CstNode>> pairByBodyHash(CstRootHelper<T> before, Collection<CstNode> removed, 
+			CstRootHelper<T> after, Collection<CstNode> added, Runnable checkCanceled) {
+		Map<Long, CstNode> removedByHash = indexByUniqueBodyHash(before, removed);
+		Map<Long, CstNode> addedByHash = indexByUniqueBodyHash(after, added);
+		List<PairBeforeAfter<CstNode>> pairs = new ArrayList<>();
+		for (Entry<Long, CstNode> entry : removedByHash.entrySet()) {
+			checkCanceled.run();
+			CstNode n1 = entry.getValue();
+			CstNode n2 = addedByHash.get(entry.getKey());
+			// Different bodies may have the same hash
+			if (n2 != null && before.sameBodyTokens(n1, after, n2)) {
+				pairs.add(new PairBeforeAfter<>(n1, n2));
+			}
+		}
+		return pairs;
+	}
+	
+	private static <T> Map<Long, CstNode> indexByUniqueBodyHash(CstRootHelper<T> helper, Collection<CstNode> nodes) {
+		Map<Long, CstNode> index = new HashMap<>();
+		Set<Long> repeated = new HashSet<>();
+		for (CstNode node : nodes) {
+			if (helper.bodyTokenCount(node) >= MIN_BODY_HASH_TOKENS) {
+				Long hash = helper.bodyHash(node);
+				if (index.putIfAbsent(hash, node) != null) {
+					repeated.add(hash);
+				}
+			}
+		}
+		index.keySet().removeAll(repeated);
+		return index;
+	}
+	
+	/**
+	 * Candidates and discarded pairs collected by a single scoring worker.
+	 */
+	private static class CandidateBuffer {
+		private final List<PotentialMatch> candidates = new ArrayList<>();
+		private final List<PotentialMatch> discarded = new ArrayList<>();
+		
+		void add(PotentialMatch candidate) {
+			candidates.add(candidate);
+		}
+		
+		void discard(CstNode n1, CstNode n2, double score) {
+			discarded.add(new PotentialMatch(n1, n2, 0, score));
+		}
+		
+		void addAll(CandidateBuffer other) {
+			candidates.addAll(other.candidates);
+			discarded.addAll(other.discarded);
+		}
+	}
 
 }
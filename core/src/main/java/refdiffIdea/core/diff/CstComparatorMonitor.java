@@ -3,10 +3,33 @@ package refdiffIdea.core.diff;
 import refdiffIdea.core.diff.CstComparator.DiffBuilder;
 import refdiffIdea.core.cst.CstNode;
 
+/**
+ * Receives notifications about the progress of a comparison. The scores reported for discarded pairs may be upper 
+ * bounds of their similarity, as the computation stops as soon as a pair is known not to reach its threshold.
+ */
 public interface CstComparatorMonitor {
 	
+	/**
+	 * Called when the comparison enters a phase, in the order of {@link ComparisonPhase}.
+	 */
+	default void beforePhase(ComparisonPhase phase) {}
+	
+	/**
+	 * Called regularly during a comparison, possibly from several scoring threads, so that a comparison can be 
+	 * aborted by throwing a {@link com.intellij.openapi.progress.ProcessCanceledException}, which is rethrown by the 
+	 * comparator as is. Files are not parsed once the progress indicator of the comparing thread is canceled.
+	 */
+	default void checkCanceled() {}
+	
 	default void beforeCompare(CstRootHelper<?> before, CstRootHelper<?> after) {}
 	
+	/**
+	 * Called for each scored pair whose score does not reach its threshold. Only scored pairs are reported: pairs 
+	 * pruned by the candidate index, which cannot reach the thresholds given the tokens they share, are never scored.
+	 * Neither are the pairs left out by the approximate index of {@link CstComparator#setMinHashBands} or by a 
+	 * positive {@linkplain CstComparator#setCandidateIndexMargin margin}, although some of them could reach the 
+	 * thresholds.
+	 */
 	default void reportDiscardedMatch(CstNode n1, CstNode n2, double score) {}
 	
 	default void reportDiscardedConflictingMatch(CstNode nBefore, CstNode nAfter) {}
@@ -14,6 +37,13 @@ public interface CstComparatorMonitor {
 	default void reportDiscardedExtract(CstNode n1, CstNode n2, double score) {}
 	
 	default void reportDiscardedInline(CstNode n1, CstNode n2, double score) {}
+	
+	default void reportMinHashStatistics(MinHashStatistics statistics) {}
+	
+	/**
+	 * Called once all steps of the comparison are done, with the statistics of each step.
+	 */
+	default void reportComparison(ComparisonReport report) {}
 
 	default void afterCompare(long elapsedTime, DiffBuilder<?> diffBuilder) {}
 }
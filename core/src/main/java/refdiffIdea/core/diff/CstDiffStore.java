@@ -0,0 +1,354 @@
+package refdiffIdea.core.diff;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import com.intellij.openapi.application.PathManager;
+import com.intellij.psi.PsiFile;
+
+import refdiffIdea.core.cst.CstNode;
+import refdiffIdea.core.cst.CstRoot;
+import refdiffIdea.core.cst.Location;
+import refdiffIdea.core.cst.Parameter;
+import refdiffIdea.core.cst.Stereotype;
+
+/**
+ * A persistent store of computed CST diffs, so that the refactorings of a commit are shown again without parsing and
+ * comparing its files. Diffs are appended to a log file and located through an index file, which maps a key to the
+ * position of the diff in the log. A stored diff is read by memory-mapping its part of the log.
+ *
+ * <p>Only the relationships needed to present refactorings are stored: the refactorings themselves and the other
+ * relationships of their nodes, along with the ancestors of those nodes. Parsed files are not stored either: the
+ * nodes of a diff read back get their files from suppliers, usually parsing them again on first use.
+ *
+ * <p>Keys should identify everything the diff depends on, such as the commit, the language plugin and its version,
+ * and the comparison settings, so that entries computed by other versions are never found. As the log is append-only,
+ * such entries are only dropped when the store grows over its size limit, at which point it is emptied. The store
+ * is best effort: entries that cannot be written are skipped, and entries that cannot be read are reported as
+ * missing. Relationship types and stereotypes are stored by name, so that reordering their constants does not change
+ * the meaning of stored diffs.
+ */
+public class CstDiffStore {
+	
+	private static final int FORMAT_VERSION = 0x52440102;
+	private static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+	private static CstDiffStore instance = null;
+	
+	private final Path logFile;
+	private final Path indexFile;
+	private final long maxBytes;
+	private Map<String, Entry> index = null;
+	private long logSize;
+	
+	/**
+	 * @return The store shared by the whole IDE, located under its system directory.
+	 */
+	public static synchronized CstDiffStore getInstance() {
+		if (instance == null) {
+			instance = new CstDiffStore(Paths.get(PathManager.getSystemPath(), "refdiff", "diffs"), DEFAULT_MAX_BYTES);
+		}
+		return instance;
+	}
+	
+	/**
+	 * @param directory The directory of the log and index files, created on first use.
+	 * @param maxBytes The size of the log above which the store is emptied.
+	 */
+	public CstDiffStore(Path directory, long maxBytes) {
+		this.logFile = directory.resolve("diffs.log");
+		this.indexFile = directory.resolve("diffs.idx");
+		this.maxBytes = maxBytes;
+	}
+	
+	/**
+	 * Reads a stored diff. The nodes of the diff are rebuilt with their names, types and locations, and get their
+	 * files from the suppliers returned by {@code filesBefore} or {@code filesAfter}, which receive the path of a 
+	 * file and are called once per file.
+	 *
+	 * @return The diff stored with {@code key}, if any.
+	 */
+	public synchronized Optional<CstDiff> get(String key, Function<String, Supplier<PsiFile>> filesBefore, Function<String, Supplier<PsiFile>> filesAfter) {
+		Entry entry = getIndex().get(key);
+		if (entry == null) {
+			return Optional.empty();
+		}
+		try (FileChannel channel = FileChannel.open(logFile, StandardOpenOption.READ)) {
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, entry.offset, entry.length);
+			return Optional.of(read(buffer, filesBefore, filesAfter));
+		} catch (IOException | RuntimeException e) {
+			index.remove(key);
+			return Optional.empty();
+		}
+	}
+	
+	/**
+	 * Stores a diff, replacing any diff previously stored with {@code key}.
+	 */
+	public synchronized void put(String key, CstDiff diff) {
+		Map<String, Entry> index = getIndex();
+		try {
+			ByteArrayOutputStream payload = new ByteArrayOutputStream();
+			write(new DataOutputStream(payload), diff);
+			if (logSize > maxBytes - payload.size()) {
+				clear();
+				if (logSize > maxBytes - payload.size()) {
+					return;
+				}
+			}
+			Entry entry = new Entry(logSize, payload.size());
+			// The diff is written before its index entry, so that the index never refers to a missing diff
+			Files.write(logFile, payload.toByteArray(), StandardOpenOption.APPEND);
+			logSize += payload.size();
+			ByteArrayOutputStream indexEntry = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(indexEntry);
+			writeString(out, key);
+			out.writeLong(entry.offset);
+			out.writeInt(entry.length);
+			Files.write(indexFile, indexEntry.toByteArray(), StandardOpenOption.APPEND);
+			index.put(key, entry);
+		} catch (IOException e) {
+			// The diff is computed again next time
+			this.index = null;
+		}
+	}
+	
+	private Map<String, Entry> getIndex() {
+		if (index != null) {
+			return index;
+		}
+		index = new HashMap<>();
+		try {
+			logSize = Files.size(logFile);
+			try (InputStream stream = new BufferedInputStream(Files.newInputStream(indexFile))) {
+				DataInputStream in = new DataInputStream(stream);
+				if (in.readInt() != FORMAT_VERSION) {
+					throw new IOException("Unknown store format");
+				}
+				while (true) {
+					String key = readString(in);
+					Entry entry = new Entry(in.readLong(), in.readInt());
+					// Entries past the end of the log were not completely written
+					if (entry.offset + entry.length <= logSize) {
+						index.put(key, entry);
+					}
+				}
+			}
+		} catch (EOFException e) {
+			// The last entry may have been partially written
+		} catch (IOException e) {
+			try {
+				clear();
+			} catch (IOException e1) {
+				logSize = Long.MAX_VALUE;
+			}
+		}
+		return index;
+	}
+	
+	private void clear() throws IOException {
+		index.clear();
+		Files.createDirectories(logFile.getParent());
+		ByteBuffer header = ByteBuffer.allocate(4).putInt(FORMAT_VERSION);
+		Files.write(logFile, header.array());
+		Files.write(indexFile, header.array());
+		logSize = header.capacity();
+	}
+	
+	private static void write(DataOutput out, CstDiff diff) throws IOException {
+		Set<CstNode> refactoredNodes = new HashSet<>();
+		for (Relationship relationship : diff.getRefactoringRelationships()) {
+			refactoredNodes.add(relationship.getNodeBefore());
+			refactoredNodes.add(relationship.getNodeAfter());
+		}
+		List<Relationship> relationships = new ArrayList<>();
+		NodeTable nodesBefore = new NodeTable();
+		NodeTable nodesAfter = new NodeTable();
+		for (Relationship relationship : diff.getRelationships()) {
+			if (relationship.isRefactoring() || refactoredNodes.contains(relationship.getNodeBefore()) || refactoredNodes.contains(relationship.getNodeAfter())) {
+				relationships.add(relationship);
+				nodesBefore.add(relationship.getNodeBefore());
+				nodesAfter.add(relationship.getNodeAfter());
+			}
+		}
+		nodesBefore.write(out);
+		nodesAfter.write(out);
+		out.writeInt(relationships.size());
+		for (Relationship relationship : relationships) {
+			writeString(out, relationship.getType().name());
+			out.writeInt(nodesBefore.indexOf(relationship.getNodeBefore()));
+			out.writeInt(nodesAfter.indexOf(relationship.getNodeAfter()));
+			Double similarity = relationship.getSimilarity();
+			out.writeBoolean(similarity != null);
+			if (similarity != null) {
+				out.writeDouble(similarity);
+			}
+		}
+	}
+	
+	private static CstDiff read(ByteBuffer in, Function<String, Supplier<PsiFile>> filesBefore, Function<String, Supplier<PsiFile>> filesAfter) throws IOException {
+		try {
+			CstRoot before = new CstRoot();
+			CstRoot after = new CstRoot();
+			List<CstNode> nodesBefore = readNodes(in, before, filesBefore);
+			List<CstNode> nodesAfter = readNodes(in, after, filesAfter);
+			CstDiff diff = new CstDiff(before, after);
+			for (int count = in.getInt(); count > 0; count--) {
+				RelationshipType type = RelationshipType.valueOf(readString(in));
+				CstNode nodeBefore = nodesBefore.get(in.getInt());
+				CstNode nodeAfter = nodesAfter.get(in.getInt());
+				Double similarity = in.get() != 0 ? in.getDouble() : null;
+				diff.addRelationships(new Relationship(type, nodeBefore, nodeAfter, similarity));
+			}
+			return diff;
+		} catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException | NullPointerException e) {
+			throw new IOException("Truncated or corrupted diff", e);
+		}
+	}
+	
+	private static List<CstNode> readNodes(ByteBuffer in, CstRoot root, Function<String, Supplier<PsiFile>> files) {
+		Map<String, Supplier<PsiFile>> fileSuppliers = new HashMap<>();
+		int nodeCount = in.getInt();
+		List<CstNode> nodes = new ArrayList<>(nodeCount);
+		for (int i = 0; i < nodeCount; i++) {
+			CstNode node = new CstNode(i + 1);
+			int parent = in.getInt();
+			node.setType(readString(in));
+			node.setSimpleName(readString(in));
+			node.setLocalName(readString(in));
+			node.setNamespace(readString(in));
+			String file = readString(in);
+			int begin = in.getInt();
+			int end = in.getInt();
+			int line = in.getInt();
+			node.setLocation(new Location(file, begin, end, line, in.getInt(), in.getInt()));
+			node.setFileSupplier(fileSuppliers.computeIfAbsent(file, files));
+			for (int count = in.getInt(); count > 0; count--) {
+				node.addStereotypes(Stereotype.valueOf(readString(in)));
+			}
+			for (int count = in.getInt(); count > 0; count--) {
+				node.getParameters().add(new Parameter(readString(in)));
+			}
+			// Parents are always written before their children
+			if (parent < 0) {
+				root.addNode(node);
+			} else {
+				nodes.get(parent).addNode(node);
+			}
+			nodes.add(node);
+		}
+		return nodes;
+	}
+	
+	private static void writeString(DataOutput out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+		} else {
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+	
+	private static String readString(ByteBuffer in) {
+		int length = in.getInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * The nodes of one side of a stored diff, numbered so that every node comes after its parent.
+	 */
+	private static class NodeTable {
+		private final List<CstNode> nodes = new ArrayList<>();
+		private final Map<CstNode, Integer> indexes = new HashMap<>();
+		
+		void add(CstNode node) {
+			if (indexes.containsKey(node)) {
+				return;
+			}
+			if (node.getParent().isPresent()) {
+				add(node.getParent().get());
+			}
+			indexes.put(node, nodes.size());
+			nodes.add(node);
+		}
+		
+		int indexOf(CstNode node) {
+			return indexes.get(node);
+		}
+		
+		void write(DataOutput out) throws IOException {
+			out.writeInt(nodes.size());
+			for (CstNode node : nodes) {
+				out.writeInt(node.getParent().isPresent() ? indexOf(node.getParent().get()) : -1);
+				writeString(out, node.getType());
+				writeString(out, node.getSimpleName());
+				writeString(out, node.getLocalName());
+				writeString(out, node.getNamespace());
+				Location location = node.getLocation();
+				writeString(out, location.getFile());
+				out.writeInt(location.getBegin());
+				out.writeInt(location.getEnd());
+				out.writeInt(location.getLine());
+				out.writeInt(location.getBodyBegin());
+				out.writeInt(location.getBodyEnd());
+				out.writeInt(node.getStereotypes().size());
+				for (Stereotype stereotype : node.getStereotypes()) {
+					writeString(out, stereotype.name());
+				}
+				out.writeInt(node.getParameters().size());
+				for (Parameter parameter : node.getParameters()) {
+					writeString(out, parameter.getName());
+				}
+			}
+		}
+	}
+	
+	private static class Entry {
+		private final long offset;
+		private final int length;
+		
+		Entry(long offset, int length) {
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+	
+}
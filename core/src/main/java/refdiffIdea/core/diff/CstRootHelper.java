@@ -2,6 +2,7 @@ package refdiffIdea.core.diff;
 
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -12,8 +13,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.function.Function;
-import java.util.stream.Collectors;
 
 import refdiffIdea.core.diff.similarity.SourceRepresentationBuilder;
 import refdiffIdea.core.io.SourceFile;
@@ -30,15 +31,21 @@ import refdiffIdea.core.cst.TokenizedSource;
 public class CstRootHelper<T> {
 	
 	private final CstRoot cstRoot;
-	private final Map<Integer, CstNode> idMap = new HashMap<>();
-	private final Map<Integer, List<CstNodeRelationship>> edges = new HashMap<>();
-	private final Map<Integer, List<CstNodeRelationship>> reverseEdges = new HashMap<>();
-	private final Map<CstNode, Integer> depthMap = new HashMap<>();
+	// Node data is stored in arrays indexed by node id, as ids are dense in the CSTs built by the language plugins.
+	// Sparse ids, as in a CST trimmed from a larger one, are first compacted into dense indexes
+	private final Map<Integer, Integer> sparseIndexes;
+	private final CstNode[] nodes;
+	private final int[] depths;
+	private final CstNode[] rootParents;
+	private final RelationshipIndex relationships;
 	private final Map<String, String> fileMap = new HashMap<>();
 	private final SourceRepresentationBuilder<T> srb;
-	private final Map<CstNode, T> srMap = new HashMap<>();
-	private final Map<CstNode, T> srBodyMap = new HashMap<>();
-	private final Map<CstNode, T> srNameMap = new HashMap<>();
+	// Source representations are built when first needed, possibly by several scoring threads at once
+	private final AtomicReferenceArray<T> srs;
+	private final AtomicReferenceArray<T> srBodies;
+	private final AtomicReferenceArray<T> srNames;
+	private final Map<String, int[]> tokenIds = new HashMap<>();
+	private volatile boolean tokensCounted = false;
 	private final Map<String, List<CstNode>> nameIndex = new HashMap<>();
 	private final boolean isBefore;
 	
@@ -47,50 +54,125 @@ public class CstRootHelper<T> {
 		this.srb = srb;
 		this.isBefore = isBefore;
 		
+		int[] minId = new int[1];
+		int[] maxId = new int[1];
+		int[] count = new int[1];
 		cstRoot.forEachNode((node, depth) -> {
-			idMap.put(node.getId(), node);
-			depthMap.put(node, depth);
+			minId[0] = Math.min(minId[0], node.getId());
+			maxId[0] = Math.max(maxId[0], node.getId());
+			count[0]++;
+		});
+		boolean dense = minId[0] >= 0 && maxId[0] <= 4 * count[0] + 1024;
+		this.sparseIndexes = dense ? null : new HashMap<>();
+		int length = dense ? maxId[0] + 1 : count[0];
+		this.nodes = new CstNode[length];
+		this.depths = new int[length];
+		this.rootParents = new CstNode[length];
+		this.srs = new AtomicReferenceArray<>(length);
+		this.srBodies = new AtomicReferenceArray<>(length);
+		this.srNames = new AtomicReferenceArray<>(length);
+		cstRoot.forEachNode((node, depth) -> {
+			int i = sparseIndexes == null ? node.getId() : sparseIndexes.size();
+			if (nodes[i] != null || sparseIndexes != null && sparseIndexes.putIfAbsent(node.getId(), i) != null) {
+				throw new IllegalArgumentException("Duplicate node id: " + node.getId());
+			}
+			nodes[i] = node;
+			depths[i] = depth;
+			// Parents are visited before their children
+			rootParents[i] = node.getParent().isPresent() ? rootOrSelf(node.getParent().get()) : null;
 			nameIndex.computeIfAbsent(node.getLocalName(), k -> new ArrayList<>()).add(node);
 		});
 		
-		for (CstNodeRelationship relationship : cstRoot.getRelationships()) {
-			edges.compute(relationship.getN1(), (key, oldValue) -> {
-				if (oldValue == null) {
-					ArrayList<CstNodeRelationship> list = new ArrayList<>();
-					list.add(relationship);
-					return list;
-				} else {
-					oldValue.add(relationship);
-					return oldValue;
-				}
-			});
-			reverseEdges.compute(relationship.getN2(), (key, oldValue) -> {
-				if (oldValue == null) {
-					ArrayList<CstNodeRelationship> list = new ArrayList<>();
-					list.add(relationship);
-					return list;
-				} else {
-					oldValue.add(relationship);
-					return oldValue;
-				}
-			});
-		}
+		this.relationships = new RelationshipIndex(cstRoot.getRelationships(), length, this::slot);
 		
 		for (SourceFile file : sources.getSourceFiles()) {
 			fileMap.put(file.getPath(), sources.readContent(file));
 		}
 	}
 	
+	private CstNode rootOrSelf(CstNode node) {
+		CstNode root = rootParents[index(node)];
+		return root != null ? root : node;
+	}
+	
+	/**
+	 * @return The index of the node with the given id in the node arrays, or -1 if there is no such node.
+	 */
+	private int slot(int id) {
+		if (sparseIndexes != null) {
+			return sparseIndexes.getOrDefault(id, -1);
+		}
+		return id >= 0 && id < nodes.length ? id : -1;
+	}
+	
+	/**
+	 * @return The index of {@code node} in the node arrays, which must be a node of this CST.
+	 */
+	private int index(CstNode node) {
+		int i = slot(node.getId());
+		if (i < 0 || nodes[i] != node) {
+			throw new IllegalArgumentException("Node of another CST: " + node);
+		}
+		return i;
+	}
+	
+	private CstNode nodeById(int id) {
+		int i = slot(id);
+		return i >= 0 ? nodes[i] : null;
+	}
+	
 	public int depth(CstNode node) {
-		return depthMap.get(node);
+		return depths[index(node)];
+	}
+	
+	/**
+	 * @return The top-level ancestor of {@code node}, or null if it is a top-level node. Same as 
+	 * {@link CstNode#getRootParent()}, without walking up the tree.
+	 */
+	public CstNode rootParent(CstNode node) {
+		return rootParents[index(node)];
 	}
 	
 	public List<CstNode> findByLocalName(String localName) {
 		return nameIndex.getOrDefault(localName, Collections.emptyList());
 	}
 	
-	public Collection<CstNode> findRelationships(CstNodeRelationshipType type, CstNode node) {
-		return this.findRelationships(edges, type, node, rel -> idMap.get(rel.getN2()));
+	/**
+	 * @return The nodes {@code node} is related to by relationships of the given type. The list is a view of the 
+	 * relationships of the CST.
+	 */
+	public List<CstNode> findRelationships(CstNodeRelationshipType type, CstNode node) {
+		int id = index(node);
+		return new AbstractList<CstNode>() {
+			@Override
+			public CstNode get(int i) {
+				return nodes[relationships.get(type, id, checkIndex(i, size()))];
+			}
+			
+			@Override
+			public int size() {
+				return relationships.count(type, id);
+			}
+		};
+	}
+	
+	/**
+	 * @return The number of nodes {@code node} is related to by relationships of the given type, which are iterated
+	 * without allocations by {@link #getRelationship(CstNodeRelationshipType, CstNode, int)}.
+	 */
+	public int countRelationships(CstNodeRelationshipType type, CstNode node) {
+		return relationships.count(type, index(node));
+	}
+	
+	public CstNode getRelationship(CstNodeRelationshipType type, CstNode node, int i) {
+		return nodes[relationships.get(type, index(node), i)];
+	}
+	
+	private static int checkIndex(int i, int size) {
+		if (i < 0 || i >= size) {
+			throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size);
+		}
+		return i;
 	}
 	
 	public boolean hasRelationship(CstNodeRelationshipType type, Optional<CstNode> optN1, CstNode n2) {
@@ -99,23 +181,40 @@ public class CstRootHelper<T> {
 	
 	public boolean hasRelationship(CstNodeRelationshipType type, Optional<CstNode> optN1, Optional<CstNode> optN2) {
 		if (optN1.isPresent() && optN2.isPresent()) {
-			CstNode n1 = optN1.get();
-			CstNode n2 = optN2.get();
-			return edges.getOrDefault(n1.getId(), Collections.emptyList()).stream()
-				.filter(rel -> rel.getType().equals(type) && idMap.get(rel.getN2()).equals(n2))
-				.findFirst().isPresent();
+			return relationships.contains(type, index(optN1.get()), index(optN2.get()));
 		}
 		return false;
 	}
 	
-	public Collection<CstNode> findReverseRelationships(CstNodeRelationshipType type, CstNode node) {
-		return this.findRelationships(reverseEdges, type, node, rel -> idMap.get(rel.getN1()));
+	/**
+	 * @return The nodes related to {@code node} by relationships of the given type. The list is a view of the 
+	 * relationships of the CST.
+	 */
+	public List<CstNode> findReverseRelationships(CstNodeRelationshipType type, CstNode node) {
+		int id = index(node);
+		return new AbstractList<CstNode>() {
+			@Override
+			public CstNode get(int i) {
+				return nodes[relationships.getReverse(type, id, checkIndex(i, size()))];
+			}
+			
+			@Override
+			public int size() {
+				return relationships.countReverse(type, id);
+			}
+		};
+	}
+	
+	/**
+	 * @return The number of nodes related to {@code node} by relationships of the given type, which are iterated 
+	 * without allocations by {@link #getReverseRelationship(CstNodeRelationshipType, CstNode, int)}.
+	 */
+	public int countReverseRelationships(CstNodeRelationshipType type, CstNode node) {
+		return relationships.countReverse(type, index(node));
 	}
 	
-	private Collection<CstNode> findRelationships(Map<Integer, List<CstNodeRelationship>> map, CstNodeRelationshipType type, CstNode node, Function<CstNodeRelationship, CstNode> mappingFn) {
-		return map.getOrDefault(node.getId(), Collections.emptyList()).stream()
-			.filter(rel -> rel.getType().equals(type))
-			.map(mappingFn).collect(Collectors.toList());
+	public CstNode getReverseRelationship(CstNodeRelationshipType type, CstNode node, int i) {
+		return nodes[relationships.getReverse(type, index(node), i)];
 	}
 	
 	public Optional<CstNode> findByNamePath(String... namePath) {
@@ -191,38 +290,114 @@ public class CstRootHelper<T> {
 	public void printRelationships(PrintStream out) {
 		out.print("Relationships:\n");
 		for (CstNodeRelationship rel : cstRoot.getRelationships()) {
-			CstNode n1 = idMap.get(rel.getN1());
-			CstNode n2 = idMap.get(rel.getN2());
+			CstNode n1 = nodeById(rel.getN1());
+			CstNode n2 = nodeById(rel.getN2());
 			out.print(String.format("%s %s %s\n", n1.getLocalName(), rel.getType(), n2.getLocalName()));
 		}
 	}
 	
-	public void computeSourceRepresentation(CstNode node) {
-		if (!srMap.containsKey(node)) {
-			String sourceCode = fileMap.get(node.getLocation().getFile());
-			List<String> nodeTokens = retrieveTokens(sourceCode, node, false);
-			srMap.put(node, srb.buildForNode(node, isBefore, nodeTokens));
-			srNameMap.put(node, srb.buildForName(node, isBefore));
-			
-			if (node.getLocation().getBegin() != node.getLocation().getBodyBegin()) {
-				List<String> nodeBodyTokens = retrieveTokens(sourceCode, node, true);
-				T body = srb.buildForFragment(nodeBodyTokens);
-				List<String> tokensToIgnore = new ArrayList<>();
-				for (Parameter parameter : node.getParameters()) {
-					tokensToIgnore.add(parameter.getName());
-				}
-				tokensToIgnore.addAll(getTokensToIgnoreInNodeBody(node));
-				T normalizedBody = srb.minus(body, tokensToIgnore);
-				srBodyMap.put(node, normalizedBody);
-				
-			} else {
-				srBodyMap.put(node, srMap.get(node));
+	/**
+	 * Counts the document frequencies of the tokens of every node, interning the tokens of each file once. The source
+	 * representations themselves are built when first requested.
+	 * 
+	 * @param checkCanceled Called before each node
+	 */
+	public void countTokens(Runnable checkCanceled) {
+		for (Map.Entry<String, TokenizedSource> entry : cstRoot.getTokenizedSource().entrySet()) {
+			String sourceCode = fileMap.get(entry.getKey());
+			if (sourceCode != null) {
+				tokenIds.put(entry.getKey(), srb.internTokens(sourceCode, entry.getValue()));
+			}
+		}
+		cstRoot.forEachNode((node, depth) -> {
+			checkCanceled.run();
+			Location location = node.getLocation();
+			TokenizedSource tokens = cstRoot.getTokenizedSource().get(location.getFile());
+			int from = tokens.indexOfFirstTokenFrom(location.getBegin());
+			int to = Math.max(from, tokens.indexOfFirstTokenFrom(location.getEnd()));
+			srb.countNode(node, isBefore, tokenIds.get(location.getFile()), from, to);
+		});
+		tokensCounted = true;
+	}
+	
+	private T buildSourceRepresentation(CstNode node) {
+		Location location = node.getLocation();
+		TokenizedSource tokens = cstRoot.getTokenizedSource().get(location.getFile());
+		int from = tokens.indexOfFirstTokenFrom(location.getBegin());
+		int to = Math.max(from, tokens.indexOfFirstTokenFrom(location.getEnd()));
+		return srb.buildForCountedNode(node, tokenIds.get(location.getFile()), from, to);
+	}
+	
+	private T buildBodySourceRepresentation(CstNode node) {
+		Location location = node.getLocation();
+		if (location.getBegin() == location.getBodyBegin()) {
+			return sourceRep(node);
+		}
+		int[] range = bodyTokenRange(node);
+		T body = srb.buildForFragment(tokenIds.get(location.getFile()), range[0], range[1]);
+		List<String> tokensToIgnore = new ArrayList<>();
+		for (Parameter parameter : node.getParameters()) {
+			tokensToIgnore.add(parameter.getName());
+		}
+		tokensToIgnore.addAll(getTokensToIgnoreInNodeBody(node));
+		return srb.minus(body, tokensToIgnore);
+	}
+	
+	/**
+	 * @return The number of tokens of the body of {@code node}, or 0 if it has no body.
+	 */
+	public int bodyTokenCount(CstNode node) {
+		int[] range = bodyTokenRange(node);
+		return range[1] - range[0];
+	}
+	
+	/**
+	 * @return A 64-bit hash of the tokens of the body of {@code node}, ignoring layout. The words of comments are 
+	 * tokens too, so editing a comment changes the hash. As the ids of the tokens are shared by the CSTs compared, 
+	 * bodies with the same tokens have the same hash on both sides.
+	 */
+	public long bodyHash(CstNode node) {
+		int[] range = bodyTokenRange(node);
+		int[] ids = tokenIds.get(node.getLocation().getFile());
+		long hash = 1L;
+		for (int i = range[0]; i < range[1]; i++) {
+			hash = hash * 0x9E3779B97F4A7C15L + ids[i] + 1;
+		}
+		return hash;
+	}
+	
+	/**
+	 * @return True if the body of {@code node} has the same tokens as the body of {@code otherNode}, a node of
+	 * {@code other}.
+	 */
+	public boolean sameBodyTokens(CstNode node, CstRootHelper<T> other, CstNode otherNode) {
+		int[] range = bodyTokenRange(node);
+		int[] otherRange = other.bodyTokenRange(otherNode);
+		if (range[1] - range[0] != otherRange[1] - otherRange[0]) {
+			return false;
+		}
+		int[] ids = tokenIds.get(node.getLocation().getFile());
+		int[] otherIds = other.tokenIds.get(otherNode.getLocation().getFile());
+		for (int i = 0; i < range[1] - range[0]; i++) {
+			if (ids[range[0] + i] != otherIds[otherRange[0] + i]) {
+				return false;
 			}
 		}
+		return true;
 	}
 	
-	private List<String> retrieveTokens(String sourceCode, CstNode node, boolean bodyOnly) {
-		return retrieveTokens(cstRoot, sourceCode, node, bodyOnly);
+	private int[] bodyTokenRange(CstNode node) {
+		if (!tokensCounted) {
+			throw new RuntimeException("Tokens not counted");
+		}
+		Location location = node.getLocation();
+		if (location.getBegin() == location.getBodyBegin()) {
+			return new int[] {0, 0};
+		}
+		TokenizedSource tokens = cstRoot.getTokenizedSource().get(location.getFile());
+		int bodyFrom = tokens.indexOfFirstTokenFrom(location.getBodyBegin());
+		int bodyTo = Math.max(bodyFrom, tokens.indexOfFirstTokenFrom(location.getBodyEnd()));
+		return new int[] {bodyFrom, bodyTo};
 	}
 	
 	public static List<String> retrieveTokens(CstRoot cstRoot, String sourceCode, CstNode node, boolean bodyOnly) {
@@ -238,12 +413,9 @@ public class CstRootHelper<T> {
 		}
 		TokenizedSource tokenizedSourceCode = cstRoot.getTokenizedSource().get(location.getFile());
 		List<String> tokens = new ArrayList<>();
-		for (int[] tokenPositon : tokenizedSourceCode.getTokens()) {
-			int tokenStart = tokenPositon[TokenizedSource.START];
-			int tokenEnd = tokenPositon[TokenizedSource.END];
-			if (tokenStart < nodeStart) {
-				continue;
-			}
+		for (int i = tokenizedSourceCode.indexOfFirstTokenFrom(nodeStart); i < tokenizedSourceCode.size(); i++) {
+			int tokenStart = tokenizedSourceCode.getStart(i);
+			int tokenEnd = tokenizedSourceCode.getEnd(i);
 			if (tokenStart >= nodeEnd) {
 				break;
 			}
@@ -257,24 +429,29 @@ public class CstRootHelper<T> {
 	}
 	
 	public T sourceRep(CstNode n) {
-		if (!srMap.containsKey(n)) {
-			throw new RuntimeException("Source representation not computed");
-		}
-		return srMap.get(n);
+		return memoized(srs, n, this::buildSourceRepresentation);
 	}
 	
 	public T bodySourceRep(CstNode n) {
-		if (!srBodyMap.containsKey(n)) {
-			throw new RuntimeException("Source representation not computed");
-		}
-		return srBodyMap.get(n);
+		return memoized(srBodies, n, this::buildBodySourceRepresentation);
 	}
 	
 	public T nameSourceRep(CstNode n) {
-		if (!srNameMap.containsKey(n)) {
-			throw new RuntimeException("Source representation not computed");
+		return memoized(srNames, n, srb::buildForCountedName);
+	}
+	
+	private T memoized(AtomicReferenceArray<T> representations, CstNode n, Function<CstNode, T> build) {
+		int id = index(n);
+		T sr = representations.get(id);
+		if (sr == null) {
+			if (!tokensCounted) {
+				throw new RuntimeException("Source representation not computed");
+			}
+			// Concurrent builds of the same node are equal, the first one stored is kept
+			representations.compareAndSet(id, null, build.apply(n));
+			sr = representations.get(id);
 		}
-		return srNameMap.get(n);
+		return sr;
 	}
 	
 	public static List<String> getNodePath(CstNode node) {
@@ -0,0 +1,95 @@
+package refdiffIdea.core.diff;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Emits the statistics of comparison steps as Java Flight Recorder events named {@code refdiff.ComparisonStep}, so
+ * that they can be recorded along with the rest of the activity of the JVM. The events are defined through the JFR
+ * API by reflection, as it is not part of every runtime RefDiff supports, and nothing is emitted without it.
+ */
+class JfrStepEvents {
+	
+	private static final Object FACTORY;
+	private static final Method NEW_EVENT;
+	private static final Method SET;
+	private static final Method COMMIT;
+	
+	static {
+		Object factory = null;
+		Method newEvent = null;
+		Method set = null;
+		Method commit = null;
+		try {
+			factory = createFactory();
+			newEvent = factory.getClass().getMethod("newEvent");
+			Class<?> event = Class.forName("jdk.jfr.Event");
+			set = event.getMethod("set", int.class, Object.class);
+			commit = event.getMethod("commit");
+		} catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+			factory = null;
+		}
+		FACTORY = factory;
+		NEW_EVENT = newEvent;
+		SET = set;
+		COMMIT = commit;
+	}
+	
+	static boolean isAvailable() {
+		return FACTORY != null;
+	}
+	
+	/**
+	 * Commits an event for each step of {@code report}. Events are only recorded while a recording enables them.
+	 */
+	static void commit(ComparisonReport report) {
+		if (FACTORY == null) {
+			return;
+		}
+		try {
+			for (StepStatistics statistics : report.getSteps()) {
+				Object event = NEW_EVENT.invoke(FACTORY);
+				SET.invoke(event, 0, statistics.getStep().name());
+				SET.invoke(event, 1, statistics.getWallTime());
+				SET.invoke(event, 2, statistics.getPairs());
+				SET.invoke(event, 3, statistics.getSimilarityEvaluations());
+				SET.invoke(event, 4, statistics.getKept());
+				SET.invoke(event, 5, statistics.getAllocatedBytes());
+				COMMIT.invoke(event);
+			}
+		} catch (ReflectiveOperationException e) {
+			// Statistics are still reported to the monitor
+		}
+	}
+	
+	private static Object createFactory() throws ReflectiveOperationException {
+		Constructor<?> newAnnotation = Class.forName("jdk.jfr.AnnotationElement").getConstructor(Class.class, Object.class);
+		Constructor<?> newField = Class.forName("jdk.jfr.ValueDescriptor").getConstructor(Class.class, String.class, List.class);
+		Class<? extends Annotation> name = annotation("jdk.jfr.Name");
+		Class<? extends Annotation> label = annotation("jdk.jfr.Label");
+		List<Object> annotations = Arrays.asList(
+			newAnnotation.newInstance(name, "refdiff.ComparisonStep"),
+			newAnnotation.newInstance(label, "Comparison Step"),
+			newAnnotation.newInstance(annotation("jdk.jfr.Category"), new String[] {"RefDiff"}));
+		List<Object> fields = Arrays.asList(
+			newField.newInstance(String.class, "step", Collections.singletonList(newAnnotation.newInstance(label, "Step"))),
+			newField.newInstance(long.class, "wallTime", Arrays.asList(newAnnotation.newInstance(label, "Wall Time"), 
+				newAnnotation.newInstance(annotation("jdk.jfr.Timespan"), "NANOSECONDS"))),
+			newField.newInstance(long.class, "pairs", Collections.singletonList(newAnnotation.newInstance(label, "Pairs"))),
+			newField.newInstance(long.class, "similarityEvaluations", Collections.singletonList(newAnnotation.newInstance(label, "Similarity Evaluations"))),
+			newField.newInstance(long.class, "kept", Collections.singletonList(newAnnotation.newInstance(label, "Kept"))),
+			newField.newInstance(long.class, "allocatedBytes", Arrays.asList(newAnnotation.newInstance(label, "Allocated"), 
+				newAnnotation.newInstance(annotation("jdk.jfr.DataAmount"), "BYTES"))));
+		return Class.forName("jdk.jfr.EventFactory").getMethod("create", List.class, List.class).invoke(null, annotations, fields);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static Class<? extends Annotation> annotation(String className) throws ClassNotFoundException {
+		return (Class<? extends Annotation>) Class.forName(className);
+	}
+	
+}
@@ -0,0 +1,97 @@
+package refdiffIdea.core.diff;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import refdiffIdea.core.cst.CstNode;
+import refdiffIdea.core.diff.similarity.SourceRepresentationBuilder;
+
+/**
+ * A locality-sensitive hashing index over the MinHash sketches of the source representations of a set of nodes.
+ * 
+ * <p>Each sketch is split into bands of consecutive values, and a node is proposed as a candidate when any of its 
+ * bands is equal to the same band of the queried representation. Two representations with similarity {@code s} 
+ * share a band with probability {@code 1 - (1 - s^rows)^bands}, so unlike {@link PrefixCandidateIndex} some similar 
+ * pairs may be missed, but the number of proposed pairs does not grow with the number of shared tokens.
+ */
+public class MinHashCandidateIndex<T> implements CandidateIndex<T> {
+	
+	private final SourceRepresentationBuilder<T> srb;
+	private final int bands;
+	private final int rows;
+	private final Map<Long, List<CstNode>> buckets = new HashMap<>();
+	private final int indexedNodes;
+	private final AtomicLong queries = new AtomicLong();
+	private final AtomicLong proposedPairs = new AtomicLong();
+	private final AtomicLong sketchTime = new AtomicLong();
+	
+	public MinHashCandidateIndex(SourceRepresentationBuilder<T> srb, CstRootHelper<T> helper, Collection<CstNode> nodes, int bands, int rows) {
+		if (bands < 1 || rows < 1) {
+			throw new IllegalArgumentException("bands and rows should be positive");
+		}
+		this.srb = srb;
+		this.bands = bands;
+		this.rows = rows;
+		int count = 0;
+		for (CstNode node : nodes) {
+			int[] sketch = sketch(helper.sourceRep(node));
+			if (sketch.length == 0) {
+				continue;
+			}
+			for (int band = 0; band < bands; band++) {
+				buckets.computeIfAbsent(bandKey(sketch, band), k -> new ArrayList<>()).add(node);
+			}
+			count++;
+		}
+		this.indexedNodes = count;
+	}
+	
+	/**
+	 * @return The indexed nodes that share at least one band of their sketch with {@code sourceRep}.
+	 */
+	@Override
+	public Set<CstNode> findCandidates(T sourceRep) {
+		Set<CstNode> candidates = new LinkedHashSet<>();
+		int[] sketch = sketch(sourceRep);
+		if (sketch.length > 0) {
+			for (int band = 0; band < bands; band++) {
+				candidates.addAll(buckets.getOrDefault(bandKey(sketch, band), Collections.emptyList()));
+			}
+		}
+		queries.incrementAndGet();
+		proposedPairs.addAndGet(candidates.size());
+		return candidates;
+	}
+	
+	private int[] sketch(T sourceRep) {
+		long start = System.nanoTime();
+		int[] sketch = srb.sketch(sourceRep, bands * rows);
+		sketchTime.addAndGet(System.nanoTime() - start);
+		return sketch;
+	}
+	
+	private long bandKey(int[] sketch, int band) {
+		long key = band;
+		for (int i = band * rows; i < (band + 1) * rows; i++) {
+			key = key * 0x9E3779B97F4A7C15L + sketch[i];
+			key ^= key >>> 29;
+		}
+		return key;
+	}
+	
+	public MinHashStatistics getStatistics() {
+		int largestBucket = 0;
+		for (List<CstNode> bucket : buckets.values()) {
+			largestBucket = Math.max(largestBucket, bucket.size());
+		}
+		return new MinHashStatistics(bands, rows, indexedNodes, buckets.size(), largestBucket, queries.get(), proposedPairs.get(), sketchTime.get());
+	}
+	
+}
@@ -0,0 +1,78 @@
+package refdiffIdea.core.diff;
+
+/**
+ * Describes how a {@link MinHashCandidateIndex} was built and used during a comparison.
+ */
+public class MinHashStatistics {
+	
+	private final int bands;
+	private final int rows;
+	private final int indexedNodes;
+	private final int buckets;
+	private final int largestBucket;
+	private final long queries;
+	private final long proposedPairs;
+	private final long sketchTime;
+	
+	public MinHashStatistics(int bands, int rows, int indexedNodes, int buckets, int largestBucket, long queries, long proposedPairs, long sketchTime) {
+		this.bands = bands;
+		this.rows = rows;
+		this.indexedNodes = indexedNodes;
+		this.buckets = buckets;
+		this.largestBucket = largestBucket;
+		this.queries = queries;
+		this.proposedPairs = proposedPairs;
+		this.sketchTime = sketchTime;
+	}
+	
+	public int getBands() {
+		return bands;
+	}
+	
+	public int getRows() {
+		return rows;
+	}
+	
+	/**
+	 * @return The number of nodes with a non empty sketch.
+	 */
+	public int getIndexedNodes() {
+		return indexedNodes;
+	}
+	
+	/**
+	 * @return The number of distinct band values among the indexed nodes.
+	 */
+	public int getBuckets() {
+		return buckets;
+	}
+	
+	public int getLargestBucket() {
+		return largestBucket;
+	}
+	
+	public long getQueries() {
+		return queries;
+	}
+	
+	/**
+	 * @return The number of candidate pairs proposed by the index, before they are scored.
+	 */
+	public long getProposedPairs() {
+		return proposedPairs;
+	}
+	
+	/**
+	 * @return The time spent computing sketches, in nanoseconds, summed over all threads.
+	 */
+	public long getSketchTime() {
+		return sketchTime;
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("MinHash %dx%d: %d nodes, %d buckets (largest %d), %d queries, %d pairs, sketches in %d ms", 
+			bands, rows, indexedNodes, buckets, largestBucket, queries, proposedPairs, sketchTime / 1000000);
+	}
+	
+}
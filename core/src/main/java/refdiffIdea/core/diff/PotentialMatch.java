@@ -42,6 +42,7 @@ public class PotentialMatch implements Comparable<PotentialMatch> {
 		int c1 = -Double.compare(score, o.score);
 		int c2 = Integer.compare(maxDepth, o.maxDepth);
 		int c3 = Integer.compare(nodeBefore.getId(), o.nodeBefore.getId());
-		return c1 != 0 ? c1 : c2 != 0 ? c2 : c3;
+		int c4 = Integer.compare(nodeAfter.getId(), o.nodeAfter.getId());
+		return c1 != 0 ? c1 : c2 != 0 ? c2 : c3 != 0 ? c3 : c4;
 	}
 }
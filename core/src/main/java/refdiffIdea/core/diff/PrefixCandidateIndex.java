@@ -0,0 +1,54 @@
+package refdiffIdea.core.diff;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import refdiffIdea.core.cst.CstNode;
+import refdiffIdea.core.diff.similarity.SourceRepresentationBuilder;
+
+/**
+ * An inverted index from the rarest tokens of the source representations of a set of nodes to those nodes.
+ * 
+ * <p>Only the tokens selected by {@link SourceRepresentationBuilder#indexTokens} are indexed, so a lookup returns
+ * exactly the nodes that may have a similarity greater than the index threshold with the queried representation.
+ * All other pairs can be skipped without changing the outcome of a comparison against that threshold.
+ */
+public class PrefixCandidateIndex<T> implements CandidateIndex<T> {
+	
+	private final SourceRepresentationBuilder<T> srb;
+	private final double threshold;
+	private final Map<Integer, List<CstNode>> postings = new HashMap<>();
+	
+	public PrefixCandidateIndex(SourceRepresentationBuilder<T> srb, CstRootHelper<T> helper, Collection<CstNode> nodes, double threshold) {
+		this.srb = srb;
+		this.threshold = threshold;
+		for (CstNode node : nodes) {
+			for (int token : srb.indexTokens(helper.sourceRep(node), threshold)) {
+				postings.computeIfAbsent(token, k -> new ArrayList<>()).add(node);
+			}
+		}
+	}
+	
+	/**
+	 * @return The indexed nodes that share at least one index token with {@code sourceRep}.
+	 */
+	@Override
+	public Set<CstNode> findCandidates(T sourceRep) {
+		Set<CstNode> candidates = new LinkedHashSet<>();
+		for (int token : srb.indexTokens(sourceRep, threshold)) {
+			candidates.addAll(postings.getOrDefault(token, Collections.emptyList()));
+		}
+		return candidates;
+	}
+	
+	public double getThreshold() {
+		return threshold;
+	}
+	
+}
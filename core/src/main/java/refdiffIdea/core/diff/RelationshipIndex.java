@@ -0,0 +1,167 @@
+package refdiffIdea.core.diff;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.function.IntUnaryOperator;
+
+import refdiffIdea.core.cst.CstNodeRelationship;
+import refdiffIdea.core.cst.CstNodeRelationshipType;
+
+/**
+ * The relationships of a CST, as compressed sparse rows per relationship type: the neighbours of the node at index
+ * {@code i} are {@code targets[offsets[i]]} to {@code targets[offsets[i + 1] - 1]}, in both directions. Nodes are
+ * identified by their index in the node arrays of {@link CstRootHelper}. The pairs of each type
+ * are also kept in an open addressing set of {@code (n1, n2)} packed into longs, so that an edge is checked in
+ * constant time.
+ */
+class RelationshipIndex {
+	
+	private static final long EMPTY = -1L;
+	
+	private final int[][] offsets;
+	private final int[][] targets;
+	private final int[][] reverseOffsets;
+	private final int[][] reverseTargets;
+	private final long[][] pairs;
+	
+	/**
+	 * @param length The number of node indexes.
+	 * @param slots  Maps a node id to its index, or to -1 for ids of no node. Relationships with such ids are ignored.
+	 */
+	RelationshipIndex(Collection<CstNodeRelationship> relationships, int length, IntUnaryOperator slots) {
+		int types = CstNodeRelationshipType.values().length;
+		offsets = new int[types][];
+		targets = new int[types][];
+		reverseOffsets = new int[types][];
+		reverseTargets = new int[types][];
+		pairs = new long[types][];
+		int[][] degrees = new int[types][];
+		int[][] reverseDegrees = new int[types][];
+		int[] counts = new int[types];
+		int[] n1s = new int[relationships.size()];
+		int[] n2s = new int[relationships.size()];
+		int r = 0;
+		for (CstNodeRelationship relationship : relationships) {
+			int t = relationship.getType().ordinal();
+			int n1 = slots.applyAsInt(relationship.getN1());
+			int n2 = slots.applyAsInt(relationship.getN2());
+			n1s[r] = n1;
+			n2s[r++] = n2;
+			if (n1 >= 0 && n2 >= 0) {
+				if (degrees[t] == null) {
+					degrees[t] = new int[length + 1];
+					reverseDegrees[t] = new int[length + 1];
+				}
+				degrees[t][n1 + 1]++;
+				reverseDegrees[t][n2 + 1]++;
+				counts[t]++;
+			}
+		}
+		for (int t = 0; t < types; t++) {
+			if (counts[t] > 0) {
+				offsets[t] = prefixSums(degrees[t]);
+				reverseOffsets[t] = prefixSums(reverseDegrees[t]);
+				targets[t] = new int[counts[t]];
+				reverseTargets[t] = new int[counts[t]];
+				pairs[t] = new long[tableSize(counts[t])];
+				Arrays.fill(pairs[t], EMPTY);
+			}
+		}
+		// The degree arrays are reused as the next free position of each row
+		for (int t = 0; t < types; t++) {
+			if (counts[t] > 0) {
+				System.arraycopy(offsets[t], 0, degrees[t], 0, length + 1);
+				System.arraycopy(reverseOffsets[t], 0, reverseDegrees[t], 0, length + 1);
+			}
+		}
+		r = 0;
+		for (CstNodeRelationship relationship : relationships) {
+			int t = relationship.getType().ordinal();
+			int n1 = n1s[r];
+			int n2 = n2s[r++];
+			if (n1 >= 0 && n2 >= 0) {
+				targets[t][degrees[t][n1]++] = n2;
+				reverseTargets[t][reverseDegrees[t][n2]++] = n1;
+				add(pairs[t], pack(n1, n2));
+			}
+		}
+	}
+	
+	/**
+	 * @return The number of nodes {@code node} is related to by relationships of the given type.
+	 */
+	int count(CstNodeRelationshipType type, int node) {
+		int[] rows = offsets[type.ordinal()];
+		return rows == null ? 0 : rows[node + 1] - rows[node];
+	}
+	
+	/**
+	 * @return The {@code i}-th node {@code node} is related to.
+	 */
+	int get(CstNodeRelationshipType type, int node, int i) {
+		return targets[type.ordinal()][offsets[type.ordinal()][node] + i];
+	}
+	
+	/**
+	 * @return The number of nodes related to {@code node} by relationships of the given type.
+	 */
+	int countReverse(CstNodeRelationshipType type, int node) {
+		int[] rows = reverseOffsets[type.ordinal()];
+		return rows == null ? 0 : rows[node + 1] - rows[node];
+	}
+	
+	/**
+	 * @return The {@code i}-th node related to {@code node}.
+	 */
+	int getReverse(CstNodeRelationshipType type, int node, int i) {
+		return reverseTargets[type.ordinal()][reverseOffsets[type.ordinal()][node] + i];
+	}
+	
+	boolean contains(CstNodeRelationshipType type, int n1, int n2) {
+		long[] table = pairs[type.ordinal()];
+		if (table == null) {
+			return false;
+		}
+		long key = pack(n1, n2);
+		int mask = table.length - 1;
+		for (int slot = slot(key, mask); ; slot = (slot + 1) & mask) {
+			if (table[slot] == key) {
+				return true;
+			} else if (table[slot] == EMPTY) {
+				return false;
+			}
+		}
+	}
+	
+	private static int[] prefixSums(int[] degrees) {
+		int[] sums = new int[degrees.length];
+		for (int i = 1; i < degrees.length; i++) {
+			sums[i] = sums[i - 1] + degrees[i];
+		}
+		return sums;
+	}
+	
+	private static int tableSize(int count) {
+		// At most half full
+		return Integer.highestOneBit(Math.max(2, count) * 2 - 1) << 1;
+	}
+	
+	private static void add(long[] table, long key) {
+		int mask = table.length - 1;
+		int slot = slot(key, mask);
+		while (table[slot] != EMPTY && table[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+		table[slot] = key;
+	}
+	
+	private static long pack(int n1, int n2) {
+		return ((long) n1 << 32) | (n2 & 0xFFFFFFFFL);
+	}
+	
+	private static int slot(long key, int mask) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+	
+}
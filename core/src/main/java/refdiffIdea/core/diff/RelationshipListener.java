@@ -0,0 +1,21 @@
+package refdiffIdea.core.diff;
+
+/**
+ * Receives the relationships of a diff while it is computed, as soon as each of them is confirmed. Matched nodes 
+ * are related once all phases of matching are done, and the relationships inferred from them, such as extracted or
+ * inlined nodes, follow. A relationship is never withdrawn once published.
+ * 
+ * @see CstComparator#addRelationshipListener(RelationshipListener)
+ */
+public interface RelationshipListener {
+	
+	/**
+	 * Called on the comparing thread, when a relationship is added to a diff.
+	 * 
+	 * @param diff The diff being computed, which identifies the comparison. It should not be read until the 
+	 * comparison returns it, as it is still modified.
+	 * @param relationship The new relationship.
+	 */
+	void relationshipAdded(CstDiff diff, Relationship relationship);
+	
+}
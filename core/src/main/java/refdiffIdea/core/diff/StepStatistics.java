@@ -0,0 +1,69 @@
+package refdiffIdea.core.diff;
+
+/**
+ * Describes the work done by a step of a comparison.
+ */
+public class StepStatistics {
+	
+	private final ComparisonStep step;
+	private final long wallTime;
+	private final long pairs;
+	private final long similarityEvaluations;
+	private final long kept;
+	private final long allocatedBytes;
+	
+	public StepStatistics(ComparisonStep step, long wallTime, long pairs, long similarityEvaluations, long kept, long allocatedBytes) {
+		this.step = step;
+		this.wallTime = wallTime;
+		this.pairs = pairs;
+		this.similarityEvaluations = similarityEvaluations;
+		this.kept = kept;
+		this.allocatedBytes = allocatedBytes;
+	}
+	
+	public ComparisonStep getStep() {
+		return step;
+	}
+	
+	/**
+	 * @return The elapsed time of the step, in nanoseconds.
+	 */
+	public long getWallTime() {
+		return wallTime;
+	}
+	
+	/**
+	 * @return The number of pairs of a removed and an added node examined by the step.
+	 */
+	public long getPairs() {
+		return pairs;
+	}
+	
+	/**
+	 * @return The number of similarities computed between source representations.
+	 */
+	public long getSimilarityEvaluations() {
+		return similarityEvaluations;
+	}
+	
+	/**
+	 * @return The number of node matches and relationships added by the step.
+	 */
+	public long getKept() {
+		return kept;
+	}
+	
+	/**
+	 * @return The number of bytes allocated by the comparing thread and the scoring threads during the step, or -1 
+	 * if the JVM does not measure allocations.
+	 */
+	public long getAllocatedBytes() {
+		return allocatedBytes;
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("%-24s %10.3f ms %10d pairs %10d evaluations %8d kept %12d bytes", step, wallTime / 1e6, pairs, similarityEvaluations, kept, allocatedBytes);
+	}
+	
+}
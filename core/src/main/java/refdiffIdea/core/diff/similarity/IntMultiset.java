@@ -0,0 +1,204 @@
+package refdiffIdea.core.diff.similarity;
+
+import java.util.Arrays;
+
+/**
+ * An immutable multiset of token ids, stored as a sorted array of distinct ids and a parallel array of their
+ * multiplicities. Set operations and similarity computations are linear merges over both arrays.
+ */
+public final class IntMultiset {
+	
+	private static final int[] NO_VALUES = new int[0];
+	public static final IntMultiset EMPTY = new IntMultiset(NO_VALUES, NO_VALUES, 0, 0);
+	
+	private final int[] ids;
+	private final int[] counts;
+	private final int length;
+	private final int size;
+	
+	private IntMultiset(int[] ids, int[] counts, int length, int size) {
+		this.ids = ids;
+		this.counts = counts;
+		this.length = length;
+		this.size = size;
+	}
+	
+	/**
+	 * @return The number of distinct ids.
+	 */
+	public int distinctCount() {
+		return length;
+	}
+	
+	/**
+	 * @return The i-th distinct id, in increasing order.
+	 */
+	public int getId(int i) {
+		return ids[i];
+	}
+	
+	/**
+	 * @return The multiplicity of the i-th distinct id.
+	 */
+	public int getCount(int i) {
+		return counts[i];
+	}
+	
+	public int getMultiplicity(int id) {
+		int i = Arrays.binarySearch(ids, 0, length, id);
+		return i < 0 ? 0 : counts[i];
+	}
+	
+	public boolean contains(int id) {
+		return Arrays.binarySearch(ids, 0, length, id) >= 0;
+	}
+	
+	/**
+	 * @return The number of elements, counting repetitions.
+	 */
+	public int size() {
+		return size;
+	}
+	
+	public boolean isEmpty() {
+		return size == 0;
+	}
+	
+	public IntMultiset plus(IntMultiset other) {
+		if (other.isEmpty()) {
+			return this;
+		}
+		if (isEmpty()) {
+			return other;
+		}
+		int[] resultIds = new int[length + other.length];
+		int[] resultCounts = new int[length + other.length];
+		int i = 0;
+		int j = 0;
+		int k = 0;
+		while (i < length || j < other.length) {
+			if (j == other.length || i < length && ids[i] < other.ids[j]) {
+				resultIds[k] = ids[i];
+				resultCounts[k++] = counts[i++];
+			} else if (i == length || other.ids[j] < ids[i]) {
+				resultIds[k] = other.ids[j];
+				resultCounts[k++] = other.counts[j++];
+			} else {
+				resultIds[k] = ids[i];
+				resultCounts[k++] = counts[i++] + other.counts[j++];
+			}
+		}
+		return new IntMultiset(resultIds, resultCounts, k, size + other.size);
+	}
+	
+	public IntMultiset minus(IntMultiset other) {
+		if (other.isEmpty()) {
+			return this;
+		}
+		int[] resultIds = new int[length];
+		int[] resultCounts = new int[length];
+		int k = 0;
+		int resultSize = 0;
+		int j = 0;
+		for (int i = 0; i < length; i++) {
+			while (j < other.length && other.ids[j] < ids[i]) {
+				j++;
+			}
+			int diff = counts[i];
+			if (j < other.length && other.ids[j] == ids[i]) {
+				diff -= other.counts[j];
+			}
+			if (diff > 0) {
+				resultIds[k] = ids[i];
+				resultCounts[k++] = diff;
+				resultSize += diff;
+			}
+		}
+		return new IntMultiset(resultIds, resultCounts, k, resultSize);
+	}
+	
+	/**
+	 * @return A multiset without any occurrence of the ids contained in {@code other}.
+	 */
+	public IntMultiset minusElements(IntMultiset other) {
+		if (other.isEmpty()) {
+			return this;
+		}
+		int[] resultIds = new int[length];
+		int[] resultCounts = new int[length];
+		int k = 0;
+		int resultSize = 0;
+		int j = 0;
+		for (int i = 0; i < length; i++) {
+			while (j < other.length && other.ids[j] < ids[i]) {
+				j++;
+			}
+			if (j == other.length || other.ids[j] != ids[i]) {
+				resultIds[k] = ids[i];
+				resultCounts[k++] = counts[i];
+				resultSize += counts[i];
+			}
+		}
+		return new IntMultiset(resultIds, resultCounts, k, resultSize);
+	}
+	
+	public String toString(TokenDictionary dictionary) {
+		StringBuilder sb = new StringBuilder("{");
+		for (int i = 0; i < length; i++) {
+			if (i > 0) {
+				sb.append(", ");
+			}
+			sb.append(dictionary.getToken(ids[i])).append('=').append(counts[i]);
+		}
+		return sb.append('}').toString();
+	}
+	
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("{");
+		for (int i = 0; i < length; i++) {
+			if (i > 0) {
+				sb.append(", ");
+			}
+			sb.append(ids[i]).append('=').append(counts[i]);
+		}
+		return sb.append('}').toString();
+	}
+	
+	/**
+	 * Accumulates ids in any order and builds the sorted multiset once.
+	 */
+	public static class Builder {
+		private int[] buffer = new int[16];
+		private int count = 0;
+		
+		public Builder add(int id) {
+			if (count == buffer.length) {
+				buffer = Arrays.copyOf(buffer, count * 2);
+			}
+			buffer[count++] = id;
+			return this;
+		}
+		
+		public IntMultiset build() {
+			if (count == 0) {
+				return EMPTY;
+			}
+			int[] sorted = Arrays.copyOf(buffer, count);
+			Arrays.sort(sorted);
+			int[] ids = new int[count];
+			int[] counts = new int[count];
+			int k = 0;
+			for (int i = 0; i < count; i++) {
+				if (k > 0 && ids[k - 1] == sorted[i]) {
+					counts[k - 1]++;
+				} else {
+					ids[k] = sorted[i];
+					counts[k++] = 1;
+				}
+			}
+			return new IntMultiset(ids, counts, k, count);
+		}
+	}
+	
+}
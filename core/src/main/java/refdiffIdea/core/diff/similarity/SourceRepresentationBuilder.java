@@ -3,6 +3,7 @@ package refdiffIdea.core.diff.similarity;
 import java.util.List;
 
 import refdiffIdea.core.cst.CstNode;
+import refdiffIdea.core.cst.TokenizedSource;
 
 public interface SourceRepresentationBuilder<T> {
 	
@@ -12,6 +13,55 @@ public interface SourceRepresentationBuilder<T> {
 	
 	T buildForFragment(List<String> tokenizedSourceCode);
 	
+	/**
+	 * Same as {@link #buildForNode(CstNode, boolean, List)}, reading the tokens {@code [from, to)} of 
+	 * {@code tokens} directly from {@code sourceCode} instead of from a list of strings.
+	 */
+	T buildForNode(CstNode node, boolean isBefore, CharSequence sourceCode, TokenizedSource tokens, int from, int to);
+	
+	/**
+	 * Same as {@link #buildForFragment(List)}, reading the tokens {@code [from, to)} of {@code tokens} directly 
+	 * from {@code sourceCode} instead of from a list of strings.
+	 */
+	T buildForFragment(CharSequence sourceCode, TokenizedSource tokens, int from, int to);
+	
+	/**
+	 * Assigns an id to every token of a source file, to be passed to the methods below reading tokens by id.
+	 *
+	 * @return The id of each token of {@code tokens}, by position
+	 */
+	int[] internTokens(CharSequence sourceCode, TokenizedSource tokens);
+	
+	/**
+	 * Counts the document frequencies of the tokens of a node exactly as
+	 * {@link #buildForNode(CstNode, boolean, CharSequence, TokenizedSource, int, int)} and
+	 * {@link #buildForName(CstNode, boolean)} would, without building its representations. These are built later,
+	 * when first needed, by {@link #buildForCountedNode(CstNode, int[], int, int)} and
+	 * {@link #buildForCountedName(CstNode)}.
+	 *
+	 * @param tokenIds The ids of the tokens of the file of {@code node}, as returned by
+	 *                 {@link #internTokens(CharSequence, TokenizedSource)}
+	 */
+	void countNode(CstNode node, boolean isBefore, int[] tokenIds, int from, int to);
+	
+	/**
+	 * Builds the representation of a node whose tokens were counted by
+	 * {@link #countNode(CstNode, boolean, int[], int, int)}. Nothing is counted, so this may be called after the
+	 * initialization phase, and from several threads once every node is counted.
+	 */
+	T buildForCountedNode(CstNode node, int[] tokenIds, int from, int to);
+	
+	/**
+	 * Same as {@link #buildForCountedNode(CstNode, int[], int, int)} for the representation of the name of a node.
+	 */
+	T buildForCountedName(CstNode node);
+	
+	/**
+	 * Same as {@link #buildForFragment(List)}, reading the ids of the tokens {@code [from, to)} of a file interned
+	 * by {@link #internTokens(CharSequence, TokenizedSource)}.
+	 */
+	T buildForFragment(int[] tokenIds, int from, int to);
+	
 	T combine(T arg1, T arg2);
 	
 	T minus(T arg1, T arg2);
@@ -21,9 +71,44 @@ public interface SourceRepresentationBuilder<T> {
 	double similarity(T arg1, T arg2);
 	
 	double partialSimilarity(T arg1, T arg2);
+	
+	/**
+	 * Threshold-aware variant of {@link #similarity(Object, Object)}. If the similarity is greater than 
+	 * {@code threshold} the same value is returned. Otherwise the computation may stop as soon as the pair is known
+	 * not to pass, and the returned value is only guaranteed to be not greater than {@code threshold}.
+	 */
+	double similarity(T arg1, T arg2, double threshold);
+	
+	/**
+	 * Threshold-aware variant of {@link #partialSimilarity(Object, Object)}, with the same guarantees as 
+	 * {@link #similarity(Object, Object, double)}.
+	 */
+	double partialSimilarity(T arg1, T arg2, double threshold);
 
 	double rawSimilarity(T arg1, T arg2);
 
 	int size(T arg);
 
+	/**
+	 * Selects the tokens of {@code arg} that any representation whose similarity to {@code arg} is greater than
+	 * {@code threshold} is guaranteed to share with its own selection. Indexing nodes by these tokens allows to skip
+	 * pairs that could never reach the threshold without computing their similarity.
+	 * 
+	 * @param arg       A source representation
+	 * @param threshold The similarity a pair must exceed to be relevant
+	 * @return The ids of the selected tokens
+	 */
+	int[] indexTokens(T arg, double threshold);
+	
+	/**
+	 * Computes a MinHash sketch of {@code arg}, such that the fraction of positions where the sketches of two 
+	 * representations are equal estimates their similarity.
+	 * 
+	 * @param arg  A source representation
+	 * @param size The number of values in the sketch
+	 * @return The sketch, or an empty array if {@code arg} has no tokens
+	 */
+	int[] sketch(T arg, int size);
+
+
 }
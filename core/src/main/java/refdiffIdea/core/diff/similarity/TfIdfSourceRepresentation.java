@@ -1,36 +1,44 @@
 package refdiffIdea.core.diff.similarity;
 
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
-import java.util.Set;
 
 public class TfIdfSourceRepresentation {
 	
-	private final Multiset<String> tokens;
+	private final IntMultiset tokens;
 	private final Vocabulary vocabulary;
+	private double mass = Double.NaN;
+	private int[] sketch = null;
 	
-	public TfIdfSourceRepresentation(Multiset<String> tokens, Vocabulary vocabulary) {
+	public TfIdfSourceRepresentation(IntMultiset tokens, Vocabulary vocabulary) {
 		this.tokens = tokens;
 		this.vocabulary = vocabulary;
 	}
 	
 	public TfIdfSourceRepresentation minus(TfIdfSourceRepresentation other) {
-		return new TfIdfSourceRepresentation(tokens.minus((other).tokens), vocabulary);
+		return new TfIdfSourceRepresentation(tokens.minus(other.tokens), vocabulary);
 	}
 	
 	public TfIdfSourceRepresentation minus(List<String> tokensToRemove) {
-		return new TfIdfSourceRepresentation(tokens.minusElements(tokensToRemove), vocabulary);
+		TokenDictionary dictionary = vocabulary.getDictionary();
+		IntMultiset.Builder ids = new IntMultiset.Builder();
+		for (String token : tokensToRemove) {
+			int id = dictionary.find(token);
+			if (id != TokenDictionary.UNKNOWN) {
+				ids.add(id);
+			}
+		}
+		return new TfIdfSourceRepresentation(tokens.minusElements(ids.build()), vocabulary);
 	}
 	
 	public String toString() {
-		return tokens.toString();
+		return tokens.toString(vocabulary.getDictionary());
 	}
 	
 	public TfIdfSourceRepresentation combine(TfIdfSourceRepresentation sr) {
-		Multiset<String> multisetUnion = tokens;
-		TfIdfSourceRepresentation tokenIdfSR = (TfIdfSourceRepresentation) sr;
-		multisetUnion = multisetUnion.plus(tokenIdfSR.tokens);
-		return new TfIdfSourceRepresentation(multisetUnion, vocabulary);
+		return new TfIdfSourceRepresentation(tokens.plus(sr.tokens), vocabulary);
 	}
 	
 	public double similarity(TfIdfSourceRepresentation other) {
@@ -42,46 +50,217 @@ public class TfIdfSourceRepresentation {
 	}
 	
 	public double jaccardSimilarity(TfIdfSourceRepresentation other, boolean partial) {
-		double[] tuple = jaccardSimilarityDecomposed(other, partial);
-		return tuple[0] / tuple[1];
+		if (tokens.isEmpty() || other.tokens.isEmpty()) {
+			return 0.0;
+		}
+		double idfu = weightedIntersection(other);
+		if (partial) {
+			return idfu / weightedMass();
+		}
+		return idfu / (weightedMass() + other.weightedMass() - idfu);
+	}
+	
+	/**
+	 * Computes the weighted Jaccard similarity if it is greater than {@code threshold}, returning the same value as 
+	 * {@link #jaccardSimilarity}. Otherwise the merge of tokens is abandoned as soon as the best reachable similarity
+	 * is known to be not greater than {@code threshold}, and that bound is returned instead.
+	 */
+	public double jaccardSimilarity(TfIdfSourceRepresentation other, boolean partial, double threshold) {
+		if (tokens.isEmpty() || other.tokens.isEmpty()) {
+			return 0.0;
+		}
+		double w1 = weightedMass();
+		double w2 = other.weightedMass();
+		// Rounding errors may only keep pairs that could have been rejected, never the opposite
+		double tolerance = 1e-9 * (w1 + w2);
+		double minIntersection = partial ? threshold * w1 : threshold * (w1 + w2) / (1.0 + threshold);
+		double idfu = weightedIntersection(other, minIntersection - tolerance);
+		if (partial) {
+			return idfu / w1;
+		}
+		return idfu / (w1 + w2 - idfu);
 	}
 	
 	public double[] jaccardSimilarityDecomposed(TfIdfSourceRepresentation other, boolean partial) {
-		Multiset<String> tokens2 = other.tokens;
-		if (tokens.isEmpty() || tokens2.isEmpty()) {
+		if (tokens.isEmpty() || other.tokens.isEmpty()) {
 			return new double[]{0.0, 1.0};
 		}
-		Set<String> keys = new HashSet<String>();
-		keys.addAll(tokens.asSet());
-		keys.addAll(tokens2.asSet());
+		double idfu = weightedIntersection(other);
+		if (partial) {
+			return new double[]{idfu, weightedMass()};
+		}
+		return new double[]{idfu, weightedMass() + other.weightedMass() - idfu};
+	}
+	
+	/**
+	 * @return The sum, over the tokens of both representations, of the smaller of their TF-IDF weights.
+	 */
+	public double weightedIntersection(TfIdfSourceRepresentation other) {
+		IntMultiset tokens2 = other.tokens;
+		int length1 = tokens.distinctCount();
+		int length2 = tokens2.distinctCount();
 		double idfu = 0.0;
-		double idfd = 0.0;
-		for (String key : keys) {
-			double c1 = tf(tokens.getMultiplicity(key));
-			double c2 = tf(tokens2.getMultiplicity(key));
-			double idf = vocabulary.getIdf(key);
-			idfu += Math.min(c1 * idf, c2 * idf);
-			idfd += Math.max(c1 * idf, c2 * idf);
+		int i = 0;
+		int j = 0;
+		while (i < length1 && j < length2) {
+			int id1 = tokens.getId(i);
+			int id2 = tokens2.getId(j);
+			if (id1 < id2) {
+				i++;
+			} else if (id2 < id1) {
+				j++;
+			} else {
+				idfu += tf(Math.min(tokens.getCount(i), tokens2.getCount(j))) * vocabulary.getIdf(id1);
+				i++;
+				j++;
+			}
 		}
-		if (partial) {
-			double idfp = 0.0;
-			for (String key : tokens.asSet()) {
-				double idf = vocabulary.getIdf(key);
-				double c1 = tf(tokens.getMultiplicity(key));
-				idfp += c1 * idf;
+		return idfu;
+	}
+	
+	/**
+	 * Computes the weighted intersection like {@link #weightedIntersection(TfIdfSourceRepresentation)}, unless it 
+	 * cannot be greater than {@code minIntersection}. In that case an upper bound not greater than 
+	 * {@code minIntersection} is returned, possibly before all tokens are merged.
+	 */
+	public double weightedIntersection(TfIdfSourceRepresentation other, double minIntersection) {
+		IntMultiset tokens2 = other.tokens;
+		double remaining1 = weightedMass();
+		double remaining2 = other.weightedMass();
+		if (Math.min(remaining1, remaining2) <= minIntersection) {
+			return Math.min(remaining1, remaining2);
+		}
+		int length1 = tokens.distinctCount();
+		int length2 = tokens2.distinctCount();
+		double idfu = 0.0;
+		int i = 0;
+		int j = 0;
+		while (i < length1 && j < length2) {
+			int id1 = tokens.getId(i);
+			int id2 = tokens2.getId(j);
+			if (id1 < id2) {
+				remaining1 -= tf(tokens.getCount(i)) * vocabulary.getIdf(id1);
+				i++;
+			} else if (id2 < id1) {
+				remaining2 -= tf(tokens2.getCount(j)) * vocabulary.getIdf(id2);
+				j++;
+			} else {
+				double idf = vocabulary.getIdf(id1);
+				int c1 = tokens.getCount(i);
+				int c2 = tokens2.getCount(j);
+				idfu += tf(Math.min(c1, c2)) * idf;
+				remaining1 -= tf(c1) * idf;
+				remaining2 -= tf(c2) * idf;
+				i++;
+				j++;
+				continue;
+			}
+			double bound = idfu + Math.min(remaining1, remaining2);
+			if (bound <= minIntersection) {
+				return bound;
 			}
-			return new double[]{idfu, idfp};
 		}
-		return new double[]{idfu, idfd};
+		return idfu;
+	}
+	
+	/**
+	 * @return The sum of the TF-IDF weights of the tokens of this representation. It is computed only once after
+	 * the vocabulary is frozen, as the weights cannot change afterwards.
+	 */
+	public double weightedMass() {
+		if (!Double.isNaN(mass)) {
+			return mass;
+		}
+		double sum = 0.0;
+		for (int i = 0; i < tokens.distinctCount(); i++) {
+			sum += tf(tokens.getCount(i)) * vocabulary.getIdf(tokens.getId(i));
+		}
+		if (vocabulary.isFrozen()) {
+			mass = sum;
+		}
+		return sum;
+	}
+	
+	/**
+	 * Computes the prefix of the tokens, ordered by decreasing IDF, that holds all but at most {@code threshold} of
+	 * the weighted mass of this representation. Given the same order for every representation, two of them with a
+	 * weighted Jaccard similarity greater than {@code threshold} always share a prefix token.
+	 */
+	public int[] prefixTokens(double threshold) {
+		List<Integer> sorted = new ArrayList<>(tokens.distinctCount());
+		for (int i = 0; i < tokens.distinctCount(); i++) {
+			sorted.add(tokens.getId(i));
+		}
+		sorted.sort(Comparator.comparingDouble((Integer id) -> -vocabulary.getIdf(id)).thenComparing(Comparator.naturalOrder()));
+		double total = weightedMass();
+		// Keep a small margin so that rounding errors can only make the prefix longer
+		double maxRemaining = (threshold - 1e-9) * total;
+		double remaining = total;
+		int[] prefix = new int[sorted.size()];
+		int length = 0;
+		for (int id : sorted) {
+			if (remaining <= maxRemaining) {
+				break;
+			}
+			prefix[length++] = id;
+			remaining -= tf(tokens.getMultiplicity(id)) * vocabulary.getIdf(id);
+		}
+		return length == prefix.length ? prefix : Arrays.copyOf(prefix, length);
+	}
+	
+	/**
+	 * Computes a weighted MinHash sketch of this representation. For each hash function, the sketch holds the token
+	 * minimizing {@code -ln(u) / weight}, where {@code u} is a uniform hash of the token id. A token is selected with
+	 * probability proportional to its TF-IDF weight, so the fraction of equal values in two sketches estimates a
+	 * weighted Jaccard similarity of the representations. The sketch is kept once the vocabulary is frozen.
+	 * 
+	 * @param size The number of hash functions.
+	 * @return The sketch, or an empty array if the representation is empty.
+	 */
+	public int[] getSketch(int size) {
+		int[] cached = sketch;
+		if (cached != null && (cached.length == size || tokens.isEmpty())) {
+			return cached;
+		}
+		int[] result = new int[tokens.isEmpty() ? 0 : size];
+		for (int k = 0; k < result.length; k++) {
+			double min = Double.POSITIVE_INFINITY;
+			for (int i = 0; i < tokens.distinctCount(); i++) {
+				int id = tokens.getId(i);
+				double weight = tf(tokens.getCount(i)) * vocabulary.getIdf(id);
+				double value = -Math.log(uniformHash(id, k)) / weight;
+				if (value < min) {
+					min = value;
+					result[k] = id;
+				}
+			}
+		}
+		if (vocabulary.isFrozen()) {
+			sketch = result;
+		}
+		return result;
+	}
+	
+	private static double uniformHash(int id, int k) {
+		long h = ((long) id << 32 | (k & 0xFFFFFFFFL)) + 0x9E3779B97F4A7C15L;
+		h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+		h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+		h = h ^ (h >>> 31);
+		// 53 random bits mapped to the open interval (0, 1)
+		return ((h >>> 11) + 0.5) / (1L << 53);
 	}
 	
 	private double tf(int multiplicity) {
 		//return Math.log(1.0 + multiplicity);
 		return multiplicity;
 	}
-
+	
 	public int getSize() {
 		return tokens.size();
 	}
-
+	
+	public IntMultiset getTokens() {
+		return tokens;
+	}
+	
 }
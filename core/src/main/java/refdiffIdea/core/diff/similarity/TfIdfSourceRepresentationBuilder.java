@@ -1,28 +1,50 @@
 package refdiffIdea.core.diff.similarity;
 
+import java.util.Arrays;
 import java.util.List;
+import java.util.function.IntConsumer;
 
 import refdiffIdea.core.cst.CstNode;
+import refdiffIdea.core.cst.TokenizedSource;
 import refdiffIdea.core.util.IdentifierSplitter;
 
 public class TfIdfSourceRepresentationBuilder implements SourceRepresentationBuilder<TfIdfSourceRepresentation> {
 	
-	private final Vocabulary vocabulary = new Vocabulary();
-	private final Vocabulary nameVocabulary = new Vocabulary();
-	private boolean initialized = false;
+	private final TokenDictionary dictionary = new TokenDictionary();
+	private final Vocabulary vocabulary = new Vocabulary(dictionary);
+	private final Vocabulary nameVocabulary = new Vocabulary(dictionary);
+	private final DistinctIds documentIds = new DistinctIds();
+	private volatile boolean initialized = false;
 	
 	@Override
 	public TfIdfSourceRepresentation buildForNode(CstNode node, boolean isBefore, List<String> tokenizedSourceCode) {
 		if (initialized) {
 			throw new RuntimeException("Initialization phase terminated");
 		}
-		Multiset<String> multiset = new Multiset<String>();
+		IntMultiset.Builder builder = new IntMultiset.Builder();
 		
 		// Add tokens from node name and from its parents
-		collectTokensOfSimpleName(multiset, node);
+		collectTokensOfSimpleName(builder::add, node, true);
 		
-		multiset.addAll(tokenizedSourceCode);
-		vocabulary.count(isBefore, multiset.asSet());
+		addAll(builder, tokenizedSourceCode);
+		IntMultiset multiset = builder.build();
+		vocabulary.count(isBefore, multiset);
+		return new TfIdfSourceRepresentation(multiset, vocabulary);
+	}
+	
+	@Override
+	public TfIdfSourceRepresentation buildForNode(CstNode node, boolean isBefore, CharSequence sourceCode, TokenizedSource tokens, int from, int to) {
+		if (initialized) {
+			throw new RuntimeException("Initialization phase terminated");
+		}
+		IntMultiset.Builder builder = new IntMultiset.Builder();
+		
+		// Add tokens from node name and from its parents
+		collectTokensOfSimpleName(builder::add, node, true);
+		
+		addAll(builder, sourceCode, tokens, from, to);
+		IntMultiset multiset = builder.build();
+		vocabulary.count(isBefore, multiset);
 		return new TfIdfSourceRepresentation(multiset, vocabulary);
 	}
 	
@@ -31,28 +53,111 @@ public class TfIdfSourceRepresentationBuilder implements SourceRepresentationBui
 		if (initialized) {
 			throw new RuntimeException("Initialization phase terminated");
 		}
-		Multiset<String> multiset = new Multiset<String>();
+		IntMultiset.Builder builder = new IntMultiset.Builder();
 		
 		// Add tokens from node name
 		String nodeName = getNodeName(node);
 		List<String> tokens = IdentifierSplitter.split(nodeName);
-		multiset.addAll(tokens);
-		nameVocabulary.count(isBefore, multiset.asSet());
+		addAll(builder, tokens);
+		IntMultiset multiset = builder.build();
+		nameVocabulary.count(isBefore, multiset);
 		return new TfIdfSourceRepresentation(multiset, nameVocabulary);
 	}
 	
-	private static void collectTokensOfSimpleName(Multiset<String> multiset, CstNode node) {
+	@Override
+	public int[] internTokens(CharSequence sourceCode, TokenizedSource tokens) {
+		int[] ids = new int[tokens.size()];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = dictionary.intern(sourceCode, tokens.getStart(i), tokens.getEnd(i));
+		}
+		return ids;
+	}
+	
+	@Override
+	public void countNode(CstNode node, boolean isBefore, int[] tokenIds, int from, int to) {
+		if (initialized) {
+			throw new RuntimeException("Initialization phase terminated");
+		}
+		// The same documents as buildForNode and buildForName, without building their multisets
+		documentIds.clear();
+		collectTokensOfSimpleName(documentIds, node, true);
+		for (int i = from; i < to; i++) {
+			documentIds.accept(tokenIds[i]);
+		}
+		vocabulary.count(isBefore, documentIds.ids, documentIds.size);
+		
+		documentIds.clear();
+		for (String token : IdentifierSplitter.split(getNodeName(node))) {
+			documentIds.accept(dictionary.intern(token));
+		}
+		nameVocabulary.count(isBefore, documentIds.ids, documentIds.size);
+	}
+	
+	@Override
+	public TfIdfSourceRepresentation buildForCountedNode(CstNode node, int[] tokenIds, int from, int to) {
+		IntMultiset.Builder builder = new IntMultiset.Builder();
+		// The names were interned by countNode, so they are only looked up and the dictionary is left unchanged
+		collectTokensOfSimpleName(builder::add, node, false);
+		addAll(builder, tokenIds, from, to);
+		return new TfIdfSourceRepresentation(builder.build(), vocabulary);
+	}
+	
+	@Override
+	public TfIdfSourceRepresentation buildForCountedName(CstNode node) {
+		IntMultiset.Builder builder = new IntMultiset.Builder();
+		for (String token : IdentifierSplitter.split(getNodeName(node))) {
+			addFound(builder::add, token);
+		}
+		return new TfIdfSourceRepresentation(builder.build(), nameVocabulary);
+	}
+	
+	private void collectTokensOfSimpleName(IntConsumer consumer, CstNode node, boolean intern) {
 		String nodeName = getNodeName(node);
 		List<String> tokens = IdentifierSplitter.split(nodeName);
-		multiset.add(nodeName);
+		if (intern) {
+			consumer.accept(dictionary.intern(nodeName));
+		} else {
+			addFound(consumer, nodeName);
+		}
 		if (tokens.size() > 1) {
-			multiset.addAll(tokens);
+			for (String token : tokens) {
+				if (intern) {
+					consumer.accept(dictionary.intern(token));
+				} else {
+					addFound(consumer, token);
+				}
+			}
 		}
 		if (node.getParent().isPresent()) {
-			collectTokensOfSimpleName(multiset, node.getParent().get());
+			collectTokensOfSimpleName(consumer, node.getParent().get(), intern);
+		}
+	}
+	
+	private void addFound(IntConsumer consumer, String token) {
+		int id = dictionary.find(token);
+		if (id != TokenDictionary.UNKNOWN) {
+			consumer.accept(id);
+		}
+	}
+	
+	private void addAll(IntMultiset.Builder builder, List<String> tokens) {
+		for (String token : tokens) {
+			builder.add(dictionary.intern(token));
+		}
+	}
+	
+	private void addAll(IntMultiset.Builder builder, CharSequence sourceCode, TokenizedSource tokens, int from, int to) {
+		for (int i = from; i < to; i++) {
+			builder.add(dictionary.intern(sourceCode, tokens.getStart(i), tokens.getEnd(i)));
 		}
 	}
 
+	private static void addAll(IntMultiset.Builder builder, int[] tokenIds, int from, int to) {
+		for (int i = from; i < to; i++) {
+			builder.add(tokenIds[i]);
+		}
+	}
+	
 	private static String getNodeName(CstNode node) {
 		String nodeName;
 		if (node.getNamespace() != null) {
@@ -65,9 +170,23 @@ public class TfIdfSourceRepresentationBuilder implements SourceRepresentationBui
 	
 	@Override
 	public TfIdfSourceRepresentation buildForFragment(List<String> tokenizedSourceCode) {
-		Multiset<String> multiset = new Multiset<String>();
-		multiset.addAll(tokenizedSourceCode);
-		return new TfIdfSourceRepresentation(multiset, vocabulary);
+		IntMultiset.Builder builder = new IntMultiset.Builder();
+		addAll(builder, tokenizedSourceCode);
+		return new TfIdfSourceRepresentation(builder.build(), vocabulary);
+	}
+	
+	@Override
+	public TfIdfSourceRepresentation buildForFragment(CharSequence sourceCode, TokenizedSource tokens, int from, int to) {
+		IntMultiset.Builder builder = new IntMultiset.Builder();
+		addAll(builder, sourceCode, tokens, from, to);
+		return new TfIdfSourceRepresentation(builder.build(), vocabulary);
+	}
+	
+	@Override
+	public TfIdfSourceRepresentation buildForFragment(int[] tokenIds, int from, int to) {
+		IntMultiset.Builder builder = new IntMultiset.Builder();
+		addAll(builder, tokenIds, from, to);
+		return new TfIdfSourceRepresentation(builder.build(), vocabulary);
 	}
 	
 	@Override
@@ -82,22 +201,55 @@ public class TfIdfSourceRepresentationBuilder implements SourceRepresentationBui
 	
 	@Override
 	public double similarity(TfIdfSourceRepresentation arg1, TfIdfSourceRepresentation arg2) {
-		initialized = true;
+		terminateInitialization();
 		return arg1.similarity(arg2);
 	}
 	
+	@Override
+	public double similarity(TfIdfSourceRepresentation arg1, TfIdfSourceRepresentation arg2, double threshold) {
+		terminateInitialization();
+		return arg1.jaccardSimilarity(arg2, false, threshold);
+	}
+	
+	@Override
+	public double partialSimilarity(TfIdfSourceRepresentation arg1, TfIdfSourceRepresentation arg2, double threshold) {
+		terminateInitialization();
+		return arg1.jaccardSimilarity(arg2, true, threshold);
+	}
+	
 	@Override
 	public double rawSimilarity(TfIdfSourceRepresentation arg1, TfIdfSourceRepresentation arg2) {
-		initialized = true;
-		return arg1.jaccardSimilarityDecomposed(arg2, false)[0];
+		terminateInitialization();
+		return arg1.weightedIntersection(arg2);
 	}
 	
 	@Override
 	public double partialSimilarity(TfIdfSourceRepresentation arg1, TfIdfSourceRepresentation arg2) {
-		initialized = true;
+		terminateInitialization();
 		return arg1.partialSimilarity(arg2);
 	}
 	
+	@Override
+	public int[] sketch(TfIdfSourceRepresentation arg, int size) {
+		terminateInitialization();
+		return arg.getSketch(size);
+	}
+	
+	/**
+	 * Ends the phase in which document frequencies are counted, freezing the IDF of every token.
+	 */
+	private void terminateInitialization() {
+		if (!initialized) {
+			synchronized (this) {
+				if (!initialized) {
+					vocabulary.freeze();
+					nameVocabulary.freeze();
+					initialized = true;
+				}
+			}
+		}
+	}
+	
 	@Override
 	public TfIdfSourceRepresentation minus(TfIdfSourceRepresentation arg1, List<String> tokensToRemove) {
 		return arg1.minus(tokensToRemove);
@@ -113,4 +265,42 @@ public class TfIdfSourceRepresentationBuilder implements SourceRepresentationBui
 		return arg.getSize();
 	}
 
+	@Override
+	public int[] indexTokens(TfIdfSourceRepresentation arg, double threshold) {
+		terminateInitialization();
+		return arg.prefixTokens(threshold);
+	}
+
+	/**
+	 * The distinct ids of the tokens of a document, collected in order of first occurrence without sorting them. An 
+	 * id is seen in the current document if its stamp is the current one, so clearing is constant time.
+	 */
+	private static class DistinctIds implements IntConsumer {
+		
+		private int[] stamps = new int[1024];
+		private int stamp = 0;
+		private int[] ids = new int[64];
+		private int size = 0;
+		
+		void clear() {
+			stamp++;
+			size = 0;
+		}
+		
+		@Override
+		public void accept(int id) {
+			if (id >= stamps.length) {
+				stamps = Arrays.copyOf(stamps, Math.max(id + 1, stamps.length * 2));
+			}
+			if (stamps[id] != stamp) {
+				stamps[id] = stamp;
+				if (size == ids.length) {
+					ids = Arrays.copyOf(ids, size * 2);
+				}
+				ids[size++] = id;
+			}
+		}
+		
+	}
+	
 }
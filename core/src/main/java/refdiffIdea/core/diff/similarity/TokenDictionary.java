@@ -0,0 +1,132 @@
+package refdiffIdea.core.diff.similarity;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Interns tokens into dense integer ids, so that token multisets can be stored and compared as arrays of ints.
+ * Ids are assigned in order of first occurrence, starting at 0.
+ * 
+ * <p>Tokens may be looked up directly from a span of the source code. The span is hashed and compared in place, 
+ * and a {@code String} is only created the first time a token is seen.
+ */
+public class TokenDictionary {
+	
+	public static final int UNKNOWN = -1;
+	
+	private final List<String> tokens = new ArrayList<>();
+	private int[] hashes = new int[256];
+	private int[] table = newTable(1024);
+	
+	/**
+	 * @return The id of {@code token}, assigning a new one if the token was not seen before.
+	 */
+	public int intern(String token) {
+		return intern(token, 0, token.length());
+	}
+	
+	/**
+	 * @return The id of the token {@code source[start, end)}, assigning a new one if the token was not seen before.
+	 */
+	public int intern(CharSequence source, int start, int end) {
+		int hash = hash(source, start, end);
+		int slot = findSlot(hash, source, start, end);
+		int id = table[slot];
+		if (id == UNKNOWN) {
+			id = tokens.size();
+			tokens.add(source.subSequence(start, end).toString());
+			if (id == hashes.length) {
+				hashes = Arrays.copyOf(hashes, id * 2);
+			}
+			hashes[id] = hash;
+			table[slot] = id;
+			if (tokens.size() * 2 > table.length) {
+				rehash();
+			}
+		}
+		return id;
+	}
+	
+	/**
+	 * @return The id of {@code token}, or {@link #UNKNOWN} if the token was never interned.
+	 */
+	public int find(String token) {
+		return find(token, 0, token.length());
+	}
+	
+	/**
+	 * @return The id of the token {@code source[start, end)}, or {@link #UNKNOWN} if the token was never interned.
+	 */
+	public int find(CharSequence source, int start, int end) {
+		return table[findSlot(hash(source, start, end), source, start, end)];
+	}
+	
+	public String getToken(int id) {
+		return tokens.get(id);
+	}
+	
+	public int size() {
+		return tokens.size();
+	}
+	
+	/**
+	 * @return The slot of the table holding the id of the token, or the empty slot where it should be inserted.
+	 */
+	private int findSlot(int hash, CharSequence source, int start, int end) {
+		int mask = table.length - 1;
+		for (int slot = spread(hash) & mask; ; slot = (slot + 1) & mask) {
+			int id = table[slot];
+			if (id == UNKNOWN || hashes[id] == hash && matches(tokens.get(id), source, start, end)) {
+				return slot;
+			}
+		}
+	}
+	
+	private void rehash() {
+		int[] newTable = newTable(table.length * 2);
+		int mask = newTable.length - 1;
+		for (int id = 0; id < tokens.size(); id++) {
+			int slot = spread(hashes[id]) & mask;
+			while (newTable[slot] != UNKNOWN) {
+				slot = (slot + 1) & mask;
+			}
+			newTable[slot] = id;
+		}
+		table = newTable;
+	}
+	
+	private static int[] newTable(int capacity) {
+		int[] table = new int[capacity];
+		Arrays.fill(table, UNKNOWN);
+		return table;
+	}
+	
+	/**
+	 * Same hash as {@link String#hashCode()} of the span.
+	 */
+	private static int hash(CharSequence source, int start, int end) {
+		int hash = 0;
+		for (int i = start; i < end; i++) {
+			hash = 31 * hash + source.charAt(i);
+		}
+		return hash;
+	}
+	
+	private static int spread(int hash) {
+		return (hash ^ (hash >>> 16)) * 0x9E3779B9;
+	}
+	
+	private static boolean matches(String token, CharSequence source, int start, int end) {
+		if (token.length() != end - start) {
+			return false;
+		}
+		for (int i = 0; i < token.length(); i++) {
+			if (token.charAt(i) != source.charAt(start + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+}
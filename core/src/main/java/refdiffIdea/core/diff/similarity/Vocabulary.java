@@ -1,63 +1,129 @@
 package refdiffIdea.core.diff.similarity;
 
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 public class Vocabulary {
 	
-	private FreqCounter dc = new FreqCounter();
-	private Map<String, FreqCounter> df = new HashMap<String, FreqCounter>();
+	private final TokenDictionary dictionary;
+	private int dcBefore = 0;
+	private int dcAfter = 0;
+	private int[] dfBefore = new int[256];
+	private int[] dfAfter = new int[256];
+	private volatile double[] idfTable = null;
 	
-	public void count(boolean isBefore, Collection<String> occurrences) {
-		dc.increment(isBefore);
-		for (String term : occurrences) {
-			count(isBefore, term);
+	public Vocabulary(TokenDictionary dictionary) {
+		this.dictionary = dictionary;
+	}
+	
+	public void count(boolean isBefore, IntMultiset occurrences) {
+		if (isFrozen()) {
+			throw new IllegalStateException("Vocabulary is frozen");
+		}
+		if (isBefore) {
+			dcBefore++;
+		} else {
+			dcAfter++;
+		}
+		for (int i = 0; i < occurrences.distinctCount(); i++) {
+			count(isBefore, occurrences.getId(i));
 		}
 	}
-
-	public double getIdf(String key) {
+	
+	/**
+	 * Counts a document whose distinct tokens are {@code ids[0, length)}.
+	 */
+	public void count(boolean isBefore, int[] ids, int length) {
+		if (isFrozen()) {
+			throw new IllegalStateException("Vocabulary is frozen");
+		}
+		if (isBefore) {
+			dcBefore++;
+		} else {
+			dcAfter++;
+		}
+		for (int i = 0; i < length; i++) {
+			count(isBefore, ids[i]);
+		}
+	}
+	
+	public double getIdf(int id) {
+		double[] table = idfTable;
+		if (table != null && id >= 0 && id < table.length) {
+			return table[id];
+		}
+		return computeIdf(id);
+	}
+	
+	private double computeIdf(int id) {
 		double documentCount = getDc();
-		double documentFreq = getDf(key);
+		// Tokens that were never counted are as rare as possible
+		double documentFreq = Math.max(1, getDf(id));
 		return Math.max(0.01, Math.log(documentCount / documentFreq));
 	}
-
+	
+	public double getIdf(String key) {
+		return getIdf(dictionary.find(key));
+	}
+	
 	public int getDc() {
-		return dc.getMax();
+		return Math.max(dcBefore, dcAfter);
+	}
+	
+	public int getDf(int id) {
+		if (id < 0 || id >= dfBefore.length) {
+			return 0;
+		}
+		return Math.max(dfBefore[id], dfAfter[id]);
 	}
 	
 	public int getDf(String key) {
-		return df.get(key).getMax();
+		return getDf(dictionary.find(key));
 	}
 	
-	private void count(boolean isBefore, String term) {
-		df.computeIfAbsent(term, key -> new FreqCounter()).increment(isBefore);
+	/**
+	 * Ends the counting phase and precomputes the IDF of every token known at this point into a table indexed by
+	 * token id. Tokens interned later keep the IDF of a token that was never counted.
+	 */
+	public void freeze() {
+		if (isFrozen()) {
+			return;
+		}
+		double[] table = new double[dictionary.size()];
+		for (int id = 0; id < table.length; id++) {
+			table[id] = computeIdf(id);
+		}
+		idfTable = table;
 	}
 	
-	private static class FreqCounter {
-		int freqBefore = 0;
-		int freqAfter = 0;
-
-		public FreqCounter increment(boolean isBefore) {
-			if (isBefore) {
-				freqBefore++;
-			} else {
-				freqAfter++;
-			}
-			return this;
+	public boolean isFrozen() {
+		return idfTable != null;
+	}
+	
+	public TokenDictionary getDictionary() {
+		return dictionary;
+	}
+	
+	private void count(boolean isBefore, int id) {
+		if (id >= dfBefore.length) {
+			int length = Math.max(id + 1, dfBefore.length * 2);
+			dfBefore = Arrays.copyOf(dfBefore, length);
+			dfAfter = Arrays.copyOf(dfAfter, length);
 		}
-		
-		public int getMax() {
-			return Math.max(freqBefore, freqAfter);
+		if (isBefore) {
+			dfBefore[id]++;
+		} else {
+			dfAfter[id]++;
 		}
 	}
-
+	
 	@Override
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
 		sb.append(String.format("Documents: %d\n", getDc()));
-		for (String term : df.keySet()) {
-			sb.append(String.format("%s\t%d\t%f\n", term, getDf(term), getIdf(term)));
+		for (int id = 0; id < dictionary.size(); id++) {
+			if (getDf(id) > 0) {
+				sb.append(String.format("%s\t%d\t%f\n", dictionary.getToken(id), getDf(id), getIdf(id)));
+			}
 		}
 		return sb.toString();
 	}
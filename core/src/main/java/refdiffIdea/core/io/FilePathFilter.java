@@ -1,5 +1,6 @@
 package refdiffIdea.core.io;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
@@ -29,4 +30,17 @@ public class FilePathFilter {
 		}
 		return false;
 	}
+	
+	/**
+	 * @return A filter allowing the files allowed by any of {@code filters}.
+	 */
+	public static FilePathFilter union(List<FilePathFilter> filters) {
+		List<FilePathFilter> copy = new ArrayList<>(filters);
+		return new FilePathFilter(Collections.emptyList()) {
+			@Override
+			public boolean isAllowed(String filePath) {
+				return copy.stream().anyMatch(filter -> filter.isAllowed(filePath));
+			}
+		};
+	}
 }
@@ -0,0 +1,42 @@
+package refdiffIdea.core.io;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * A subset of the files of another source file set, whose contents are read through that set.
+ * 
+ * @see SourceFileSet#filter(FilePathFilter)
+ */
+class FilteredSourceFileSet extends SourceFileSet {
+	
+	private final SourceFileSet sources;
+	
+	FilteredSourceFileSet(SourceFileSet sources, List<SourceFile> sourceFiles) {
+		super(sourceFiles);
+		this.sources = sources;
+	}
+	
+	@Override
+	public String readContent(SourceFile sourceFile) throws IOException {
+		return sources.readContent(sourceFile);
+	}
+	
+	@Override
+	public Optional<Path> getBasePath() {
+		return sources.getBasePath();
+	}
+	
+	@Override
+	public String describeLocation(SourceFile sourceFile) {
+		return sources.describeLocation(sourceFile);
+	}
+	
+	@Override
+	public Optional<String> getContentHash(SourceFile sourceFile) {
+		return sources.getContentHash(sourceFile);
+	}
+	
+}
@@ -0,0 +1,206 @@
+package refdiffIdea.core.io;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.util.Disposer;
+import git4idea.config.GitExecutableManager;
+import git4idea.repo.GitRepository;
+
+/**
+ * Reads file contents of a git repository through long-lived {@code git cat-file} processes, instead of spawning a 
+ * git process per file. A {@code --batch-check} process resolves {@code <revision>:<path>} to a blob hash, and a 
+ * {@code --batch} process reads the blob only if it is not cached yet. Blobs are cached by hash, so a file that is
+ * unchanged between revisions is read once.
+ * 
+ * <p>There is one reader per repository, disposed with it. Requests are serialized, as each process answers them
+ * in order.
+ */
+public class GitBlobReader implements Disposable {
+	
+	private static final long MAX_CACHED_BYTES = 64L * 1024 * 1024;
+	private static final String NULL_DEVICE = System.getProperty("os.name").startsWith("Windows") ? "NUL" : "/dev/null";
+	private static final Map<String, GitBlobReader> readers = new ConcurrentHashMap<>();
+	
+	private final String rootPath;
+	private final String gitExecutable;
+	private final Map<String, byte[]> blobs = new LinkedHashMap<>(16, 0.75f, true);
+	private long cachedBytes = 0;
+	private BatchProcess checkProcess = null;
+	private BatchProcess contentProcess = null;
+	
+	private GitBlobReader(String rootPath, String gitExecutable) {
+		this.rootPath = rootPath;
+		this.gitExecutable = gitExecutable;
+	}
+	
+	/**
+	 * @return The reader of {@code repository}, created on first use.
+	 */
+	public static GitBlobReader forRepository(GitRepository repository) {
+		String rootPath = repository.getRoot().getPath();
+		return readers.computeIfAbsent(rootPath, path -> {
+			String gitExecutable = GitExecutableManager.getInstance().getPathToGit(repository.getProject());
+			GitBlobReader reader = new GitBlobReader(path, gitExecutable);
+			Disposer.register(repository, reader);
+			return reader;
+		});
+	}
+	
+	/**
+	 * @param revision A commit hash.
+	 * @param path     The path of a file, absolute or relative to the root of the repository.
+	 * @return The content of the file at {@code revision}, or null if there is no such file.
+	 * @throws IOException If git cannot be run.
+	 */
+	public synchronized byte[] read(String revision, String path) throws IOException {
+		String blobHash = resolve(revision, path);
+		if (blobHash == null) {
+			return null;
+		}
+		try {
+			byte[] content = blobs.get(blobHash);
+			if (content == null) {
+				if (contentProcess == null) {
+					contentProcess = new BatchProcess("--batch");
+				}
+				String[] header = contentProcess.request(blobHash);
+				if (header.length < 3) {
+					return null;
+				}
+				content = contentProcess.readContent(Integer.parseInt(header[2]));
+				cache(blobHash, content);
+			}
+			return content;
+		} catch (IOException | RuntimeException e) {
+			// The state of the processes is unknown, so they are started again by the next request
+			stopProcesses();
+			throw e instanceof IOException ? (IOException) e : new IOException(e);
+		}
+	}
+	
+	/**
+	 * @param revision A commit hash.
+	 * @param path     The path of a file, absolute or relative to the root of the repository.
+	 * @return The hash of the blob of the file at {@code revision}, or null if there is no such file.
+	 * @throws IOException If git cannot be run.
+	 */
+	public synchronized String resolve(String revision, String path) throws IOException {
+		if (path.indexOf('\n') >= 0) {
+			return null;
+		}
+		try {
+			if (checkProcess == null) {
+				checkProcess = new BatchProcess("--batch-check");
+			}
+			String[] header = checkProcess.request(revision + ":" + relativize(path));
+			return header.length >= 3 && header[1].equals("blob") ? header[0] : null;
+		} catch (IOException | RuntimeException e) {
+			stopProcesses();
+			throw e instanceof IOException ? (IOException) e : new IOException(e);
+		}
+	}
+	
+	private String relativize(String path) {
+		String prefix = rootPath.endsWith("/") ? rootPath : rootPath + "/";
+		return path.startsWith(prefix) ? path.substring(prefix.length()) : path;
+	}
+	
+	private void cache(String blobHash, byte[] content) {
+		if (content.length > MAX_CACHED_BYTES / 4) {
+			return;
+		}
+		blobs.put(blobHash, content);
+		cachedBytes += content.length;
+		Iterator<byte[]> iterator = blobs.values().iterator();
+		while (cachedBytes > MAX_CACHED_BYTES && iterator.hasNext()) {
+			cachedBytes -= iterator.next().length;
+			iterator.remove();
+		}
+	}
+	
+	@Override
+	public void dispose() {
+		readers.remove(rootPath, this);
+		stopProcesses();
+	}
+	
+	private synchronized void stopProcesses() {
+		if (checkProcess != null) {
+			checkProcess.destroy();
+			checkProcess = null;
+		}
+		if (contentProcess != null) {
+			contentProcess.destroy();
+			contentProcess = null;
+		}
+	}
+	
+	private class BatchProcess {
+		private final Process process;
+		private final OutputStream input;
+		private final InputStream output;
+		
+		BatchProcess(String mode) throws IOException {
+			ProcessBuilder builder = new ProcessBuilder(gitExecutable, "cat-file", mode);
+			builder.directory(new File(rootPath));
+			builder.redirectError(ProcessBuilder.Redirect.to(new File(NULL_DEVICE)));
+			this.process = builder.start();
+			this.input = process.getOutputStream();
+			this.output = new BufferedInputStream(process.getInputStream());
+		}
+		
+		/**
+		 * Sends an object name and reads the header of the answer, that is its hash, type and size, or the name 
+		 * followed by {@code missing}.
+		 */
+		String[] request(String objectName) throws IOException {
+			input.write((objectName + "\n").getBytes(StandardCharsets.UTF_8));
+			input.flush();
+			ByteArrayOutputStream line = new ByteArrayOutputStream();
+			for (int b = output.read(); b != '\n'; b = output.read()) {
+				if (b < 0) {
+					throw new EOFException("git cat-file terminated");
+				}
+				line.write(b);
+			}
+			String header = new String(line.toByteArray(), StandardCharsets.UTF_8);
+			return header.endsWith(" missing") ? new String[0] : header.split(" ");
+		}
+		
+		/**
+		 * Reads the content following a header of the {@code --batch} mode, and the line feed after it.
+		 */
+		byte[] readContent(int size) throws IOException {
+			byte[] content = new byte[size];
+			int read = 0;
+			while (read < size) {
+				int count = output.read(content, read, size - read);
+				if (count < 0) {
+					throw new EOFException("git cat-file terminated");
+				}
+				read += count;
+			}
+			if (output.read() != '\n') {
+				throw new IOException("Unexpected output of git cat-file");
+			}
+			return content;
+		}
+		
+		void destroy() {
+			process.destroy();
+		}
+	}
+	
+}
@@ -5,14 +5,17 @@ import java.nio.file.Path;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.intellij.openapi.vcs.VcsException;
 import com.intellij.openapi.vcs.changes.ContentRevision;
+import com.intellij.openapi.vfs.CharsetToolkit;
 import git4idea.repo.GitRepository;
 
 public class GitSourceTree extends SourceFileSet {
 
 	private final Map<SourceFile, ContentRevision> fileToContent;
+	private final Map<SourceFile, String> contentCache = new ConcurrentHashMap<>();
 	private final GitRepository repository;
 	private final String sha1;
 
@@ -24,13 +27,33 @@ public class GitSourceTree extends SourceFileSet {
 		sha1 = sha;
 	}
 
+	/**
+	 * Reads the content of a file once, through the {@link GitBlobReader} of the repository, and keeps it for the 
+	 * next reads. Revisions that cannot be read this way are read through their {@link ContentRevision}.
+	 */
 	@Override
 	public String readContent(SourceFile sourceFile) throws IOException {
-		try {
-			return fileToContent.get(sourceFile).getContent();
-		} catch (VcsException e) {
-			throw new IOException(e);
+		String content = contentCache.get(sourceFile);
+		if (content == null) {
+			ContentRevision revision = fileToContent.get(sourceFile);
+			byte[] bytes;
+			try {
+				bytes = GitBlobReader.forRepository(repository).read(revision.getRevisionNumber().asString(), revision.getFile().getPath());
+			} catch (IOException e) {
+				bytes = null;
+			}
+			if (bytes != null) {
+				content = CharsetToolkit.bytesToString(bytes, revision.getFile().getCharset());
+			} else {
+				try {
+					content = revision.getContent();
+				} catch (VcsException e) {
+					throw new IOException(e);
+				}
+			}
+			contentCache.putIfAbsent(sourceFile, content);
 		}
+		return content;
 	}
 	
 //	private byte[] readBytes(SourceFile sourceFile) throws MissingObjectException, IncorrectObjectTypeException, IOException, CorruptObjectException, UnsupportedEncodingException, FileNotFoundException {
@@ -48,6 +71,19 @@ public class GitSourceTree extends SourceFileSet {
 //		}
 //	}
 	
+	/**
+	 * @return The hash of the git blob of {@code sourceFile}.
+	 */
+	@Override
+	public Optional<String> getContentHash(SourceFile sourceFile) {
+		ContentRevision revision = fileToContent.get(sourceFile);
+		try {
+			return Optional.ofNullable(GitBlobReader.forRepository(repository).resolve(revision.getRevisionNumber().asString(), revision.getFile().getPath()));
+		} catch (IOException e) {
+			return Optional.empty();
+		}
+	}
+	
 	@Override
 	public String describeLocation(SourceFile sourceFile) {
 		return String.format("%s:%s:%s", repository.getRoot().getPath(), sha1.substring(0, 7), sourceFile.getPath());
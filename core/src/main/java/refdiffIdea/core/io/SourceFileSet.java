@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.nio.file.Path;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Collectors;
 
 public abstract class SourceFileSet {
 	
@@ -25,6 +26,25 @@ public abstract class SourceFileSet {
 	
 	public abstract String describeLocation(SourceFile sourceFile);
 	
+	/**
+	 * @return A hash identifying the content of {@code sourceFile}, if it can be computed without reading the file. 
+	 * Files with the same hash have the same content.
+	 */
+	public Optional<String> getContentHash(SourceFile sourceFile) {
+		return Optional.empty();
+	}
+	
+	/**
+	 * @return The files of this set allowed by {@code filter}. Their contents are read through this set, so that a 
+	 * content read once is shared by every subset, for instance by language plugins comparing the same commit.
+	 */
+	public SourceFileSet filter(FilePathFilter filter) {
+		List<SourceFile> allowedFiles = sourceFiles.stream()
+			.filter(sourceFile -> filter.isAllowed(sourceFile.getPath()))
+			.collect(Collectors.toList());
+		return new FilteredSourceFileSet(this, allowedFiles);
+	}
+	
 	public void materializeAt(Path folder) throws IOException {
 		throw new UnsupportedOperationException();
 	}
@@ -1,6 +1,11 @@
 package refdiffIdea.parsers;
 
+import java.util.function.Supplier;
+
+import com.intellij.psi.PsiFile;
+
 import refdiffIdea.core.io.FilePathFilter;
+import refdiffIdea.core.io.SourceFile;
 import refdiffIdea.core.io.SourceFileSet;
 import refdiffIdea.core.cst.CstRoot;
 
@@ -10,4 +15,46 @@ public interface LanguagePlugin {
 	
 	FilePathFilter getAllowedFilesFilter();
 	
+	/**
+	 * Keeps the parse results of up to {@code maxFiles} files, keyed by their content hash, so that files unchanged 
+	 * between the consecutive commits of a history walk are parsed only once. Plugins that cannot reuse parse results
+	 * ignore it.
+	 * 
+	 * @param maxFiles The number of files to keep, or 0 to parse every file.
+	 */
+	default void setFragmentCacheSize(int maxFiles) {}
+	
+	/**
+	 * Keeps the parse results of files in a persistent cache of up to {@code maxBytes} bytes, keyed by their content 
+	 * hash, so that files compared in an earlier session are not parsed again. Plugins whose parse results depend on
+	 * more than the content of each file ignore it.
+	 * 
+	 * @param maxBytes The size of the cache, or 0 to parse every file.
+	 */
+	default void setDiskCacheSize(long maxBytes) {}
+	
+	/**
+	 * @return An identifier of this plugin, which keys the stored results of its diffs along with {@link #getVersion()}.
+	 */
+	default String getId() {
+		return getClass().getName();
+	}
+	
+	/**
+	 * @return A version that changes whenever this plugin may build a different CST from the same source code.
+	 */
+	default String getVersion() {
+		return "unknown";
+	}
+	
+	/**
+	 * Supplies the parsed file of a source file on demand, for nodes that were not built by parsing it, such as the
+	 * nodes of a stored diff. The file is created once, on the first call to the supplier.
+	 * 
+	 * @return A supplier of the parsed file, which supplies null if this plugin does not build parsed files.
+	 */
+	default Supplier<PsiFile> getFileSupplier(SourceFileSet sources, SourceFile sourceFile) {
+		return () -> null;
+	}
+	
 }
@@ -0,0 +1,181 @@
+package refdiffIdea.parsers.psi;
+
+import com.intellij.psi.PsiFile;
+import org.jetbrains.annotations.Nullable;
+import refdiffIdea.core.cst.CstFragment;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A persistent cache of CST fragments, stored one per file under a directory and keyed by the hash of the content
+ * they were parsed from. Files are memory-mapped when read. Reading a file refreshes its modification time, and the
+ * least recently used files are deleted once the cache grows over its size limit.
+ *
+ * <p>The cache is best effort: files that cannot be written are skipped, and files that cannot be read, for
+ * instance because they were written by another format version, are deleted and reported as missing.
+ */
+public class FragmentDiskCache {
+    private static final Pattern VALID_HASH = Pattern.compile("[0-9A-Za-z_-]+");
+    private static final String EXTENSION = ".bin";
+
+    private final Path directory;
+    private final long maxBytes;
+    private long size = -1;
+
+    public FragmentDiskCache(Path directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return The cached fragment of the content with hash {@code contentHash}, as if parsed from {@code file}, or
+     * null if there is none.
+     */
+    @Nullable
+    public CstFragment get(String contentHash, String file, Supplier<PsiFile> psiFile) {
+        Path path = pathOf(contentHash);
+        if (path == null) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            CstFragment fragment = CstFragment.read(buffer, file, psiFile);
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+            return fragment;
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | RuntimeException e) {
+            delete(path);
+            return null;
+        }
+    }
+
+    /**
+     * Stores a fragment that was not merged into a CST yet.
+     */
+    public void put(String contentHash, CstFragment fragment) {
+        Path path = pathOf(contentHash);
+        if (path == null) {
+            return;
+        }
+        Path temporary = null;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            fragment.write(new DataOutputStream(bytes));
+            Files.createDirectories(path.getParent());
+            // Written aside and moved, so that concurrent readers never see a partial file
+            temporary = Files.createTempFile(path.getParent(), "fragment", ".tmp");
+            Files.write(temporary, bytes.toByteArray());
+            try {
+                Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+            temporary = null;
+            added(bytes.size());
+        } catch (IOException e) {
+            // The fragment is parsed again next time
+        } finally {
+            if (temporary != null) {
+                delete(temporary);
+            }
+        }
+    }
+
+    @Nullable
+    private Path pathOf(String contentHash) {
+        if (contentHash.length() < 3 || !VALID_HASH.matcher(contentHash).matches()) {
+            return null;
+        }
+        return directory.resolve(contentHash.substring(0, 2)).resolve(contentHash + EXTENSION);
+    }
+
+    private synchronized void added(long bytes) throws IOException {
+        if (size < 0) {
+            size = 0;
+            for (CachedFile file : listFiles()) {
+                size += file.size;
+            }
+        } else {
+            size += bytes;
+        }
+        if (size > maxBytes) {
+            evict();
+        }
+    }
+
+    /**
+     * Deletes the least recently used files until the cache is 10% below its size limit.
+     */
+    private void evict() throws IOException {
+        List<CachedFile> files = listFiles();
+        files.sort(Comparator.comparingLong((CachedFile file) -> file.lastModified));
+        size = files.stream().mapToLong(file -> file.size).sum();
+        for (CachedFile file : files) {
+            if (size <= maxBytes * 0.9) {
+                break;
+            }
+            if (delete(file.path)) {
+                size -= file.size;
+            }
+        }
+    }
+
+    private List<CachedFile> listFiles() throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return new ArrayList<>();
+        }
+        try (Stream<Path> paths = Files.walk(directory, 2)) {
+            List<Path> cached = paths.filter(path -> path.toString().endsWith(EXTENSION)).collect(Collectors.toList());
+            List<CachedFile> files = new ArrayList<>(cached.size());
+            for (Path path : cached) {
+                try {
+                    files.add(new CachedFile(path, Files.size(path), Files.getLastModifiedTime(path).toMillis()));
+                } catch (NoSuchFileException e) {
+                    // Deleted concurrently
+                }
+            }
+            return files;
+        }
+    }
+
+    private static boolean delete(Path path) {
+        try {
+            Files.deleteIfExists(path);
+            return true;
+        } catch (IOException e) {
+            // Still mapped, for instance on Windows, and deleted by a later eviction
+            return false;
+        }
+    }
+
+    private static class CachedFile {
+        private final Path path;
+        private final long size;
+        private final long lastModified;
+
+        CachedFile(Path path, long size, long lastModified) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+}
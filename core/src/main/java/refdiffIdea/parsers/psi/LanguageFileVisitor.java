@@ -0,0 +1,21 @@
+package refdiffIdea.parsers.psi;
+
+import com.intellij.psi.PsiElement;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Visits the elements of one source file, within a read action.
+ */
+public interface LanguageFileVisitor {
+    /**
+     * @return Whether the children of {@code element} should be visited.
+     */
+    boolean process(@NotNull final PsiElement element);
+
+    void postProcess(@NotNull final PsiElement element);
+
+    /**
+     * Called after all the elements of the file are visited.
+     */
+    default void postProcess() {}
+}
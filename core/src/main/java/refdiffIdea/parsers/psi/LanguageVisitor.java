@@ -1,17 +1,50 @@
 package refdiffIdea.parsers.psi;
 
-import com.intellij.psi.PsiElement;
+import com.intellij.ide.plugins.IdeaPluginDescriptor;
+import com.intellij.ide.plugins.PluginManagerCore;
+import com.intellij.openapi.extensions.PluginId;
 import org.jetbrains.annotations.NotNull;
-import refdiffIdea.core.cst.CstRoot;
+import refdiffIdea.core.cst.CstFragment;
 import refdiffIdea.core.io.FilePathFilter;
 
 public interface LanguageVisitor {
-    void preProcess(@NotNull CstRoot root);
-    void postProcess();
     @NotNull
     FilePathFilter getAllowedFilesFilter();
 
-    void setCurrentSourceFile(@NotNull final String sourceFile);
-    boolean process(@NotNull final PsiElement element);
-    void postProcess(@NotNull final PsiElement element);
+    /**
+     * Creates the visitor of a single source file, which adds the nodes and relationships of the file to
+     * {@code fragment}. Files are visited concurrently, so visitors should only keep state in themselves and in
+     * their fragment.
+     */
+    @NotNull
+    LanguageFileVisitor createFileVisitor(@NotNull CstFragment fragment);
+
+    /**
+     * @return True if the CST of a file may depend on more than its own content, for instance when references are
+     * resolved against other files or libraries. Parse results are only stored on disk for visitors returning false,
+     * as the stored results are keyed by the content of each file alone. By default true.
+     */
+    default boolean resolvesAcrossFiles() {
+        return true;
+    }
+
+    /**
+     * @return An identifier of this visitor, which keys its cached parse results along with {@link #getVersion()}.
+     */
+    @NotNull
+    default String getId() {
+        return getClass().getName();
+    }
+
+    /**
+     * @return A version that changes whenever this visitor may build a different CST from the same source code. By
+     * default, the version of the IntelliJ plugin containing the visitor, which is not bumped for every change of the
+     * visitor: visitors whose results are stored should override this with a version of their own.
+     */
+    @NotNull
+    default String getVersion() {
+        PluginId pluginId = PluginManagerCore.getPluginByClassName(getClass().getName());
+        IdeaPluginDescriptor plugin = pluginId != null ? PluginManagerCore.getPlugin(pluginId) : null;
+        return plugin != null && plugin.getVersion() != null ? plugin.getVersion() : "unknown";
+    }
 }
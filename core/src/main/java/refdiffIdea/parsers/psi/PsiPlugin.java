@@ -1,70 +1,281 @@
 package refdiffIdea.parsers.psi;
 
 import com.intellij.lang.ASTNode;
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.application.ReadAction;
 import com.intellij.openapi.fileTypes.FileType;
 import com.intellij.openapi.fileTypes.FileTypeRegistry;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.project.Project;
 import com.intellij.psi.*;
 import com.intellij.psi.tree.TokenSet;
 
+import refdiffIdea.core.cst.CstFragment;
 import refdiffIdea.core.cst.CstRoot;
-import refdiffIdea.core.cst.TokenPosition;
 import refdiffIdea.core.cst.TokenizedSource;
 import refdiffIdea.core.io.FilePathFilter;
 import refdiffIdea.core.io.SourceFile;
 import refdiffIdea.core.io.SourceFileSet;
 import refdiffIdea.parsers.LanguagePlugin;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.CharBuffer;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class PsiPlugin implements LanguagePlugin {
+    private static final TokenSet NOT_WHITE_SPACE = TokenSet.andNot(TokenSet.ANY, TokenSet.WHITE_SPACE);
+    private static final AtomicInteger poolCount = new AtomicInteger();
+
     protected final PsiFileFactory fileFactory;
     protected final LanguageVisitor visitor;
     private Pattern pattern;
+    private ExecutorService parsingPool = null;
+    private final Map<String, CstFragment> fragmentCache = new LinkedHashMap<>(16, 0.75f, true);
+    private volatile int fragmentCacheSize = 0;
+    private volatile FragmentDiskCache diskCache = null;
 
     public PsiPlugin(Project project, LanguageVisitor visitor) {
         this.visitor = visitor;
         fileFactory = PsiFileFactory.getInstance(project);
         pattern = Pattern.compile(getPattern());
+        setParallelism(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Sets the number of threads parsing source files. Each file is parsed in its own read action, and the CSTs of
+     * the files are merged in the order of the source file set, so the result does not depend on the parallelism.
+     * Idle threads are released after a few seconds.
+     *
+     * <p>As files are parsed in read actions on other threads, {@link #parse} should not be called within a read
+     * action of a background thread, where a pending write action could block them.
+     *
+     * @param parallelism The number of parsing threads, or 1 to parse all files in the calling thread.
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism should be positive");
+        }
+        if (parsingPool != null) {
+            parsingPool.shutdown();
+        }
+        if (parallelism > 1) {
+            String prefix = "RefDiff parser " + poolCount.incrementAndGet() + "-";
+            AtomicInteger threadCount = new AtomicInteger();
+            ThreadFactory threadFactory = runnable -> {
+                Thread thread = new Thread(runnable, prefix + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            };
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(parallelism, parallelism, 5, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), threadFactory);
+            pool.allowCoreThreadTimeOut(true);
+            parsingPool = pool;
+        } else {
+            parsingPool = null;
+        }
+    }
+
+    /**
+     * Keeps the fragments of up to {@code maxFiles} files, keyed by content hash and path. A cached file is neither
+     * read nor parsed again: the CST is assembled from copies of the cached fragments, so that the nodes of different
+     * CSTs are never shared.
+     *
+     * <p>Fragments are cached even if the visitor {@linkplain LanguageVisitor#resolvesAcrossFiles() resolves across
+     * files}: references are resolved against the open project rather than against the compared files, which does
+     * not change within the few commits a cached file is kept for.
+     */
+    @Override
+    public void setFragmentCacheSize(int maxFiles) {
+        if (maxFiles < 0) {
+            throw new IllegalArgumentException("maxFiles should not be negative");
+        }
+        synchronized (fragmentCache) {
+            fragmentCacheSize = maxFiles;
+            evictFragments();
+        }
+    }
+
+    /**
+     * Sets the size of the persistent cache of parsed files, stored under the system directory of the IDE and keyed
+     * by content hash, by the id and version of the language visitor and by {@link CstFragment#FORMAT_VERSION}. Files
+     * found in this cache are not parsed. The cache is disabled by default: it should only be enabled for visitors
+     * whose {@link LanguageVisitor#getVersion()} is bumped whenever they change, as stale fragments are served
+     * otherwise. Unlike {@link #setFragmentCacheSize}, nothing is cached if the visitor resolves across files, as the
+     * project it resolves against changes between sessions.
+     *
+     * @param maxBytes The size above which the least recently used files are deleted, or 0 to disable the cache.
+     */
+    @Override
+    public void setDiskCacheSize(long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes should not be negative");
+        }
+        if (maxBytes == 0) {
+            diskCache = null;
+        } else {
+            String name = String.format("%s-%s-%08x", visitor.getId(), visitor.getVersion(), CstFragment.FORMAT_VERSION)
+                    .replaceAll("[^0-9A-Za-z._-]", "_");
+            diskCache = new FragmentDiskCache(Paths.get(PathManager.getSystemPath(), "refdiff", "fragments", name), maxBytes);
+        }
     }
 
     @Override
     public CstRoot parse(SourceFileSet sources) throws Exception {
-        CstRoot root = new CstRoot();
-        visitor.preProcess(root);
+        List<SourceFile> sourceFiles = sources.getSourceFiles();
+        List<CstFragment> fragments = new ArrayList<>(sourceFiles.size());
+        ExecutorService pool = parsingPool;
+        // Parsing threads check the progress of the calling thread before each file
+        ProgressIndicator indicator = ProgressManager.getInstance().getProgressIndicator();
+        if (pool == null || sourceFiles.size() < 2) {
+            for (SourceFile sourceFile : sourceFiles) {
+                fragments.add(parse(sources, sourceFile, indicator));
+            }
+        } else {
+            List<Future<CstFragment>> futures = new ArrayList<>(sourceFiles.size());
+            for (SourceFile sourceFile : sourceFiles) {
+                futures.add(pool.submit(() -> parse(sources, sourceFile, indicator)));
+            }
+            try {
+                for (Future<CstFragment> future : futures) {
+                    fragments.add(future.get());
+                }
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            } finally {
+                for (Future<CstFragment> future : futures) {
+                    future.cancel(true);
+                }
+            }
+        }
+        return CstFragment.merge(fragments);
+    }
+
+    private CstFragment parse(SourceFileSet sources, SourceFile sourceFile, ProgressIndicator indicator) throws Exception {
+        if (indicator != null) {
+            indicator.checkCanceled();
+        }
+        String path = sourceFile.getPath();
+        FragmentDiskCache disk = visitor.resolvesAcrossFiles() ? null : diskCache;
+        String contentHash = null;
+        if (fragmentCacheSize > 0 || disk != null) {
+            contentHash = sources.getContentHash(sourceFile).orElse(null);
+        }
+        if (contentHash == null) {
+            return parse(path, sources.readContent(sourceFile));
+        }
+        String cacheKey = contentHash + ":" + path;
+        synchronized (fragmentCache) {
+            CstFragment cached = fragmentCache.get(cacheKey);
+            if (cached != null) {
+                return cached.copy();
+            }
+        }
+        CstFragment fragment = null;
+        if (disk != null) {
+            fragment = disk.get(contentHash, path, new LazyPsiFile(path, sources, sourceFile));
+        }
+        if (fragment == null) {
+            fragment = parse(path, sources.readContent(sourceFile));
+            if (disk != null) {
+                disk.put(contentHash, fragment);
+            }
+        }
+        if (fragmentCacheSize > 0) {
+            // The copy is kept, as the returned fragment is renumbered when merged
+            CstFragment copy = fragment.copy();
+            synchronized (fragmentCache) {
+                fragmentCache.put(cacheKey, copy);
+                evictFragments();
+            }
+        }
+        return fragment;
+    }
 
-        for (SourceFile sourceFile : sources.getSourceFiles()) {
-            String path = sourceFile.getPath();
-            FileType fileType = FileTypeRegistry.getInstance().getFileTypeByFileName(path);
-            String content = sources.readContent(sourceFile);
-            PsiFile file = fileFactory.createFileFromText(path, fileType, content);
+    private void evictFragments() {
+        Iterator<CstFragment> iterator = fragmentCache.values().iterator();
+        while (fragmentCache.size() > fragmentCacheSize && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
 
-            List<TokenPosition> tokens = new ArrayList<>();
+    private CstFragment parse(String path, String content) {
+        return ReadAction.compute(() -> {
+            PsiFile file = createFile(path, content);
+
+            CstFragment fragment = new CstFragment(path);
+            TokenizedSource.Builder tokens = new TokenizedSource.Builder(path);
             tokenize(file.getNode(), tokens);
-            TokenizedSource tokenizedSource = new TokenizedSource(path, tokens);
-            root.addTokenizedFile(tokenizedSource);
-            visitor.setCurrentSourceFile(path);
+            fragment.setTokenizedSource(tokens.build());
+            LanguageFileVisitor fileVisitor = visitor.createFileVisitor(fragment);
             file.acceptChildren(new PsiRecursiveElementVisitor() {
                 @Override
                 public void visitElement(PsiElement element) {
-                    if (visitor.process(element)) {
+                    if (fileVisitor.process(element)) {
                         super.visitElement(element);
-                        visitor.postProcess(element);
+                        fileVisitor.postProcess(element);
                     }
                 }
             });
+            fileVisitor.postProcess();
+            return fragment;
+        });
+    }
+
+    private PsiFile createFile(String path, String content) {
+        FileType fileType = FileTypeRegistry.getInstance().getFileTypeByFileName(path);
+        return fileFactory.createFileFromText(path, fileType, content);
+    }
+
+    /**
+     * Parses the file of a fragment read from the disk cache the first time it is needed, for instance to show it.
+     */
+    private class LazyPsiFile implements Supplier<PsiFile> {
+        private final String path;
+        private final SourceFileSet sources;
+        private final SourceFile sourceFile;
+        private PsiFile file = null;
+
+        LazyPsiFile(String path, SourceFileSet sources, SourceFile sourceFile) {
+            this.path = path;
+            this.sources = sources;
+            this.sourceFile = sourceFile;
+        }
+
+        @Override
+        public synchronized PsiFile get() {
+            if (file == null) {
+                try {
+                    String content = sources.readContent(sourceFile);
+                    file = ReadAction.compute(() -> createFile(path, content));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return file;
         }
-        visitor.postProcess();
-        return root;
     }
 
-    protected void tokenize(final ASTNode node, List<TokenPosition> tokens) {
-        ASTNode[] children = node.getChildren(TokenSet.andNot(TokenSet.ANY, TokenSet.WHITE_SPACE));
+    protected void tokenize(final ASTNode node, TokenizedSource.Builder tokens) {
+        ASTNode[] children = node.getChildren(NOT_WHITE_SPACE);
         if (children.length == 0) {
             PsiElement element = node.getPsi();
             if (element instanceof PsiComment) {
@@ -75,20 +286,38 @@ public class PsiPlugin implements LanguagePlugin {
                     String token = matcher.group();
                     if (!token.equals("*")) {
                         int start = element.getTextOffset();
-                        tokens.add(new TokenPosition(start + matcher.start(), start + matcher.end()));
+                        tokens.add(start + matcher.start(), start + matcher.end());
                     }
                 }
             } else if (!(element instanceof PsiWhiteSpace)) {
-                tokens.add(new TokenPosition(element.getTextRange()));
+                tokens.add(element.getTextRange().getStartOffset(), element.getTextRange().getEndOffset());
+            }
+        } else {
+            for (ASTNode child : children) {
+                tokenize(child, tokens);
             }
-        } else
-            Arrays.stream(children).forEachOrdered(n -> tokenize(n, tokens));
+        }
     }
 
     protected String getPattern() {
         return "\\S+";
     }
 
+    @Override
+    public String getId() {
+        return visitor.getId();
+    }
+
+    @Override
+    public String getVersion() {
+        return visitor.getVersion();
+    }
+
+    @Override
+    public Supplier<PsiFile> getFileSupplier(SourceFileSet sources, SourceFile sourceFile) {
+        return new LazyPsiFile(sourceFile.getPath(), sources, sourceFile);
+    }
+
     @Override
     public FilePathFilter getAllowedFilesFilter() {
         return visitor.getAllowedFilesFilter();
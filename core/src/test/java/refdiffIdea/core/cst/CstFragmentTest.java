@@ -0,0 +1,204 @@
+package refdiffIdea.core.cst;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+public class CstFragmentTest {
+	
+	@Test
+	public void shouldReadWhatWasWritten() throws IOException {
+		CstFragment fragment = classA();
+		byte[] bytes = write(fragment);
+		
+		CstFragment read = CstFragment.read(ByteBuffer.wrap(bytes), "src/A.java", () -> null);
+		
+		assertEquals("src/A.java", read.getFile());
+		assertEquals(describe(merge(fragment.copy(), classB())), describe(merge(read, classB())));
+	}
+	
+	@Test
+	public void shouldReadFragmentForAnotherFile() throws IOException {
+		CstFragment read = CstFragment.read(ByteBuffer.wrap(write(classA())), "src/Copy.java", () -> null);
+		
+		read.getNodes().get(0).getNodes().forEach(node -> assertEquals("src/Copy.java", node.getLocation().getFile()));
+		assertEquals("src/Copy.java", read.getNodes().get(0).getLocation().getFile());
+		assertEquals("src/Copy.java", read.getTokenizedSource().getFile());
+	}
+	
+	@Test
+	public void shouldCopyWithoutSharingNodes() {
+		CstFragment fragment = classA();
+		CstFragment copy = fragment.copy();
+		String expected = describe(merge(classA(), classB()));
+		
+		assertEquals(expected, describe(merge(copy, classB())));
+		assertNotSame(fragment.getNodes().get(0), copy.getNodes().get(0));
+		// The original still has local ids, so it can be merged as well
+		assertEquals(1, fragment.getNodes().get(0).getId());
+		assertEquals(expected, describe(merge(fragment, classB())));
+	}
+	
+	@Test
+	public void shouldRenumberNodesInOrderOfFragments() {
+		CstFragment a = classA();
+		CstFragment b = classB();
+		
+		CstRoot root = merge(b, a);
+		
+		List<String> ids = new ArrayList<>();
+		root.forEachNode((node, depth) -> ids.add(node.getId() + " " + node.getLocalName()));
+		assertEquals(Arrays.asList("1 B", "2 b()", "3 A", "4 f", "5 a(int)", "6 g(String)"), ids);
+		assertEquals(new TreeSet<>(Arrays.asList(
+			"5 USE 4",
+			"5 USE 6",
+			"1 SUBTYPE 3",
+			"2 USE 5")), relationships(root));
+		assertEquals(2, root.getTokenizedSource().size());
+	}
+	
+	@Test
+	public void shouldIgnoreRelationshipsToUnknownNames() {
+		CstRoot root = merge(classB());
+		
+		assertEquals(Collections.emptySet(), relationships(root));
+	}
+	
+	@Test
+	public void shouldRejectOtherFormats() throws IOException {
+		byte[] bytes = write(classA());
+		bytes[3]++;
+		try {
+			CstFragment.read(ByteBuffer.wrap(bytes), "src/A.java", () -> null);
+			fail();
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("format"));
+		}
+	}
+	
+	@Test
+	public void shouldRejectTruncatedData() throws IOException {
+		byte[] bytes = write(classA());
+		for (int length = 4; length < bytes.length; length += 7) {
+			try {
+				CstFragment.read(ByteBuffer.wrap(bytes, 0, length), "src/A.java", () -> null);
+				fail("Read " + length + " of " + bytes.length + " bytes");
+			} catch (IOException e) {
+				// Expected
+			}
+		}
+	}
+	
+	/**
+	 * A class {@code A} with a field {@code f} and methods {@code a(int)} and {@code g(String)}, the first one using the
+	 * other two.
+	 */
+	private static CstFragment classA() {
+		String file = "src/A.java";
+		CstFragment fragment = new CstFragment(file);
+		CstNode classNode = node(fragment, file, "ClassDeclaration", "A", 0, 100);
+		CstNode field = node(fragment, file, "FieldDeclaration", "f", 10, 20);
+		CstNode method = node(fragment, file, "MethodDeclaration", "a(int)", 20, 60);
+		method.setSimpleName("a");
+		method.addStereotypes(Stereotype.TYPE_MEMBER);
+		method.addStereotypes(Stereotype.HAS_BODY);
+		method.getParameters().add(new Parameter("x"));
+		CstNode other = node(fragment, file, "MethodDeclaration", "g(String)", 60, 90);
+		other.setSimpleName("g");
+		other.addStereotypes(Stereotype.ABSTRACT);
+		other.getParameters().add(new Parameter("s"));
+		classNode.addNode(field);
+		classNode.addNode(method);
+		classNode.addNode(other);
+		fragment.addNode(classNode);
+		fragment.linkNodeToName("p.A", classNode);
+		fragment.linkNodeToName("p.A#a(int)", method);
+		fragment.addRelationship(CstNodeRelationshipType.USE, method, field);
+		fragment.addRelationships(CstNodeRelationshipType.USE, method, Arrays.asList("p.A#g(String)"));
+		fragment.linkNodeToName("p.A#g(String)", other);
+		fragment.setTokenizedSource(new TokenizedSource.Builder(file).add(0, 5).add(6, 7).add(10, 13).add(20, 24).build());
+		return fragment;
+	}
+	
+	/**
+	 * A class {@code B} extending {@code A}, whose method calls {@code A.a(int)} and a method that is in no fragment.
+	 */
+	private static CstFragment classB() {
+		String file = "src/B.java";
+		CstFragment fragment = new CstFragment(file);
+		CstNode classNode = node(fragment, file, "ClassDeclaration", "B", 0, 50);
+		CstNode method = node(fragment, file, "MethodDeclaration", "b()", 10, 40);
+		classNode.addNode(method);
+		fragment.addNode(classNode);
+		fragment.linkNodeToName("p.B", classNode);
+		fragment.addRelationships(CstNodeRelationshipType.SUBTYPE, classNode, Arrays.asList("p.A"));
+		fragment.addRelationships(CstNodeRelationshipType.USE, method, Arrays.asList("p.A#a(int)", "p.C#c()"));
+		fragment.setTokenizedSource(new TokenizedSource.Builder(file).add(0, 5).add(6, 7).build());
+		return fragment;
+	}
+	
+	private static CstNode node(CstFragment fragment, String file, String type, String localName, int begin, int end) {
+		CstNode node = fragment.createNode();
+		node.setType(type);
+		node.setSimpleName(localName);
+		node.setLocalName(localName);
+		node.setNamespace("p.");
+		node.setLocation(new Location(file, begin, end, begin / 10 + 1, begin + 2, end - 1));
+		return node;
+	}
+	
+	private static byte[] write(CstFragment fragment) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		fragment.write(new DataOutputStream(bytes));
+		return bytes.toByteArray();
+	}
+	
+	private static CstRoot merge(CstFragment... fragments) {
+		return CstFragment.merge(Arrays.asList(fragments));
+	}
+	
+	private static TreeSet<String> relationships(CstRoot root) {
+		return root.getRelationships().stream().map(CstNodeRelationship::toString).collect(Collectors.toCollection(TreeSet::new));
+	}
+	
+	/**
+	 * @return Everything that is stored of the nodes, relationships and tokens of {@code root}, in a stable order.
+	 */
+	private static String describe(CstRoot root) {
+		StringBuilder sb = new StringBuilder();
+		root.forEachNode((node, depth) -> {
+			sb.append(depth).append(' ').append(node.getId()).append(' ').append(node.getType());
+			sb.append(' ').append(node.getSimpleName()).append(' ').append(node.getLocalName());
+			sb.append(' ').append(node.getNamespace()).append(' ').append(node.getLocation());
+			sb.append(' ').append(node.getLocation().getLine());
+			sb.append(' ').append(new TreeSet<>(node.getStereotypes()));
+			sb.append(' ').append(node.getParameters().stream().map(Parameter::getName).collect(Collectors.toList()));
+			sb.append('\n');
+		});
+		sb.append(relationships(root)).append('\n');
+		new TreeSet<>(root.getTokenizedSource().keySet()).forEach(file -> {
+			TokenizedSource tokens = root.getTokenizedSource().get(file);
+			sb.append(file);
+			for (int i = 0; i < tokens.size(); i++) {
+				sb.append(' ').append(tokens.getStart(i)).append('-').append(tokens.getEnd(i));
+			}
+			sb.append('\n');
+		});
+		return sb.toString();
+	}
+	
+}
@@ -0,0 +1,185 @@
+package refdiffIdea.core.diff;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+import refdiffIdea.core.cst.CstNode;
+import refdiffIdea.core.cst.CstRoot;
+import refdiffIdea.core.cst.Location;
+import refdiffIdea.core.cst.TokenizedSource;
+import refdiffIdea.core.diff.similarity.TfIdfSourceRepresentation;
+import refdiffIdea.core.diff.similarity.TfIdfSourceRepresentationBuilder;
+import refdiffIdea.core.util.PairBeforeAfter;
+
+public class CstComparatorTest {
+	
+	private static final int BODY = CstComparator.MIN_BODY_HASH_TOKENS;
+	
+	private final TfIdfSourceRepresentationBuilder srb = new TfIdfSourceRepresentationBuilder();
+	
+	@Test
+	public void shouldPairUniqueIdenticalBodies() throws IOException {
+		Side before = new Side(true, false, body("a", BODY), body("b", BODY + 5));
+		// Renamed and moved to another file
+		Side after = new Side(false, false, body("c", BODY), body("a", BODY));
+		
+		List<PairBeforeAfter<CstNode>> pairs = pairByBodyHash(before, after);
+		
+		assertEquals(1, pairs.size());
+		assertSame(before.methods.get(0), pairs.get(0).getBefore());
+		assertSame(after.methods.get(1), pairs.get(0).getAfter());
+	}
+	
+	@Test
+	public void shouldSkipBodiesWhoseHashIsNotUnique() throws IOException {
+		List<String> a = body("a", BODY);
+		
+		assertEquals(0, pairByBodyHash(new Side(true, false, a), new Side(false, false, a, a)).size());
+		assertEquals(0, pairByBodyHash(new Side(true, false, a, a), new Side(false, false, a)).size());
+		// Another body is still paired
+		List<String> b = body("b", BODY);
+		assertEquals(1, pairByBodyHash(new Side(true, false, a, b), new Side(false, false, b, a, a)).size());
+	}
+	
+	@Test
+	public void shouldSkipSmallBodies() throws IOException {
+		List<String> small = body("a", BODY - 1);
+		List<String> large = body("a", BODY);
+		
+		assertEquals(0, pairByBodyHash(new Side(true, false, small), new Side(false, false, small)).size());
+		assertEquals(1, pairByBodyHash(new Side(true, false, large), new Side(false, false, large)).size());
+	}
+	
+	@Test
+	public void shouldRejectSameHashOfDifferentTokens() throws IOException {
+		List<String> a = body("a", BODY);
+		List<String> b = body("b", BODY);
+		
+		// Every body has the same hash
+		assertEquals(0, pairByBodyHash(new Side(true, true, a), new Side(false, true, b)).size());
+		assertEquals(1, pairByBodyHash(new Side(true, true, a), new Side(false, true, a)).size());
+	}
+	
+	@Test
+	public void shouldFindSameRelationshipsWithAnyIndexOrParallelism() {
+		GeneratedCommit commit = new GeneratedCommit(42, 3000);
+		List<String> exhaustive = relationships(commit, comparator -> comparator.setCandidateIndexMargin(-1));
+		
+		assertTrue(exhaustive.stream().anyMatch(relationship -> relationship.startsWith(RelationshipType.RENAME.toString())));
+		assertTrue(exhaustive.stream().anyMatch(relationship -> relationship.startsWith(RelationshipType.EXTRACT.toString())));
+		assertEquals(exhaustive, relationships(commit, comparator -> {}));
+		assertEquals(exhaustive, relationships(commit, comparator -> comparator.setParallelism(4)));
+		assertEquals(exhaustive, relationships(commit, comparator -> comparator.setMinHashBands(32, 4)));
+	}
+	
+	/**
+	 * @return The relationships found in {@code commit} by a comparator with the given settings, scoring in the calling
+	 * thread unless they set a parallelism, in a stable order.
+	 */
+	private static List<String> relationships(GeneratedCommit commit, Consumer<CstComparator> settings) {
+		try (CstComparator comparator = new CstComparator(commit.getLanguagePlugin())) {
+			comparator.setParallelism(1);
+			settings.accept(comparator);
+			CstDiff diff = comparator.compare(commit.getSourcesBefore(), commit.getSourcesAfter());
+			return diff.getRelationships().stream()
+				.map(r -> r.getType() + " " + r.getNodeBefore().getId() + " " + r.getNodeAfter().getId() + " " + r.getSimilarity())
+				.sorted()
+				.collect(Collectors.toList());
+		}
+	}
+	
+	private List<PairBeforeAfter<CstNode>> pairByBodyHash(Side before, Side after) {
+		before.helper.countTokens(() -> {});
+		after.helper.countTokens(() -> {});
+		return CstComparator.pairByBodyHash(before.helper, before.methods, after.helper, after.methods, () -> {});
+	}
+	
+	/**
+	 * @return {@code length} distinct tokens starting with {@code prefix}.
+	 */
+	private static List<String> body(String prefix, int length) {
+		List<String> tokens = new ArrayList<>();
+		for (int i = 0; i < length; i++) {
+			tokens.add(prefix + i);
+		}
+		return tokens;
+	}
+	
+	/**
+	 * A side of a comparison, with a file per method body.
+	 */
+	private class Side {
+		private final List<CstNode> methods = new ArrayList<>();
+		private final CstRootHelper<TfIdfSourceRepresentation> helper;
+		
+		@SafeVarargs
+		Side(boolean isBefore, boolean sameHash, List<String>... bodies) throws IOException {
+			Map<String, String> contents = new LinkedHashMap<>();
+			CstRoot root = new CstRoot();
+			int id = 1;
+			for (List<String> body : bodies) {
+				String className = "C" + id;
+				String file = "src/" + className + ".java";
+				StringBuilder source = new StringBuilder();
+				TokenizedSource.Builder tokens = new TokenizedSource.Builder(file);
+				append(source, tokens, "class");
+				append(source, tokens, className);
+				CstNode classNode = node(id++, className, "ClassDeclaration");
+				int begin = source.length();
+				String name = "m" + id;
+				append(source, tokens, "void");
+				append(source, tokens, name);
+				int bodyBegin = source.length();
+				for (String token : body) {
+					append(source, tokens, token);
+				}
+				int bodyEnd = source.length();
+				CstNode method = node(id++, name, "MethodDeclaration");
+				method.setLocation(new Location(file, begin, bodyEnd, 1, bodyBegin, bodyEnd));
+				classNode.setLocation(new Location(file, 0, bodyEnd, 1, begin, bodyEnd));
+				classNode.addNode(method);
+				methods.add(method);
+				root.addNode(classNode);
+				root.addTokenizedFile(tokens.build());
+				contents.put(file, source.toString());
+			}
+			InMemorySourceFileSet sources = new InMemorySourceFileSet(contents);
+			if (sameHash) {
+				helper = new CstRootHelper<TfIdfSourceRepresentation>(root, sources, srb, isBefore) {
+					@Override
+					public long bodyHash(CstNode node) {
+						return 0;
+					}
+				};
+			} else {
+				helper = new CstRootHelper<>(root, sources, srb, isBefore);
+			}
+		}
+	}
+	
+	private static CstNode node(int id, String name, String type) {
+		CstNode node = new CstNode(id);
+		node.setType(type);
+		node.setSimpleName(name);
+		node.setLocalName(name);
+		node.setNamespace("");
+		return node;
+	}
+	
+	private static void append(StringBuilder source, TokenizedSource.Builder tokens, String token) {
+		tokens.add(source.length(), source.length() + token.length());
+		source.append(token).append(' ');
+	}
+	
+}
@@ -0,0 +1,247 @@
+package refdiffIdea.core.diff;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.intellij.psi.PsiFile;
+
+import refdiffIdea.core.cst.CstNode;
+import refdiffIdea.core.cst.CstRoot;
+import refdiffIdea.core.cst.Location;
+import refdiffIdea.core.cst.Parameter;
+import refdiffIdea.core.cst.Stereotype;
+
+public class CstDiffStoreTest {
+	
+	private static final long MAX_BYTES = 1024 * 1024;
+	
+	private Path directory;
+	
+	@Before
+	public void setUp() throws IOException {
+		directory = Files.createTempDirectory("refdiff-store");
+	}
+	
+	@After
+	public void tearDown() throws IOException {
+		try (Stream<Path> paths = Files.walk(directory)) {
+			for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+				Files.delete(path);
+			}
+		}
+	}
+	
+	@Test
+	public void shouldKeepRefactoringsAndOtherRelationshipsOfTheirNodes() {
+		CstDiffStore store = new CstDiffStore(directory, MAX_BYTES);
+		store.put("commit", diff("m"));
+		
+		CstDiff read = get(store, "commit").get();
+		
+		assertEquals(stored("m"), describe(read));
+		assertEquals(Arrays.asList("C"), read.getBefore().getNodes().stream().map(CstNode::getLocalName).collect(Collectors.toList()));
+		CstNode m2 = read.getBefore().getNodes().get(0).getNodes().stream().filter(node -> node.getSimpleName().equals("m2")).findFirst().get();
+		assertEquals("PsiMethodImpl", m2.getType());
+		assertEquals("p.", m2.getNamespace());
+		assertEquals(new Location("src/p/C.java", 30, 50, 3, 40, 49), m2.getLocation());
+		assertEquals(3, m2.getLocation().getLine());
+		assertEquals(new TreeSet<>(Arrays.asList(Stereotype.TYPE_MEMBER, Stereotype.HAS_BODY)), new TreeSet<>(m2.getStereotypes()));
+		assertEquals(Arrays.asList("x"), m2.getParameters().stream().map(Parameter::getName).collect(Collectors.toList()));
+	}
+	
+	@Test
+	public void shouldFindDiffsAfterReopening() {
+		new CstDiffStore(directory, MAX_BYTES).put("commit", diff("m"));
+		new CstDiffStore(directory, MAX_BYTES).put("other", diff("n"));
+		
+		CstDiffStore store = new CstDiffStore(directory, MAX_BYTES);
+		
+		assertEquals(stored("m"), describe(get(store, "commit").get()));
+		assertEquals(stored("n"), describe(get(store, "other").get()));
+		assertFalse(get(store, "missing").isPresent());
+	}
+	
+	@Test
+	public void shouldReplaceDiffStoredWithSameKey() {
+		CstDiffStore store = new CstDiffStore(directory, MAX_BYTES);
+		store.put("commit", diff("m"));
+		store.put("commit", diff("n"));
+		
+		assertEquals(stored("n"), describe(get(store, "commit").get()));
+		assertEquals(stored("n"), describe(get(new CstDiffStore(directory, MAX_BYTES), "commit").get()));
+	}
+	
+	@Test
+	public void shouldGetFilesOncePerFileAndSide() {
+		CstDiffStore store = new CstDiffStore(directory, MAX_BYTES);
+		store.put("commit", diff("m"));
+		Set<String> filesBefore = new TreeSet<>();
+		Set<String> filesAfter = new TreeSet<>();
+		
+		store.get("commit", file -> {
+			assertTrue(filesBefore.add(file));
+			return () -> null;
+		}, file -> {
+			assertTrue(filesAfter.add(file));
+			return () -> null;
+		});
+		
+		assertEquals(new TreeSet<>(Arrays.asList("src/p/C.java")), filesBefore);
+		assertEquals(new TreeSet<>(Arrays.asList("src/p/C.java", "src/p/E.java")), filesAfter);
+	}
+	
+	@Test
+	public void shouldClearWhenGrowingOverMaxBytes() throws IOException {
+		new CstDiffStore(directory, MAX_BYTES).put("first", diff("m"));
+		long size = Files.size(directory.resolve("diffs.log"));
+		// Room for a single diff besides the header
+		long maxBytes = size + size / 2;
+		
+		CstDiffStore store = new CstDiffStore(directory, maxBytes);
+		assertTrue(get(store, "first").isPresent());
+		store.put("second", diff("n"));
+		
+		assertFalse(get(store, "first").isPresent());
+		assertTrue(get(store, "second").isPresent());
+		CstDiffStore reopened = new CstDiffStore(directory, maxBytes);
+		assertFalse(get(reopened, "first").isPresent());
+		assertEquals(stored("n"), describe(get(reopened, "second").get()));
+		assertTrue(Files.size(directory.resolve("diffs.log")) <= maxBytes);
+	}
+	
+	@Test
+	public void shouldSkipDiffsLargerThanMaxBytes() {
+		CstDiffStore store = new CstDiffStore(directory, 16);
+		store.put("commit", diff("m"));
+		
+		assertFalse(get(store, "commit").isPresent());
+	}
+	
+	@Test
+	public void shouldIgnoreStoreOfAnotherFormat() throws IOException {
+		new CstDiffStore(directory, MAX_BYTES).put("commit", diff("m"));
+		Path indexFile = directory.resolve("diffs.idx");
+		byte[] bytes = Files.readAllBytes(indexFile);
+		bytes[3]++;
+		Files.write(indexFile, bytes);
+		
+		CstDiffStore store = new CstDiffStore(directory, MAX_BYTES);
+		
+		assertFalse(get(store, "commit").isPresent());
+		store.put("commit", diff("n"));
+		assertEquals(stored("n"), describe(get(new CstDiffStore(directory, MAX_BYTES), "commit").get()));
+	}
+	
+	@Test
+	public void shouldIgnoreEntriesPastTheEndOfTheLog() throws IOException {
+		CstDiffStore store = new CstDiffStore(directory, MAX_BYTES);
+		store.put("first", diff("m"));
+		long size = Files.size(directory.resolve("diffs.log"));
+		store.put("second", diff("n"));
+		// As if the second diff had not been completely written
+		byte[] log = Files.readAllBytes(directory.resolve("diffs.log"));
+		Files.write(directory.resolve("diffs.log"), Arrays.copyOf(log, (int) size + 10));
+		
+		CstDiffStore reopened = new CstDiffStore(directory, MAX_BYTES);
+		
+		assertTrue(get(reopened, "first").isPresent());
+		assertFalse(get(reopened, "second").isPresent());
+	}
+	
+	/**
+	 * A diff of a class {@code C} whose method {@code m1} is renamed and whose method {@code m2} is partly extracted
+	 * to a method {@code m3} of a new class {@code E}, while an unrelated class {@code D} is unchanged.
+	 *
+	 * @param prefix The prefix of the names of the methods, so that diffs are told apart.
+	 */
+	private static CstDiff diff(String prefix) {
+		CstRoot before = new CstRoot();
+		CstNode classBefore = node(1, "ClassDeclaration", "C", "C", "src/p/C.java", 0, 100);
+		CstNode m1Before = node(2, "PsiMethodImpl", prefix + "1", prefix + "1()", "src/p/C.java", 10, 30);
+		CstNode m2Before = node(3, "PsiMethodImpl", prefix + "2", prefix + "2(int)", "src/p/C.java", 30, 50);
+		m2Before.getParameters().add(new Parameter("x"));
+		classBefore.addNode(m1Before);
+		classBefore.addNode(m2Before);
+		before.addNode(classBefore);
+		CstNode unrelatedBefore = node(4, "ClassDeclaration", "D", "D", "src/p/D.java", 0, 10);
+		before.addNode(unrelatedBefore);
+		
+		CstRoot after = new CstRoot();
+		CstNode classAfter = node(1, "ClassDeclaration", "C", "C", "src/p/C.java", 0, 120);
+		CstNode m1After = node(2, "PsiMethodImpl", prefix + "1Renamed", prefix + "1Renamed()", "src/p/C.java", 10, 37);
+		CstNode m2After = node(3, "PsiMethodImpl", prefix + "2", prefix + "2(int)", "src/p/C.java", 37, 57);
+		m2After.getParameters().add(new Parameter("x"));
+		classAfter.addNode(m1After);
+		classAfter.addNode(m2After);
+		after.addNode(classAfter);
+		CstNode unrelatedAfter = node(4, "ClassDeclaration", "D", "D", "src/p/D.java", 0, 10);
+		after.addNode(unrelatedAfter);
+		CstNode extractedClass = node(5, "ClassDeclaration", "E", "E", "src/p/E.java", 0, 40);
+		CstNode m3After = node(6, "PsiMethodImpl", prefix + "3", prefix + "3()", "src/p/E.java", 10, 30);
+		extractedClass.addNode(m3After);
+		after.addNode(extractedClass);
+		
+		CstDiff diff = new CstDiff(before, after);
+		diff.addRelationships(new Relationship(RelationshipType.SAME, classBefore, classAfter));
+		diff.addRelationships(new Relationship(RelationshipType.SAME, unrelatedBefore, unrelatedAfter));
+		diff.addRelationships(new Relationship(RelationshipType.SAME, m2Before, m2After));
+		diff.addRelationships(new Relationship(RelationshipType.RENAME, m1Before, m1After, 0.9));
+		diff.addRelationships(new Relationship(RelationshipType.EXTRACT, m2Before, m3After));
+		return diff;
+	}
+	
+	private static CstNode node(int id, String type, String simpleName, String localName, String file, int begin, int end) {
+		CstNode node = new CstNode(id);
+		node.setType(type);
+		node.setSimpleName(simpleName);
+		node.setLocalName(localName);
+		node.setNamespace("p.");
+		node.setLocation(new Location(file, begin, end, begin / 10, begin + 10, end - 1));
+		if (type.equals("PsiMethodImpl")) {
+			node.addStereotypes(Stereotype.TYPE_MEMBER);
+			node.addStereotypes(Stereotype.HAS_BODY);
+		}
+		return node;
+	}
+	
+	private static Optional<CstDiff> get(CstDiffStore store, String key) {
+		Function<String, Supplier<PsiFile>> files = file -> () -> null;
+		return store.get(key, files, files);
+	}
+	
+	/**
+	 * @return The description of the relationships stored for {@link #diff(String)}: the refactorings and the other
+	 * relationships of their nodes, but not those of the classes.
+	 */
+	private static Set<String> stored(String prefix) {
+		return new TreeSet<>(Arrays.asList(
+			String.format("EXTRACT({p.C p.%s2(int)}, {p.E p.%s3()}) null", prefix, prefix),
+			String.format("RENAME({p.C p.%s1()}, {p.C p.%s1Renamed()}) 0.9", prefix, prefix),
+			String.format("SAME({p.C p.%s2(int)}, {p.C p.%s2(int)}) null", prefix, prefix)));
+	}
+	
+	private static Set<String> describe(CstDiff diff) {
+		return diff.getRelationships().stream()
+			.map(relationship -> relationship + " " + relationship.getSimilarity())
+			.collect(Collectors.toCollection(TreeSet::new));
+	}
+	
+}
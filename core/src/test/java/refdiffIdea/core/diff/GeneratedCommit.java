@@ -0,0 +1,241 @@
+package refdiffIdea.core.diff;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import refdiffIdea.core.cst.CstNode;
+import refdiffIdea.core.cst.CstNodeRelationship;
+import refdiffIdea.core.cst.CstNodeRelationshipType;
+import refdiffIdea.core.cst.CstRoot;
+import refdiffIdea.core.cst.Location;
+import refdiffIdea.core.cst.Stereotype;
+import refdiffIdea.core.cst.TokenizedSource;
+import refdiffIdea.core.io.FilePathFilter;
+import refdiffIdea.core.io.SourceFileSet;
+import refdiffIdea.parsers.LanguagePlugin;
+
+/**
+ * A generated commit of classes, with the CSTs a language plugin would build for them, so that the comparator can be
+ * run without parsing. Most methods are unchanged, and the others are renamed, moved, extracted, removed or added,
+ * their bodies being slightly edited as well.
+ */
+class GeneratedCommit {
+	
+	private static final int METHODS_PER_CLASS = 8;
+	private static final int WORDS = 2000;
+	
+	private final Random random;
+	private final SourceFileSet sourcesBefore;
+	private final SourceFileSet sourcesAfter;
+	private final CstRoot rootBefore;
+	private final CstRoot rootAfter;
+	
+	/**
+	 * @param nodes The number of nodes of the before version, about.
+	 */
+	GeneratedCommit(long seed, int nodes) {
+		random = new Random(seed);
+		int classes = Math.max(2, nodes / (METHODS_PER_CLASS + 1));
+		List<List<Method>> before = new ArrayList<>();
+		int key = 0;
+		for (int c = 0; c < classes; c++) {
+			List<Method> methods = new ArrayList<>();
+			for (int m = 0; m < METHODS_PER_CLASS; m++) {
+				methods.add(new Method(key++, "w" + random.nextInt(WORDS) + "x" + c + "x" + m, randomBody()));
+			}
+			before.add(methods);
+		}
+		List<List<Method>> after = new ArrayList<>();
+		for (List<Method> methods : before) {
+			List<Method> copy = new ArrayList<>();
+			for (Method method : methods) {
+				copy.add(method.copy());
+			}
+			after.add(copy);
+		}
+		int refactorings = Math.max(2, nodes / 100);
+		for (int i = 0; i < refactorings; i++) {
+			Method renamed = pick(after);
+			renamed.name = "renamed" + i;
+			edit(renamed.body);
+			
+			Method moved = pick(after);
+			after.stream().filter(methods -> methods.contains(moved)).findFirst().get().remove(moved);
+			after.get(random.nextInt(classes)).add(moved);
+			edit(moved.body);
+			
+			List<Method> methods = after.get(random.nextInt(classes));
+			Method method = methods.get(random.nextInt(methods.size()));
+			List<String> tail = method.body.subList(method.body.size() / 2, method.body.size());
+			Method extracted = new Method(key++, "extracted" + i, new ArrayList<>(tail));
+			tail.clear();
+			method.calls.add(extracted);
+			methods.add(methods.indexOf(method) + 1, extracted);
+			
+			// Extracted methods are kept, as they are called
+			Method removed = pick(after);
+			if (removed.key < classes * METHODS_PER_CLASS) {
+				after.stream().filter(m -> m.contains(removed)).findFirst().get().remove(removed);
+			}
+			after.get(random.nextInt(classes)).add(new Method(key++, "added" + i, randomBody()));
+		}
+		Map<String, String> contentsBefore = new LinkedHashMap<>();
+		rootBefore = render(before, contentsBefore);
+		sourcesBefore = new InMemorySourceFileSet(contentsBefore);
+		Map<String, String> contentsAfter = new LinkedHashMap<>();
+		rootAfter = render(after, contentsAfter);
+		sourcesAfter = new InMemorySourceFileSet(contentsAfter);
+	}
+	
+	SourceFileSet getSourcesBefore() {
+		return sourcesBefore;
+	}
+	
+	SourceFileSet getSourcesAfter() {
+		return sourcesAfter;
+	}
+	
+	/**
+	 * @return A language plugin that builds the CSTs of this commit from its source file sets, without parsing them.
+	 */
+	LanguagePlugin getLanguagePlugin() {
+		return new LanguagePlugin() {
+			@Override
+			public CstRoot parse(SourceFileSet sources) {
+				if (sources == sourcesBefore) {
+					return rootBefore;
+				} else if (sources == sourcesAfter) {
+					return rootAfter;
+				}
+				throw new IllegalArgumentException("Sources of another commit");
+			}
+			
+			@Override
+			public FilePathFilter getAllowedFilesFilter() {
+				return new FilePathFilter(Arrays.asList(".java"));
+			}
+		};
+	}
+	
+	private Method pick(List<List<Method>> classes) {
+		List<Method> methods = classes.get(random.nextInt(classes.size()));
+		return methods.get(random.nextInt(methods.size()));
+	}
+	
+	/**
+	 * @return Words of a skewed distribution, so that bodies share their most frequent words.
+	 */
+	private List<String> randomBody() {
+		List<String> body = new ArrayList<>();
+		int length = 10 + random.nextInt(50);
+		for (int i = 0; i < length; i++) {
+			body.add(nextWord());
+		}
+		return body;
+	}
+	
+	private String nextWord() {
+		double u = random.nextDouble();
+		return "w" + (int) (u * u * u * WORDS);
+	}
+	
+	/**
+	 * Replaces up to a tenth of the words of a body.
+	 */
+	private void edit(List<String> body) {
+		int edits = random.nextInt(body.size() / 10 + 1);
+		for (int i = 0; i < edits; i++) {
+			body.set(random.nextInt(body.size()), nextWord());
+		}
+	}
+	
+	/**
+	 * Writes a file per class, whose methods call the methods extracted from them, and builds their CST.
+	 *
+	 * @param contents Receives the source code of each file.
+	 */
+	private static CstRoot render(List<List<Method>> classes, Map<String, String> contents) {
+		CstRoot root = new CstRoot();
+		Map<Integer, CstNode> nodes = new HashMap<>();
+		int id = 1;
+		for (int c = 0; c < classes.size(); c++) {
+			String name = "C" + c;
+			String file = "src/" + name + ".java";
+			StringBuilder source = new StringBuilder();
+			TokenizedSource.Builder tokens = new TokenizedSource.Builder(file);
+			append(source, tokens, "class", name, "{");
+			CstNode classNode = node(id++, name, name, "ClassDeclaration");
+			for (Method method : classes.get(c)) {
+				int begin = source.length();
+				append(source, tokens, "void", method.name, "(", ")", "{");
+				int bodyBegin = source.length();
+				for (Method callee : method.calls) {
+					append(source, tokens, callee.name, "(", ")", ";");
+				}
+				for (String token : method.body) {
+					append(source, tokens, token);
+				}
+				int bodyEnd = source.length();
+				append(source, tokens, "}");
+				CstNode node = node(id++, method.name, method.name + "()", "MethodDeclaration");
+				node.addStereotypes(Stereotype.TYPE_MEMBER);
+				node.addStereotypes(Stereotype.HAS_BODY);
+				node.setLocation(new Location(file, begin, source.length() - 1, 1, bodyBegin, bodyEnd - 1));
+				classNode.addNode(node);
+				nodes.put(method.key, node);
+			}
+			append(source, tokens, "}");
+			classNode.setLocation(new Location(file, 0, source.length() - 1, 1, 0, source.length() - 1));
+			root.addNode(classNode);
+			root.addTokenizedFile(tokens.build());
+			contents.put(file, source.toString());
+		}
+		for (List<Method> methods : classes) {
+			for (Method method : methods) {
+				for (Method callee : method.calls) {
+					root.getRelationships().add(new CstNodeRelationship(CstNodeRelationshipType.USE, nodes.get(method.key).getId(), nodes.get(callee.key).getId()));
+				}
+			}
+		}
+		return root;
+	}
+	
+	private static CstNode node(int id, String simpleName, String localName, String type) {
+		CstNode node = new CstNode(id);
+		node.setType(type);
+		node.setSimpleName(simpleName);
+		node.setLocalName(localName);
+		node.setNamespace("");
+		return node;
+	}
+	
+	private static void append(StringBuilder source, TokenizedSource.Builder tokens, String... words) {
+		for (String word : words) {
+			tokens.add(source.length(), source.length() + word.length());
+			source.append(word).append(' ');
+		}
+	}
+	
+	private static class Method {
+		private final int key;
+		private String name;
+		private final List<String> body;
+		private final List<Method> calls = new ArrayList<>();
+		
+		Method(int key, String name, List<String> body) {
+			this.key = key;
+			this.name = name;
+			this.body = body;
+		}
+		
+		Method copy() {
+			return new Method(key, name, new ArrayList<>(body));
+		}
+	}
+	
+}
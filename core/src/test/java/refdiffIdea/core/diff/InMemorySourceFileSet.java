@@ -0,0 +1,34 @@
+package refdiffIdea.core.diff;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Map;
+
+import refdiffIdea.core.io.SourceFile;
+import refdiffIdea.core.io.SourceFileSet;
+
+/**
+ * Source files whose contents are given by path.
+ */
+class InMemorySourceFileSet extends SourceFileSet {
+	private final Map<String, String> contents;
+	
+	InMemorySourceFileSet(Map<String, String> contents) {
+		super(new ArrayList<>());
+		this.contents = contents;
+		for (String path : contents.keySet()) {
+			getSourceFiles().add(new SourceFile(Paths.get(path)));
+		}
+	}
+	
+	@Override
+	public String readContent(SourceFile sourceFile) throws IOException {
+		return contents.get(sourceFile.getPath());
+	}
+	
+	@Override
+	public String describeLocation(SourceFile sourceFile) {
+		return sourceFile.getPath();
+	}
+}
@@ -0,0 +1,192 @@
+package refdiffIdea.core.diff;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import refdiffIdea.core.cst.CstNode;
+import refdiffIdea.core.cst.CstRoot;
+import refdiffIdea.core.cst.Location;
+import refdiffIdea.core.cst.TokenizedSource;
+import refdiffIdea.core.diff.similarity.TfIdfSourceRepresentation;
+import refdiffIdea.core.diff.similarity.TfIdfSourceRepresentationBuilder;
+
+public class PrefixCandidateIndexTest {
+	
+	private static final int FILES = 10;
+	private static final int METHODS_PER_FILE = 8;
+	private static final int WORDS = 150;
+	
+	private final TfIdfSourceRepresentationBuilder srb = new TfIdfSourceRepresentationBuilder();
+	private final List<CstNode> nodesBefore = new ArrayList<>();
+	private final List<CstNode> nodesAfter = new ArrayList<>();
+	private CstRootHelper<TfIdfSourceRepresentation> before;
+	private CstRootHelper<TfIdfSourceRepresentation> after;
+	
+	@Before
+	public void setUp() throws IOException {
+		Random random = new Random(42);
+		List<List<List<String>>> bodiesBefore = generate(random);
+		List<List<List<String>>> bodiesAfter = mutate(random, bodiesBefore);
+		Map<String, String> contentsBefore = new LinkedHashMap<>();
+		Map<String, String> contentsAfter = new LinkedHashMap<>();
+		CstRoot rootBefore = render(random, bodiesBefore, contentsBefore, nodesBefore);
+		CstRoot rootAfter = render(random, bodiesAfter, contentsAfter, nodesAfter);
+		before = new CstRootHelper<>(rootBefore, new InMemorySourceFileSet(contentsBefore), srb, true);
+		after = new CstRootHelper<>(rootAfter, new InMemorySourceFileSet(contentsAfter), srb, false);
+		before.countTokens(() -> {});
+		after.countTokens(() -> {});
+	}
+	
+	@Test
+	public void shouldFindEveryPairAboveThreshold() {
+		for (double threshold : new double[] {0.1, 0.3, 0.5, 0.7}) {
+			PrefixCandidateIndex<TfIdfSourceRepresentation> index = new PrefixCandidateIndex<>(srb, after, nodesAfter, threshold);
+			int pairsAboveThreshold = 0;
+			for (CstNode n1 : nodesBefore) {
+				TfIdfSourceRepresentation sr1 = before.sourceRep(n1);
+				Set<CstNode> candidates = index.findCandidates(sr1);
+				assertTrue(nodesAfter.containsAll(candidates));
+				for (CstNode n2 : nodesAfter) {
+					double similarity = srb.similarity(sr1, after.sourceRep(n2));
+					if (similarity > threshold) {
+						pairsAboveThreshold++;
+						assertTrue(String.format("%s and %s (%f) at %f", n1, n2, similarity, threshold), candidates.contains(n2));
+					}
+				}
+			}
+			assertTrue(pairsAboveThreshold > 0);
+			assertEquals(threshold, index.getThreshold(), 0.0);
+		}
+	}
+	
+	/**
+	 * Pairs whose similarity barely exceeds the threshold are those most likely to be lost by a prefix that is too 
+	 * short, so each pair is checked against a threshold just below its own similarity.
+	 */
+	@Test
+	public void shouldFindPairsJustAboveThreshold() {
+		for (CstNode n1 : nodesBefore) {
+			TfIdfSourceRepresentation sr1 = before.sourceRep(n1);
+			for (CstNode n2 : nodesAfter) {
+				double similarity = srb.similarity(sr1, after.sourceRep(n2));
+				double threshold = similarity - 1e-6;
+				if (threshold > 0) {
+					PrefixCandidateIndex<TfIdfSourceRepresentation> index = new PrefixCandidateIndex<>(srb, after, Collections.singletonList(n2), threshold);
+					assertTrue(String.format("%s and %s (%f)", n1, n2, similarity), index.findCandidates(sr1).contains(n2));
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @return The tokens of the body of each method of each file, drawn from a skewed distribution of words.
+	 */
+	private static List<List<List<String>>> generate(Random random) {
+		List<List<List<String>>> files = new ArrayList<>();
+		for (int f = 0; f < FILES; f++) {
+			List<List<String>> methods = new ArrayList<>();
+			for (int m = 0; m < METHODS_PER_FILE; m++) {
+				List<String> body = new ArrayList<>();
+				int length = 5 + random.nextInt(40);
+				for (int i = 0; i < length; i++) {
+					body.add(nextWord(random));
+				}
+				methods.add(body);
+			}
+			files.add(methods);
+		}
+		return files;
+	}
+	
+	/**
+	 * @return A copy of the bodies where each method has a random fraction of its tokens replaced, from none to all,
+	 * small fractions being more frequent.
+	 */
+	private static List<List<List<String>>> mutate(Random random, List<List<List<String>>> files) {
+		List<List<List<String>>> copy = new ArrayList<>();
+		for (List<List<String>> methods : files) {
+			List<List<String>> methodsCopy = new ArrayList<>();
+			for (List<String> body : methods) {
+				double rate = random.nextDouble() * random.nextDouble();
+				List<String> bodyCopy = new ArrayList<>();
+				for (String token : body) {
+					bodyCopy.add(random.nextDouble() < rate ? nextWord(random) : token);
+				}
+				methodsCopy.add(bodyCopy);
+			}
+			copy.add(methodsCopy);
+		}
+		return copy;
+	}
+	
+	private static String nextWord(Random random) {
+		double u = random.nextDouble();
+		return "w" + (int) (u * u * WORDS);
+	}
+	
+	/**
+	 * Writes a file with a class per element of {@code files}, whose methods have the given bodies, and builds its CST.
+	 *
+	 * @param random Draws the names of the classes and methods, which are common words rather than unique tokens, so 
+	 *               that similarities mostly depend on the bodies.
+	 * @param contents Receives the source code of each file.
+	 * @param methods Receives the method nodes.
+	 */
+	private static CstRoot render(Random random, List<List<List<String>>> files, Map<String, String> contents, List<CstNode> methods) {
+		CstRoot root = new CstRoot();
+		int id = 1;
+		for (int f = 0; f < files.size(); f++) {
+			String file = "src/C" + f + ".java";
+			StringBuilder source = new StringBuilder();
+			TokenizedSource.Builder tokens = new TokenizedSource.Builder(file);
+			CstNode classNode = node(id++, nextWord(random), "ClassDeclaration");
+			for (int m = 0; m < files.get(f).size(); m++) {
+				int begin = source.length();
+				String name = nextWord(random);
+				append(source, tokens, "void");
+				append(source, tokens, name);
+				int bodyBegin = source.length();
+				for (String token : files.get(f).get(m)) {
+					append(source, tokens, token);
+				}
+				int bodyEnd = source.length();
+				CstNode method = node(id++, name, "MethodDeclaration");
+				method.setLocation(new Location(file, begin, bodyEnd, 1, bodyBegin, bodyEnd));
+				classNode.addNode(method);
+				methods.add(method);
+			}
+			classNode.setLocation(new Location(file, 0, source.length(), 1, 0, source.length()));
+			root.addNode(classNode);
+			root.addTokenizedFile(tokens.build());
+			contents.put(file, source.toString());
+		}
+		return root;
+	}
+	
+	private static CstNode node(int id, String name, String type) {
+		CstNode node = new CstNode(id);
+		node.setType(type);
+		node.setSimpleName(name);
+		node.setLocalName(name);
+		node.setNamespace("");
+		return node;
+	}
+	
+	private static void append(StringBuilder source, TokenizedSource.Builder tokens, String token) {
+		tokens.add(source.length(), source.length() + token.length());
+		source.append(token).append(' ');
+	}
+	
+}
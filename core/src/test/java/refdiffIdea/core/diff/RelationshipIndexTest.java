@@ -0,0 +1,99 @@
+package refdiffIdea.core.diff;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import refdiffIdea.core.cst.CstNodeRelationship;
+import refdiffIdea.core.cst.CstNodeRelationshipType;
+
+public class RelationshipIndexTest {
+	
+	private static final int NODES = 50;
+	
+	@Test
+	public void shouldMatchPlainCollectionOfRelationships() {
+		Set<CstNodeRelationship> relationships = randomRelationships(new Random(42), NODES, 400);
+		RelationshipIndex index = new RelationshipIndex(relationships, NODES, id -> id);
+		
+		assertSameAs(relationships, index);
+	}
+	
+	@Test
+	public void shouldMapIdsToIndexesAndIgnoreUnknownIds() {
+		Set<CstNodeRelationship> relationships = randomRelationships(new Random(42), NODES, 400);
+		// Ids are sparse, and some relationships refer to nodes that are not in the CST
+		Set<CstNodeRelationship> sparse = new LinkedHashSet<>();
+		for (CstNodeRelationship relationship : relationships) {
+			sparse.add(new CstNodeRelationship(relationship.getType(), relationship.getN1() * 1000 - 5000, relationship.getN2() * 1000 - 5000));
+		}
+		sparse.add(new CstNodeRelationship(CstNodeRelationshipType.USE, 1, 2000));
+		sparse.add(new CstNodeRelationship(CstNodeRelationshipType.USE, 2000, 999));
+		RelationshipIndex index = new RelationshipIndex(sparse, NODES, id -> id % 1000 == 0 ? (id + 5000) / 1000 : -1);
+		
+		assertSameAs(relationships, index);
+	}
+	
+	@Test
+	public void shouldHandleTypesWithoutRelationships() {
+		RelationshipIndex index = new RelationshipIndex(new ArrayList<>(), NODES, id -> id);
+		
+		for (CstNodeRelationshipType type : CstNodeRelationshipType.values()) {
+			assertEquals(0, index.count(type, 3));
+			assertEquals(0, index.countReverse(type, 3));
+			assertFalse(index.contains(type, 3, 4));
+		}
+	}
+	
+	private static void assertSameAs(Set<CstNodeRelationship> relationships, RelationshipIndex index) {
+		for (CstNodeRelationshipType type : CstNodeRelationshipType.values()) {
+			for (int node = 0; node < NODES; node++) {
+				Set<Integer> expected = new HashSet<>();
+				Set<Integer> expectedReverse = new HashSet<>();
+				for (CstNodeRelationship relationship : relationships) {
+					if (relationship.getType() == type && relationship.getN1() == node) {
+						expected.add(relationship.getN2());
+					}
+					if (relationship.getType() == type && relationship.getN2() == node) {
+						expectedReverse.add(relationship.getN1());
+					}
+				}
+				Set<Integer> actual = new HashSet<>();
+				for (int i = 0; i < index.count(type, node); i++) {
+					actual.add(index.get(type, node, i));
+				}
+				Set<Integer> actualReverse = new HashSet<>();
+				for (int i = 0; i < index.countReverse(type, node); i++) {
+					actualReverse.add(index.getReverse(type, node, i));
+				}
+				assertEquals(expected.size(), index.count(type, node));
+				assertEquals(expected, actual);
+				assertEquals(expectedReverse.size(), index.countReverse(type, node));
+				assertEquals(expectedReverse, actualReverse);
+				for (int other = 0; other < NODES; other++) {
+					assertEquals(expected.contains(other), index.contains(type, node, other));
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @return Distinct {@link CstNodeRelationshipType#USE} relationships between nodes {@code [0, nodes)}, so that
+	 * other types have none.
+	 */
+	private static Set<CstNodeRelationship> randomRelationships(Random random, int nodes, int count) {
+		Set<CstNodeRelationship> relationships = new LinkedHashSet<>();
+		while (relationships.size() < count) {
+			relationships.add(new CstNodeRelationship(CstNodeRelationshipType.USE, random.nextInt(nodes), random.nextInt(nodes)));
+		}
+		return relationships;
+	}
+	
+}
@@ -0,0 +1,111 @@
+package refdiffIdea.core.diff.similarity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+public class IntMultisetTest {
+	
+	@Test
+	public void shouldCountRepeatedIds() {
+		IntMultiset multiset = of(7, 3, 7, 1, 7, 3);
+		
+		assertEquals(3, multiset.distinctCount());
+		assertEquals(6, multiset.size());
+		assertEquals(1, multiset.getId(0));
+		assertEquals(3, multiset.getId(1));
+		assertEquals(7, multiset.getId(2));
+		assertEquals(3, multiset.getCount(2));
+		assertEquals(2, multiset.getMultiplicity(3));
+		assertEquals(0, multiset.getMultiplicity(5));
+		assertTrue(multiset.contains(1));
+		assertFalse(multiset.contains(2));
+	}
+	
+	@Test
+	public void shouldBuildEmptyMultiset() {
+		IntMultiset multiset = new IntMultiset.Builder().build();
+		
+		assertTrue(multiset.isEmpty());
+		assertEquals(0, multiset.size());
+		assertEquals(0, multiset.distinctCount());
+		assertTrue(IntMultiset.EMPTY.isEmpty());
+	}
+	
+	@Test
+	public void shouldReturnSameInstanceForEmptyOperand() {
+		IntMultiset multiset = of(1, 2, 2);
+		
+		assertSame(multiset, multiset.plus(IntMultiset.EMPTY));
+		assertSame(multiset, IntMultiset.EMPTY.plus(multiset));
+		assertSame(multiset, multiset.minus(IntMultiset.EMPTY));
+		assertSame(multiset, multiset.minusElements(IntMultiset.EMPTY));
+	}
+	
+	@Test
+	public void shouldMatchMapOfCountsOnRandomOperations() {
+		Random random = new Random(42);
+		for (int round = 0; round < 200; round++) {
+			Map<Integer, Integer> counts1 = new TreeMap<>();
+			Map<Integer, Integer> counts2 = new TreeMap<>();
+			IntMultiset m1 = random(random, counts1);
+			IntMultiset m2 = random(random, counts2);
+			
+			Map<Integer, Integer> sum = new TreeMap<>(counts1);
+			counts2.forEach((id, count) -> sum.merge(id, count, Integer::sum));
+			assertContent(sum, m1.plus(m2));
+			
+			Map<Integer, Integer> difference = new TreeMap<>();
+			counts1.forEach((id, count) -> {
+				int remaining = count - counts2.getOrDefault(id, 0);
+				if (remaining > 0) {
+					difference.put(id, remaining);
+				}
+			});
+			assertContent(difference, m1.minus(m2));
+			
+			Map<Integer, Integer> withoutElements = new TreeMap<>(counts1);
+			withoutElements.keySet().removeAll(counts2.keySet());
+			assertContent(withoutElements, m1.minusElements(m2));
+		}
+	}
+	
+	private static IntMultiset random(Random random, Map<Integer, Integer> counts) {
+		IntMultiset.Builder builder = new IntMultiset.Builder();
+		int size = random.nextInt(40);
+		for (int i = 0; i < size; i++) {
+			int id = random.nextInt(30);
+			builder.add(id);
+			counts.merge(id, 1, Integer::sum);
+		}
+		return builder.build();
+	}
+	
+	private static void assertContent(Map<Integer, Integer> expected, IntMultiset multiset) {
+		assertEquals(expected.size(), multiset.distinctCount());
+		assertEquals(expected.values().stream().mapToInt(Integer::intValue).sum(), multiset.size());
+		int i = 0;
+		for (Map.Entry<Integer, Integer> entry : expected.entrySet()) {
+			assertEquals(entry.getKey().intValue(), multiset.getId(i));
+			assertEquals(entry.getValue().intValue(), multiset.getCount(i));
+			assertEquals(entry.getValue().intValue(), multiset.getMultiplicity(entry.getKey()));
+			i++;
+		}
+	}
+	
+	private static IntMultiset of(int... ids) {
+		IntMultiset.Builder builder = new IntMultiset.Builder();
+		for (int id : ids) {
+			builder.add(id);
+		}
+		return builder.build();
+	}
+	
+}
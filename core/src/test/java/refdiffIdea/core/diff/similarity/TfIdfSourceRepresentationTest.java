@@ -0,0 +1,117 @@
+package refdiffIdea.core.diff.similarity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TfIdfSourceRepresentationTest {
+	
+	private static final int TOKENS = 200;
+	private static final int PAIRS = 300;
+	private static final double DELTA = 1e-12;
+	
+	private final Random random = new Random(42);
+	private TfIdfSourceRepresentation[] before;
+	private TfIdfSourceRepresentation[] after;
+	
+	@Before
+	public void setUp() {
+		TokenDictionary dictionary = new TokenDictionary();
+		for (int i = 0; i < TOKENS; i++) {
+			dictionary.intern("t" + i);
+		}
+		Vocabulary vocabulary = new Vocabulary(dictionary);
+		before = new TfIdfSourceRepresentation[PAIRS];
+		after = new TfIdfSourceRepresentation[PAIRS];
+		for (int i = 0; i < PAIRS; i++) {
+			int[] ids = randomIds();
+			IntMultiset multisetBefore = build(ids);
+			// Pairs range from unrelated to identical
+			int kept = random.nextInt(ids.length + 1);
+			for (int j = kept; j < ids.length; j++) {
+				ids[j] = nextId();
+			}
+			IntMultiset multisetAfter = build(ids);
+			vocabulary.count(true, multisetBefore);
+			vocabulary.count(false, multisetAfter);
+			before[i] = new TfIdfSourceRepresentation(multisetBefore, vocabulary);
+			after[i] = new TfIdfSourceRepresentation(multisetAfter, vocabulary);
+		}
+		vocabulary.freeze();
+	}
+	
+	@Test
+	public void shouldReturnExactSimilarityAboveThreshold() {
+		for (boolean partial : new boolean[] {false, true}) {
+			for (int i = 0; i < PAIRS; i++) {
+				double exact = before[i].jaccardSimilarity(after[i], partial);
+				for (double threshold : new double[] {0.0, 0.1, 0.3, 0.5, 0.8}) {
+					if (exact > threshold) {
+						assertEquals(exact, before[i].jaccardSimilarity(after[i], partial, threshold), DELTA);
+					}
+				}
+				// Slightly below the similarity itself
+				double threshold = Math.max(0.0, exact - 1e-6);
+				if (exact > threshold) {
+					assertEquals(exact, before[i].jaccardSimilarity(after[i], partial, threshold), DELTA);
+				}
+			}
+		}
+	}
+	
+	@Test
+	public void shouldReturnBoundNotGreaterThanThresholdBelowIt() {
+		int belowThreshold = 0;
+		for (boolean partial : new boolean[] {false, true}) {
+			for (int i = 0; i < PAIRS; i++) {
+				double exact = before[i].jaccardSimilarity(after[i], partial);
+				for (double threshold : new double[] {0.1, 0.3, 0.5, 0.8, 1.0}) {
+					if (exact <= threshold) {
+						double bounded = before[i].jaccardSimilarity(after[i], partial, threshold);
+						assertTrue(String.format("%f > %f", bounded, threshold), bounded <= threshold + DELTA);
+						belowThreshold++;
+					}
+				}
+			}
+		}
+		assertTrue(belowThreshold > 0);
+	}
+	
+	@Test
+	public void shouldReturnZeroForEmptyRepresentations() {
+		Vocabulary vocabulary = new Vocabulary(new TokenDictionary());
+		TfIdfSourceRepresentation empty = new TfIdfSourceRepresentation(IntMultiset.EMPTY, vocabulary);
+		
+		assertEquals(0.0, empty.jaccardSimilarity(before[0], false, 0.5), 0.0);
+		assertEquals(0.0, before[0].jaccardSimilarity(empty, true, 0.5), 0.0);
+	}
+	
+	private int[] randomIds() {
+		int[] ids = new int[1 + random.nextInt(60)];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = nextId();
+		}
+		return ids;
+	}
+	
+	/**
+	 * @return A token id, low ids being much more frequent than high ones, so that tokens get various IDFs.
+	 */
+	private int nextId() {
+		double u = random.nextDouble();
+		return (int) (u * u * u * TOKENS);
+	}
+	
+	private static IntMultiset build(int[] ids) {
+		IntMultiset.Builder builder = new IntMultiset.Builder();
+		for (int id : ids) {
+			builder.add(id);
+		}
+		return builder.build();
+	}
+	
+}
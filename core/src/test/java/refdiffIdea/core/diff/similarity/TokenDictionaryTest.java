@@ -0,0 +1,66 @@
+package refdiffIdea.core.diff.similarity;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class TokenDictionaryTest {
+	
+	@Test
+	public void shouldAssignIdsInOrderOfFirstOccurrence() {
+		TokenDictionary dictionary = new TokenDictionary();
+		
+		assertEquals(0, dictionary.intern("foo"));
+		assertEquals(1, dictionary.intern("bar"));
+		assertEquals(0, dictionary.intern("foo"));
+		assertEquals(2, dictionary.size());
+		assertEquals("foo", dictionary.getToken(0));
+		assertEquals("bar", dictionary.getToken(1));
+	}
+	
+	@Test
+	public void shouldInternSpansOfSourceCode() {
+		TokenDictionary dictionary = new TokenDictionary();
+		String source = "int foo = bar(foo);";
+		
+		int foo = dictionary.intern(source, 4, 7);
+		int bar = dictionary.intern(source, 10, 13);
+		
+		assertEquals(foo, dictionary.intern(source, 14, 17));
+		assertEquals(foo, dictionary.find("foo"));
+		assertEquals(bar, dictionary.find(new StringBuilder("bar"), 0, 3));
+		assertEquals("bar", dictionary.getToken(bar));
+	}
+	
+	@Test
+	public void shouldNotFindTokensNeverInterned() {
+		TokenDictionary dictionary = new TokenDictionary();
+		dictionary.intern("foo");
+		
+		assertEquals(TokenDictionary.UNKNOWN, dictionary.find("fo"));
+		assertEquals(TokenDictionary.UNKNOWN, dictionary.find("foo2"));
+		assertEquals(TokenDictionary.UNKNOWN, dictionary.find(""));
+		assertEquals(1, dictionary.size());
+	}
+	
+	@Test
+	public void shouldKeepIdsWhenGrowing() {
+		TokenDictionary dictionary = new TokenDictionary();
+		for (int i = 0; i < 10000; i++) {
+			assertEquals(i, dictionary.intern("t" + i));
+		}
+		// "Aa" and "BB" have the same hash code
+		int aa = dictionary.intern("Aa");
+		int bb = dictionary.intern("BB");
+		
+		for (int i = 0; i < 10000; i++) {
+			assertEquals(i, dictionary.find("t" + i));
+			assertEquals("t" + i, dictionary.getToken(i));
+		}
+		assertEquals(10000, aa);
+		assertEquals(10001, bb);
+		assertEquals(aa, dictionary.find("Aa"));
+		assertEquals(bb, dictionary.find("BB"));
+	}
+	
+}